@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.MethodDefinition;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast {@link CodeBlock}s are built, in instructions per microsecond, and how long
+ * {@link MethodDefinition#getMethodNode()} takes to turn a built block into an ASM tree.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeBlockBenchmark implements Opcodes {
+
+    private static final int STATEMENTS = 256;
+    private static final int INSTRUCTIONS = STATEMENTS * 8 + 2;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public CodeBlock build() {
+        return statements();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public MethodNode getMethodNode(FreshMethod fresh) {
+        return fresh.definition.getMethodNode();
+    }
+
+    @State(Scope.Thread)
+    public static class FreshMethod {
+
+        MethodDefinition definition;
+
+        // getMethodNode moves the instructions out of the block, so every invocation needs a new one
+        @Setup(Level.Invocation)
+        public void setUp() {
+            definition = new MethodDefinition("mix", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class, int.class), statements());
+        }
+    }
+
+    private static CodeBlock statements() {
+        CodeBlock block = newCodeBlock();
+        for (int i = 0; i < STATEMENTS; i++) {
+            block.iload(0).pushInt(i).iadd().iload(1).ixor().dup().istore(1).istore(0);
+        }
+        return block.iload(0).ireturn();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency from a built class to a usable instance of it, through a fresh {@link JiteClassLoader} on
+ * every invocation: once from already emitted bytecode, and once emitting it as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefineBenchmark {
+
+    private JiteClass jiteClass;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        jiteClass = Shapes.smallClass("bench/Defined", 8);
+        bytes = jiteClass.toBytes(JDKVersion.V1_6);
+    }
+
+    @Benchmark
+    public Object defineAndInstantiate() throws Exception {
+        return new JiteClassLoader(getClass().getClassLoader()).define(jiteClass, bytes).newInstance();
+    }
+
+    @Benchmark
+    public Object emitDefineAndInstantiate() throws Exception {
+        return new JiteClassLoader(getClass().getClassLoader()).define(jiteClass).newInstance();
+    }
+}
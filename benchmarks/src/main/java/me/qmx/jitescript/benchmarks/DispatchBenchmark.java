@@ -0,0 +1,100 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a dynamic {@code length()} call through an inline cache caching two receiver classes, against looking the
+ * method up reflectively on every call, with one, two and four receiver classes at the call site.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int CALLS = 64;
+
+    @Param({"1", "2", "4"})
+    public int classes;
+
+    private Object[] receivers;
+    private MethodHandle length;
+
+    @Setup
+    public void setUp() throws Exception {
+        Object[] kinds = {"jite", new StringBuilder("script"), new StringBuffer("bytecode"), CharBuffer.wrap("asm")};
+        receivers = new Object[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            receivers[i] = kinds[i % classes];
+        }
+        JiteClass jiteClass = new JiteClass("bench/Dispatch", p(Object.class), new String[0]);
+        jiteClass.defineMethod("length", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, sig(int.class, Object.class),
+                newCodeBlock()
+                        .aload(0)
+                        .dynamicCall("length", sig(int.class, Object.class), 2)
+                        .ireturn());
+        Class<?> dispatch = new JiteClassLoader(getClass().getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        length = MethodHandles.publicLookup().findStatic(dispatch, "length", MethodType.methodType(int.class, Object.class));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public int inlineCache() throws Throwable {
+        int sum = 0;
+        for (Object receiver : receivers) {
+            sum += (int) length.invokeExact(receiver);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public int reflective() throws Exception {
+        int sum = 0;
+        for (Object receiver : receivers) {
+            sum += (Integer) receiver.getClass().getMethod("length").invoke(receiver);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the streaming {@link JiteClass#toBytes(JDKVersion)} path against the tree path it replaced, which
+ * copied every method into a {@link org.objectweb.asm.tree.ClassNode} before writing it. The tree path moves the
+ * instructions out of the method bodies, so both benchmarks build a fresh class per invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmissionBenchmark {
+
+    @Param({"4", "32"})
+    public int methods;
+
+    @Benchmark
+    public byte[] streaming() {
+        return Shapes.smallClass("bench/Streaming", methods).toBytes(JDKVersion.V1_6);
+    }
+
+    @Benchmark
+    public byte[] tree() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        Shapes.smallClass("bench/Tree", methods).toClassNode(JDKVersion.V1_6).accept(cw);
+        return cw.toByteArray();
+    }
+}
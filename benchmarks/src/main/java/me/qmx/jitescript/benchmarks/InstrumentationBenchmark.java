@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.Instrumentation;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of the probes each {@link Instrumentation} mode puts into a small generated method, called from
+ * several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class InstrumentationBenchmark {
+
+    @Param({"OFF", "COUNT", "TIME"})
+    public Instrumentation instrumentation;
+
+    private MethodHandle square;
+    private int value = 7;
+
+    @Setup
+    public void setUp() throws Exception {
+        JiteClass jiteClass = new JiteClass("bench/Instrumented", p(Object.class), new String[0]);
+        jiteClass.defineMethod("square", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, sig(int.class, int.class),
+                newCodeBlock()
+                        .iload(0)
+                        .iload(0)
+                        .imul()
+                        .ireturn());
+        jiteClass.setInstrumentation(instrumentation);
+        Class<?> instrumented = new JiteClassLoader(getClass().getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        square = MethodHandles.publicLookup().findStatic(instrumented, "square", MethodType.methodType(int.class, int.class));
+    }
+
+    @Benchmark
+    public int call() throws Throwable {
+        return (int) square.invokeExact(value);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.BuilderPool;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building classes from fresh builders against building them from the thread's {@link BuilderPool}, with
+ * and without emitting them. Run with {@code -prof gc} to see the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolingBenchmark {
+
+    @Param({"8", "32"})
+    public int methods;
+
+    @Benchmark
+    public JiteClass buildFresh() {
+        return Shapes.smallClass("bench/Fresh", methods);
+    }
+
+    @Benchmark
+    public int buildPooled() {
+        BuilderPool pool = BuilderPool.local();
+        JiteClass jiteClass = Shapes.pooledClass(pool, "bench/Pooled", methods);
+        int count = jiteClass.getChildClasses().size();
+        pool.release(jiteClass);
+        return count;
+    }
+
+    @Benchmark
+    public byte[] emitFresh() {
+        return Shapes.smallClass("bench/Fresh", methods).toBytes(JDKVersion.V1_6);
+    }
+
+    @Benchmark
+    public byte[] emitPooled() {
+        BuilderPool pool = BuilderPool.local();
+        JiteClass jiteClass = Shapes.pooledClass(pool, "bench/Pooled", methods);
+        byte[] bytes = jiteClass.toBytes(JDKVersion.V1_6);
+        pool.release(jiteClass);
+        return bytes;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.io.PrintStream;
+import java.lang.annotation.ElementType;
+import me.qmx.jitescript.BuilderPool;
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.VisibleAnnotation;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Builds the kind of small classes a language frontend generates by the thousand: a constructor, a couple of
+ * fields and a handful of short methods with branches and calls. The annotated variant is what binding layers
+ * generate, with several annotations of every kind of value on the class and on each member.
+ */
+public final class Shapes implements Opcodes {
+
+    private Shapes() {
+    }
+
+    public static JiteClass smallClass(String className, int methods) {
+        return newClass(className, methods, false);
+    }
+
+    public static JiteClass annotatedClass(String className, int members) {
+        JiteClass jiteClass = newClass(className, members, true);
+        jiteClass.addAnnotation(annotation("Lbench/Entity;", 0));
+        jiteClass.addAnnotation(annotation("Lbench/Table;", 1));
+        for (int i = 0; i < members; i++) {
+            jiteClass.defineField("f" + i, ACC_PUBLIC, ci(Object.class), null)
+                    .addAnnotation(annotation("Lbench/Column;", i))
+                    .addAnnotation(annotation("Lbench/Index;", i));
+        }
+        return jiteClass;
+    }
+
+    /**
+     * Builds the same class as {@link #smallClass(String, int)} with every method body tracking its stack, writing
+     * its frames from the tracked types
+     */
+    public static JiteClass trackedClass(String className, int methods) {
+        JiteClass jiteClass = new JiteClass(className, p(Object.class), new String[]{p(Runnable.class)});
+        jiteClass.setTrackedFrames(true);
+        jiteClass.defineMethod("<init>", ACC_PUBLIC, sig(void.class), newCodeBlock()
+                .trackStack(className, ACC_PUBLIC, sig(void.class))
+                .aload(0)
+                .invokespecial(p(Object.class), "<init>", sig(void.class))
+                .voidreturn());
+        jiteClass.defineField("count", ACC_PUBLIC, ci(int.class), null);
+        jiteClass.defineField("name", ACC_PUBLIC | ACC_STATIC, ci(String.class), "shape");
+        for (int i = 0; i < methods; i++) {
+            CodeBlock block = newCodeBlock().trackStack(className, ACC_PUBLIC, sig(int.class, int.class, Object.class));
+            jiteClass.defineMethod("m" + i, ACC_PUBLIC, sig(int.class, int.class, Object.class), method(block, className, i));
+        }
+        jiteClass.defineMethod("run", ACC_PUBLIC, sig(void.class),
+                run(newCodeBlock().trackStack(className, ACC_PUBLIC, sig(void.class)), className));
+        return jiteClass;
+    }
+
+    /**
+     * Builds the same class as {@link #smallClass(String, int)} out of builders taken from the given pool
+     */
+    public static JiteClass pooledClass(BuilderPool pool, String className, int methods) {
+        JiteClass jiteClass = pool.jiteClass(className, p(Object.class), new String[]{p(Runnable.class)});
+        jiteClass.defineMethod("<init>", ACC_PUBLIC, sig(void.class), pool.codeBlock()
+                .aload(0)
+                .invokespecial(p(Object.class), "<init>", sig(void.class))
+                .voidreturn());
+        jiteClass.defineField("count", ACC_PUBLIC, ci(int.class), null);
+        jiteClass.defineField("name", ACC_PUBLIC | ACC_STATIC, ci(String.class), "shape");
+        for (int i = 0; i < methods; i++) {
+            jiteClass.defineMethod("m" + i, ACC_PUBLIC, sig(int.class, int.class, Object.class), method(pool.codeBlock(), className, i));
+        }
+        jiteClass.defineMethod("run", ACC_PUBLIC, sig(void.class), run(pool.codeBlock(), className));
+        return jiteClass;
+    }
+
+    private static JiteClass newClass(String className, int methods, boolean annotated) {
+        JiteClass jiteClass = new JiteClass(className, p(Object.class), new String[]{p(Runnable.class)});
+        jiteClass.defineDefaultConstructor();
+        jiteClass.defineField("count", ACC_PUBLIC, ci(int.class), null);
+        jiteClass.defineField("name", ACC_PUBLIC | ACC_STATIC, ci(String.class), "shape");
+        for (int i = 0; i < methods; i++) {
+            jiteClass.defineMethod("m" + i, ACC_PUBLIC, sig(int.class, int.class, Object.class),
+                    annotated ? annotatedMethod(className, i) : method(className, i));
+        }
+        jiteClass.defineMethod("run", ACC_PUBLIC, sig(void.class), run(newCodeBlock(), className));
+        return jiteClass;
+    }
+
+    private static CodeBlock run(CodeBlock block, String className) {
+        return block
+                .getstatic(p(System.class), "out", ci(PrintStream.class))
+                .getstatic(className, "name", ci(String.class))
+                .invokevirtual(p(PrintStream.class), "println", sig(void.class, String.class))
+                .voidreturn();
+    }
+
+    public static CodeBlock method(String className, int seed) {
+        return method(newCodeBlock(), className, seed);
+    }
+
+    public static CodeBlock method(CodeBlock block, String className, int seed) {
+        LabelNode negative = new LabelNode();
+        LabelNode done = new LabelNode();
+        return block
+                .iload(1)
+                .iflt(negative)
+                .aload(0)
+                .dup()
+                .getfield(className, "count", ci(int.class))
+                .iload(1)
+                .pushInt(seed)
+                .imul()
+                .iadd()
+                .putfield(className, "count", ci(int.class))
+                .aload(2)
+                .invokevirtual(p(Object.class), "hashCode", sig(int.class))
+                .go_to(done)
+                .label(negative)
+                .aload(2)
+                .checkcast(p(String.class))
+                .invokevirtual(p(String.class), "length", sig(int.class))
+                .label(done)
+                .ireturn();
+    }
+
+    public static CodeBlock annotatedMethod(String className, int seed) {
+        CodeBlock block = method(className, seed);
+        block.addAnnotation(annotation("Lbench/Route;", seed));
+        block.addAnnotation(annotation("Lbench/Timed;", seed));
+        return block;
+    }
+
+    private static VisibleAnnotation annotation(String desc, int seed) {
+        VisibleAnnotation annotation = new VisibleAnnotation(desc)
+                .value("value", "value" + seed)
+                .value("order", seed)
+                .enumValue("target", ElementType.FIELD);
+        annotation.arrayValue("tags", "a" + seed, "b" + seed, "c" + seed);
+        annotation.annotationValue("nested", "Lbench/Nested;").value("name", "nested" + seed);
+        return annotation;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.hierarchy.CachingTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassLoaderTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link JiteClass#toBytes} on an already built class: with ASM computing stack map frames on its own,
+ * with a caching resolver answering its type hierarchy questions, with frames written from the stack the builder
+ * tracked, and with only max stack and locals computed, the difference being what frame computation costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToBytesBenchmark {
+
+    @Param({"4", "32"})
+    public int methods;
+
+    private JiteClass jiteClass;
+    private JiteClass trackedClass;
+    private TypeHierarchyResolver resolver;
+
+    @Setup
+    public void setUp() {
+        jiteClass = Shapes.smallClass("bench/ToBytes", methods);
+        trackedClass = Shapes.trackedClass("bench/ToBytes", methods);
+        resolver = new CachingTypeHierarchyResolver(new ClassLoaderTypeHierarchyResolver(getClass().getClassLoader()));
+    }
+
+    @Benchmark
+    public byte[] computeFrames() {
+        return jiteClass.toBytes(JDKVersion.V1_6);
+    }
+
+    @Benchmark
+    public byte[] computeFramesWithResolver() {
+        return jiteClass.toBytes(JDKVersion.V1_6, resolver);
+    }
+
+    @Benchmark
+    public byte[] trackedFrames() {
+        return trackedClass.toBytes(JDKVersion.V1_6);
+    }
+
+    @Benchmark
+    public byte[] computeMaxs() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        jiteClass.accept(cw, JDKVersion.V1_6);
+        return cw.toByteArray();
+    }
+}
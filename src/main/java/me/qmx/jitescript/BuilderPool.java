@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A per-thread pool of {@link CodeBlock}s and {@link JiteClass}es, for code paths that build, emit and throw away
+ * classes over and over. Released builders are {@link CodeBlock#reset() reset} and handed out again, keeping the
+ * storage they have grown.
+ *
+ * A builder must only be released once nothing refers to it any more: in particular, classes added to a
+ * {@link JiteClassLoader} are emitted lazily, so they must not be released before they are defined.
+ */
+public final class BuilderPool {
+
+    private static final int DEFAULT_CODE_BLOCKS = 256;
+    private static final int DEFAULT_CLASSES = 16;
+
+    private static final ThreadLocal<BuilderPool> LOCAL = new ThreadLocal<BuilderPool>() {
+        @Override
+        protected BuilderPool initialValue() {
+            return new BuilderPool(DEFAULT_CODE_BLOCKS, DEFAULT_CLASSES);
+        }
+    };
+
+    private final Deque<CodeBlock> codeBlocks = new ArrayDeque<CodeBlock>();
+    private final Deque<JiteClass> classes = new ArrayDeque<JiteClass>();
+    private final int maxCodeBlocks;
+    private final int maxClasses;
+
+    /**
+     * Creates a pool for a single thread to use
+     *
+     * @param maxCodeBlocks the number of released code blocks kept for reuse, at most
+     * @param maxClasses    the number of released classes kept for reuse, at most
+     */
+    public BuilderPool(int maxCodeBlocks, int maxClasses) {
+        this.maxCodeBlocks = maxCodeBlocks;
+        this.maxClasses = maxClasses;
+    }
+
+    /**
+     * @return the pool of the current thread
+     */
+    public static BuilderPool local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * @return an empty code block
+     */
+    public CodeBlock codeBlock() {
+        CodeBlock block = codeBlocks.pollFirst();
+        if (block == null) {
+            return new CodeBlock();
+        }
+        block.pooled = false;
+        return block;
+    }
+
+    /**
+     * @return an empty class representation
+     * @see JiteClass#JiteClass(String, String, String[])
+     */
+    public JiteClass jiteClass(String className, String superClassName, String[] interfaces) {
+        JiteClass jiteClass = classes.pollFirst();
+        if (jiteClass == null) {
+            return new JiteClass(className, superClassName, interfaces);
+        }
+        jiteClass.pooled = false;
+        jiteClass.reset(className, superClassName, interfaces);
+        return jiteClass;
+    }
+
+    /**
+     * Gives the block back to the pool; releasing it again before it is handed out does nothing
+     */
+    public void release(CodeBlock block) {
+        if (!block.pooled && codeBlocks.size() < maxCodeBlocks) {
+            block.pooled = true;
+            codeBlocks.addFirst(block.reset());
+        }
+    }
+
+    /**
+     * Gives the class back to the pool, along with the code blocks of its methods. Child classes are left alone.
+     */
+    public void release(JiteClass jiteClass) {
+        for (MethodDefinition method : jiteClass.getMethods()) {
+            release(method.getMethodBody());
+        }
+        if (!jiteClass.pooled && classes.size() < maxClasses) {
+            jiteClass.pooled = true;
+            jiteClass.reset(null, null, JiteClass.INTERFACES);
+            classes.addFirst(jiteClass);
+        }
+    }
+}
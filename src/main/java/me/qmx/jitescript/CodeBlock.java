@@ -15,9 +15,24 @@
  */
 package me.qmx.jitescript;
 
+import me.qmx.jitescript.hierarchy.CachingTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassLoaderTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.TypeHierarchy;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+import me.qmx.jitescript.opt.CodeOptimizer;
+import me.qmx.jitescript.opt.ConstantFolder;
+import me.qmx.jitescript.opt.Instructions;
+import me.qmx.jitescript.opt.PeepholeOptimizer;
+import me.qmx.jitescript.opt.UnreachableCodeEliminator;
+import me.qmx.jitescript.runtime.InlineCache;
+import me.qmx.jitescript.runtime.LazyConstants;
+import me.qmx.jitescript.runtime.SwitchPointRegistry;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.IincInsnNode;
@@ -39,8 +54,17 @@ import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
 import java.io.PrintStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static me.qmx.jitescript.util.CodegenUtils.ci;
 import static me.qmx.jitescript.util.CodegenUtils.p;
@@ -51,12 +75,41 @@ import static me.qmx.jitescript.util.CodegenUtils.sig;
  * @author qmx
  */
 public class CodeBlock implements Opcodes {
+    /** The recipe character standing for the next argument, in {@link #concat(JDKVersion, String, Class[])} */
+    public static final char CONCAT_ARGUMENT = '\u0001';
+    private static final char CONCAT_CONSTANT = '\u0002';
+    // the fewest keys a dense run of a sparse switch needs to get a table of its own
+    private static final int MIN_TABLE_KEYS = 4;
+    // StringConcatFactory takes at most 200 argument slots
+    private static final int MAX_CONCAT_SLOTS = 200;
+    private static final Handle LAMBDA_BOOTSTRAP = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory",
+            "metafactory", sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class,
+                    MethodType.class, MethodHandle.class, MethodType.class), false);
+    private static final Handle INLINE_CACHE_BOOTSTRAP = new Handle(H_INVOKESTATIC, p(InlineCache.class), "bootstrap",
+            sig(InlineCache.class, MethodHandles.Lookup.class, String.class, MethodType.class, int.class), false);
+    private static final Handle GUARDED_INLINE_CACHE_BOOTSTRAP = new Handle(H_INVOKESTATIC, p(InlineCache.class),
+            "bootstrap", sig(InlineCache.class, MethodHandles.Lookup.class, String.class, MethodType.class, int.class,
+                    String.class), false);
+    private static final Handle GUARDED_CONSTANT_BOOTSTRAP = new Handle(H_INVOKESTATIC, p(LazyConstants.class),
+            "guardedBootstrap", sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class,
+                    MethodHandle.class, String.class), false);
+    static final Handle LAZY_CONSTANT_BOOTSTRAP = new Handle(H_INVOKESTATIC, p(LazyConstants.class), "bootstrap",
+            sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, MethodHandle.class), false);
+    private static final Handle STRING_CONCAT_BOOTSTRAP = new Handle(H_INVOKESTATIC, "java/lang/invoke/StringConcatFactory",
+            "makeConcatWithConstants", sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class,
+                    String.class, Object[].class), false);
+
     private final InsnList instructionList = new InsnList();
+    // instructions are kept compact until someone asks for the instruction list, and in it from then on
+    private InstructionBuffer instructionBuffer = new InstructionBuffer();
     private final List<TryCatchBlockNode> tryCatchBlockList = new ArrayList<TryCatchBlockNode>();
     private final List<LocalVariableNode> localVariableList = new ArrayList<LocalVariableNode>();
     private final List<VisibleAnnotation> annotations = new ArrayList<VisibleAnnotation>();
+    private LocalAllocator locals;
+    private StackTracker stackTracker;
     private int arity = 0;
     private boolean returns = false;
+    boolean pooled;
 
     public CodeBlock() {
     }
@@ -94,68 +147,92 @@ public class CodeBlock implements Opcodes {
         return this;
     }
 
+    /**
+     * Returns the allocator handing out the local variable slots of this block, creating it on the first call.
+     * Scopes still open when the block is emitted are closed at its end.
+     */
+    public LocalAllocator locals() {
+        if (locals == null) {
+            locals = new LocalAllocator(this);
+        }
+        return locals;
+    }
+
+    public CodeBlock load(final LocalAllocator.Local local) {
+        addVarInsn(local.getLoadOpcode(), local.getIndex());
+        return this;
+    }
+
+    public CodeBlock store(final LocalAllocator.Local local) {
+        addVarInsn(local.getStoreOpcode(), local.getIndex());
+        if (locals != null) {
+            locals.stored(local);
+        }
+        return this;
+    }
+
     public CodeBlock aload(final int index) {
-        instructionList.add(new VarInsnNode(ALOAD, index));
+        addVarInsn(ALOAD, index);
         return this;
     }
 
     public CodeBlock iload(final int index) {
-        instructionList.add(new VarInsnNode(ILOAD, index));
+        addVarInsn(ILOAD, index);
         return this;
     }
 
     public CodeBlock lload(final int index) {
-        instructionList.add(new VarInsnNode(LLOAD, index));
+        addVarInsn(LLOAD, index);
         return this;
     }
 
     public CodeBlock fload(final int index) {
-        instructionList.add(new VarInsnNode(FLOAD, index));
+        addVarInsn(FLOAD, index);
         return this;
     }
 
     public CodeBlock dload(final int index) {
-        instructionList.add(new VarInsnNode(DLOAD, index));
+        addVarInsn(DLOAD, index);
         return this;
     }
 
     public CodeBlock astore(final int index) {
-        instructionList.add(new VarInsnNode(ASTORE, index));
+        addVarInsn(ASTORE, index);
         return this;
     }
 
     public CodeBlock istore(final int index) {
-        instructionList.add(new VarInsnNode(ISTORE, index));
+        addVarInsn(ISTORE, index);
         return this;
     }
 
     public CodeBlock lstore(final int index) {
-        instructionList.add(new VarInsnNode(LSTORE, index));
+        addVarInsn(LSTORE, index);
         return this;
     }
 
     public CodeBlock fstore(final int index) {
-        instructionList.add(new VarInsnNode(FSTORE, index));
+        addVarInsn(FSTORE, index);
         return this;
     }
 
     public CodeBlock dstore(final int index) {
-        instructionList.add(new VarInsnNode(DSTORE, index));
+        addVarInsn(DSTORE, index);
         return this;
     }
 
     public CodeBlock ldc(final Object value) {
-        instructionList.add(new LdcInsnNode(value));
+        addLdcInsn(value);
         return this;
     }
 
     public CodeBlock bipush(final int byteValue) {
-        instructionList.add(new IntInsnNode(BIPUSH, byteValue));
+        addIntInsn(BIPUSH, byteValue);
         return this;
     }
 
     public CodeBlock sipush(final int shortValue) {
-        instructionList.add(new IntInsnNode(SIPUSH, shortValue));
+        addIntInsn(SIPUSH, shortValue);
         return this;
     }
 
@@ -205,31 +282,302 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock invokestatic(final String className, final String methodName, final String methodDesc) {
-        instructionList.add(new MethodInsnNode(INVOKESTATIC, className, methodName, methodDesc, false));
+        addMethodInsn(INVOKESTATIC, className, methodName, methodDesc, false);
         return this;
     }
 
     public CodeBlock invokespecial(final String className, final String methodName, final String methodDesc) {
-        instructionList.add(new MethodInsnNode(INVOKESPECIAL, className, methodName, methodDesc, false));
+        addMethodInsn(INVOKESPECIAL, className, methodName, methodDesc, false);
         return this;
     }
 
     public CodeBlock invokevirtual(final String className, final String methodName, final String methodDesc) {
-        instructionList.add(new MethodInsnNode(INVOKEVIRTUAL, className, methodName, methodDesc, false));
+        addMethodInsn(INVOKEVIRTUAL, className, methodName, methodDesc, false);
         return this;
     }
 
     public CodeBlock invokeinterface(final String className, final String methodName, final String methodDesc) {
-        instructionList.add(new MethodInsnNode(INVOKEINTERFACE, className, methodName, methodDesc, true));
+        addMethodInsn(INVOKEINTERFACE, className, methodName, methodDesc, true);
         return this;
     }
 
     public CodeBlock invokedynamic(final String name, final String descriptor, final Handle bootstrapMethod,
             final Object... bootstrapArguments) {
-        instructionList.add(new InvokeDynamicInsnNode(name, descriptor, bootstrapMethod, bootstrapArguments));
+        addInvokeDynamicInsn(name, descriptor, bootstrapMethod, bootstrapArguments);
         return this;
     }
 
+    /**
+     * Pushes a constant computed by the given factory the first time this instruction runs, and then folded into the
+     * code like any other constant. This takes an invokedynamic site bound to the value for good, in place of a static
+     * field and the static initializer filling it in.
+     *
+     * @param name    the name of the constant, for stack traces and tools
+     * @param type    the type of the constant
+     * @param factory a static method taking nothing and returning the constant, such as one from
+     *                {@link JiteClass#defineConstantFactory}
+     * @see LazyConstants
+     */
+    public CodeBlock lazyConstant(final String name, final Class<?> type, final Handle factory) {
+        return invokedynamic(name, sig(type), LAZY_CONSTANT_BOOTSTRAP, factory);
+    }
+
+    /**
+     * Pushes a constant computed by the given factory, like {@link #lazyConstant}, except that it is computed again
+     * after the given group of the {@link SwitchPointRegistry#global() global switch point registry} is invalidated.
+     * Until then, the JIT folds it like any other constant, with no check of its own.
+     *
+     * @param name    the name of the constant, for stack traces and tools
+     * @param type    the type of the constant
+     * @param factory a static method taking nothing and returning the constant
+     * @param group   the group whose invalidation makes the constant stale
+     */
+    public CodeBlock guardedConstant(final String name, final Class<?> type, final Handle factory, final String group) {
+        return invokedynamic(name, sig(type), GUARDED_CONSTANT_BOOTSTRAP, factory, group);
+    }
+
+    /**
+     * Calls the public instance method of the given name on the receiver, whatever its class, through an
+     * {@link InlineCache} caching up to {@link InlineCache#DEFAULT_DEPTH} receiver classes.
+     *
+     * @param name       the name of the method to call
+     * @param descriptor the type of the call, taking the receiver first
+     */
+    public CodeBlock dynamicCall(final String name, final String descriptor) {
+        return dynamicCall(name, descriptor, InlineCache.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Calls the public instance method of the given name on the receiver, whatever its class, through an
+     * {@link InlineCache}. The receiver and arguments have to be on the stack, the receiver first.
+     *
+     * @param name       the name of the method to call
+     * @param descriptor the type of the call, taking the receiver first
+     * @param depth      the number of receiver classes to cache before looking every call up
+     */
+    public CodeBlock dynamicCall(final String name, final String descriptor, final int depth) {
+        return invokedynamic(name, descriptor, INLINE_CACHE_BOOTSTRAP, depth);
+    }
+
+    /**
+     * Calls a method like {@link #dynamicCall(String, String, int)}, emptying the cache whenever the given group of
+     * the {@link SwitchPointRegistry#global() global switch point registry} is invalidated.
+     *
+     * @param name       the name of the method to call
+     * @param descriptor the type of the call, taking the receiver first
+     * @param depth      the number of receiver classes to cache before looking every call up
+     * @param group      the group whose invalidation empties the cache
+     */
+    public CodeBlock dynamicCall(final String name, final String descriptor, final int depth, final String group) {
+        return invokedynamic(name, descriptor, GUARDED_INLINE_CACHE_BOOTSTRAP, depth, group);
+    }
+
+    /**
+     * Creates an instance of a functional interface through {@code LambdaMetafactory.metafactory}, the way javac
+     * compiles lambdas and method references. Whatever parameters of the implementation the interface method doesn't
+     * provide, receiver included, are captured from the stack; without any, the JDK hands out a single instance.
+     *
+     * @param functionalInterface the interface to implement, with a single abstract method
+     * @param impl                the method implementing it, such as one from {@link JiteClass#defineLambda}
+     * @throws IllegalArgumentException if the type is not a functional interface, or the implementation takes fewer
+     *                                  parameters than its method
+     */
+    public CodeBlock lambda(final Class<?> functionalInterface, final Handle impl) {
+        final Method method = functionalMethod(functionalInterface);
+        final Type samType = Type.getType(method);
+        final Type[] samArguments = samType.getArgumentTypes();
+        final List<Type> implArguments = new ArrayList<Type>(Arrays.asList(Type.getArgumentTypes(impl.getDesc())));
+        Type implReturn = Type.getReturnType(impl.getDesc());
+        switch (impl.getTag()) {
+            case H_INVOKEVIRTUAL:
+            case H_INVOKEINTERFACE:
+            case H_INVOKESPECIAL:
+                implArguments.add(0, Type.getObjectType(impl.getOwner()));
+                break;
+            case H_NEWINVOKESPECIAL:
+                implReturn = Type.getObjectType(impl.getOwner());
+                break;
+            default:
+        }
+        final int captured = implArguments.size() - samArguments.length;
+        if (captured < 0) {
+            throw new IllegalArgumentException(impl.getName() + " takes fewer parameters than " + method);
+        }
+        final Type[] instantiatedArguments = new Type[samArguments.length];
+        for (int i = 0; i < samArguments.length; i++) {
+            instantiatedArguments[i] = instantiatedType(samArguments[i], implArguments.get(captured + i));
+        }
+        final Type samReturn = samType.getReturnType();
+        final Type instantiatedReturn = samReturn.getSort() == Type.VOID ? samReturn : instantiatedType(samReturn, implReturn);
+        final Type[] capturedTypes = implArguments.subList(0, captured).toArray(new Type[captured]);
+        return invokedynamic(method.getName(), Type.getMethodDescriptor(Type.getType(functionalInterface), capturedTypes),
+                LAMBDA_BOOTSTRAP, samType, impl, Type.getMethodType(instantiatedReturn, instantiatedArguments));
+    }
+
+    private static Method functionalMethod(final Class<?> type) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+        Method functional = null;
+        for (final Method method : type.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                continue;
+            }
+            if (functional != null && !Type.getType(functional).equals(Type.getType(method))) {
+                throw new IllegalArgumentException(type.getName() + " has more than one abstract method");
+            }
+            functional = method;
+        }
+        if (functional == null) {
+            throw new IllegalArgumentException(type.getName() + " has no abstract method");
+        }
+        return functional;
+    }
+
+    private static boolean isObjectMethod(final Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the implementation type, boxed where the interface method takes or returns a reference
+     */
+    private static Type instantiatedType(final Type samType, final Type implType) {
+        final boolean samReference = samType.getSort() == Type.OBJECT || samType.getSort() == Type.ARRAY;
+        final boolean implPrimitive = implType.getSort() != Type.OBJECT && implType.getSort() != Type.ARRAY;
+        if (samReference && implPrimitive) {
+            return Type.getType(ci(boxed(implType)));
+        }
+        return implType;
+    }
+
+    private static Class<?> boxed(final Type primitive) {
+        switch (primitive.getSort()) {
+            case Type.BOOLEAN:
+                return Boolean.class;
+            case Type.CHAR:
+                return Character.class;
+            case Type.BYTE:
+                return Byte.class;
+            case Type.SHORT:
+                return Short.class;
+            case Type.INT:
+                return Integer.class;
+            case Type.FLOAT:
+                return Float.class;
+            case Type.LONG:
+                return Long.class;
+            default:
+                return Double.class;
+        }
+    }
+
+    /**
+     * Concatenates the arguments on the stack into a string, through a StringBuilder
+     *
+     * @see #concat(JDKVersion, String, Class[])
+     */
+    public CodeBlock concat(final String recipe, final Class<?>... argTypes) {
+        return concat(JDKVersion.V1_6, recipe, argTypes);
+    }
+
+    /**
+     * Concatenates the arguments on the stack into a string, the way javac does for the given target: through
+     * {@code StringConcatFactory.makeConcatWithConstants} from Java 9 on, and through a StringBuilder presized from
+     * the recipe and argument types before. The StringBuilder sequence keeps the arguments in temporaries from
+     * {@link #locals()}, so the parameters of the method must have been allocated there.
+     *
+     * @param target   the class file version the block will be written as
+     * @param recipe   the text to build, with {@link #CONCAT_ARGUMENT} standing for each argument in turn
+     * @param argTypes the types of the arguments, pushed in recipe order
+     * @throws IllegalArgumentException if the recipe doesn't use every argument exactly once
+     */
+    public CodeBlock concat(final JDKVersion target, final String recipe, final Class<?>... argTypes) {
+        int arguments = 0;
+        int slots = 0;
+        for (int i = 0; i < recipe.length(); i++) {
+            if (recipe.charAt(i) == CONCAT_ARGUMENT) {
+                arguments++;
+            } else if (recipe.charAt(i) == CONCAT_CONSTANT) {
+                throw new IllegalArgumentException("concat recipes don't take constants, only text and arguments");
+            }
+        }
+        if (arguments != argTypes.length) {
+            throw new IllegalArgumentException("recipe has " + arguments + " arguments, but " + argTypes.length + " types were given");
+        }
+        for (final Class<?> argType : argTypes) {
+            slots += argType == long.class || argType == double.class ? 2 : 1;
+        }
+        if (target.isAtLeast(JDKVersion.V9) && slots <= MAX_CONCAT_SLOTS) {
+            return invokedynamic("makeConcatWithConstants", sig(String.class, argTypes), STRING_CONCAT_BOOTSTRAP, recipe);
+        }
+        return concatWithStringBuilder(recipe, argTypes);
+    }
+
+    private CodeBlock concatWithStringBuilder(final String recipe, final Class<?>... argTypes) {
+        if (locals == null) {
+            throw new IllegalStateException("concat needs the parameters of the method allocated with locals()");
+        }
+        final LocalAllocator.Local[] temps = new LocalAllocator.Local[argTypes.length];
+        int capacity = recipe.length() - argTypes.length;
+        locals.enterScope();
+        for (int i = 0; i < argTypes.length; i++) {
+            temps[i] = locals.temp(argTypes[i]);
+            capacity += estimatedLength(argTypes[i]);
+        }
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            store(temps[i]);
+        }
+        newobj(p(StringBuilder.class)).dup().pushInt(capacity).invokespecial(p(StringBuilder.class), "<init>", sig(void.class, int.class));
+        int start = 0;
+        int argument = 0;
+        for (int i = 0; i <= recipe.length(); i++) {
+            if (i < recipe.length() && recipe.charAt(i) != CONCAT_ARGUMENT) {
+                continue;
+            }
+            if (i - start == 1) {
+                pushInt(recipe.charAt(start)).invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, char.class));
+            } else if (i > start) {
+                ldc(recipe.substring(start, i)).invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, String.class));
+            }
+            if (i < recipe.length()) {
+                final Class<?> argType = argTypes[argument];
+                load(temps[argument++]).invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, appendType(argType)));
+            }
+            start = i + 1;
+        }
+        locals.exitScope();
+        return invokevirtual(p(StringBuilder.class), "toString", sig(String.class));
+    }
+
+    private static Class<?> appendType(final Class<?> type) {
+        if (type == byte.class || type == short.class) {
+            return int.class;
+        }
+        if (type.isPrimitive() || type == String.class) {
+            return type;
+        }
+        // char[] and CharSequence would be appended by contents, where concatenation takes their string value
+        return Object.class;
+    }
+
+    private static int estimatedLength(final Class<?> type) {
+        if (type == char.class) {
+            return 1;
+        } else if (type == boolean.class) {
+            return 5;
+        } else if (type == byte.class || type == short.class || type == int.class) {
+            return 11;
+        } else if (type == long.class) {
+            return 20;
+        }
+        return 16;
+    }
+
     public CodeBlock aprintln() {
         dup();
         getstatic(p(System.class), "out", ci(PrintStream.class));
@@ -248,42 +596,42 @@ public class CodeBlock implements Opcodes {
 
     public CodeBlock areturn() {
         returns = true;
-        instructionList.add(new InsnNode(ARETURN));
+        addInsn(ARETURN);
         return this;
     }
 
     public CodeBlock ireturn() {
-        instructionList.add(new InsnNode(IRETURN));
+        addInsn(IRETURN);
         return this;
     }
 
     public CodeBlock freturn() {
-        instructionList.add(new InsnNode(FRETURN));
+        addInsn(FRETURN);
         return this;
     }
 
     public CodeBlock lreturn() {
-        instructionList.add(new InsnNode(LRETURN));
+        addInsn(LRETURN);
         return this;
     }
 
     public CodeBlock dreturn() {
-        instructionList.add(new InsnNode(DRETURN));
+        addInsn(DRETURN);
         return this;
     }
 
     public CodeBlock newobj(final String desc) {
-        instructionList.add(new TypeInsnNode(NEW, desc));
+        addTypeInsn(NEW, desc);
         return this;
     }
 
     public CodeBlock dup() {
-        instructionList.add(new InsnNode(DUP));
+        addInsn(DUP);
         return this;
     }
 
     public CodeBlock swap() {
-        instructionList.add(new InsnNode(SWAP));
+        addInsn(SWAP);
         return this;
     }
 
@@ -294,263 +642,262 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock getstatic(final String className, final String fieldName, final String fieldDesc) {
-        instructionList.add(new FieldInsnNode(GETSTATIC, className, fieldName, fieldDesc));
+        addFieldInsn(GETSTATIC, className, fieldName, fieldDesc);
         return this;
     }
 
     public CodeBlock putstatic(final String className, final String fieldName, final String fieldDesc) {
-        instructionList.add(new FieldInsnNode(PUTSTATIC, className, fieldName, fieldDesc));
+        addFieldInsn(PUTSTATIC, className, fieldName, fieldDesc);
         return this;
     }
 
     public CodeBlock getfield(final String className, final String fieldName, final String fieldDesc) {
-        instructionList.add(new FieldInsnNode(GETFIELD, className, fieldName, fieldDesc));
+        addFieldInsn(GETFIELD, className, fieldName, fieldDesc);
         return this;
     }
 
     public CodeBlock putfield(final String className, final String fieldName, final String fieldDesc) {
-        instructionList.add(new FieldInsnNode(PUTFIELD, className, fieldName, fieldDesc));
+        addFieldInsn(PUTFIELD, className, fieldName, fieldDesc);
         return this;
     }
 
     public CodeBlock voidreturn() {
-        instructionList.add(new InsnNode(RETURN));
+        addInsn(RETURN);
         return this;
     }
 
     public CodeBlock anewarray(final String arrayDesc) {
-        instructionList.add(new TypeInsnNode(ANEWARRAY, arrayDesc));
+        addTypeInsn(ANEWARRAY, arrayDesc);
         return this;
     }
 
     public CodeBlock multianewarray(final String arrayDesc, final int dims) {
-        instructionList.add(new MultiANewArrayInsnNode(arrayDesc, dims));
+        addMultiANewArrayInsn(arrayDesc, dims);
         return this;
     }
 
     public CodeBlock newarray(final int size) {
-        instructionList.add(new IntInsnNode(NEWARRAY, size));
+        addIntInsn(NEWARRAY, size);
         return this;
     }
 
     public CodeBlock iconst_m1() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_M1));
+        addInsn(Opcodes.ICONST_M1);
         return this;
     }
 
     public CodeBlock iconst_0() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_0));
+        addInsn(Opcodes.ICONST_0);
         return this;
     }
 
     public CodeBlock iconst_1() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_1));
+        addInsn(Opcodes.ICONST_1);
         return this;
     }
 
     public CodeBlock iconst_2() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_2));
+        addInsn(Opcodes.ICONST_2);
         return this;
     }
 
     public CodeBlock iconst_3() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_3));
+        addInsn(Opcodes.ICONST_3);
         return this;
     }
 
     public CodeBlock iconst_4() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_4));
+        addInsn(Opcodes.ICONST_4);
         return this;
     }
 
     public CodeBlock iconst_5() {
-        instructionList.add(new InsnNode(Opcodes.ICONST_5));
+        addInsn(Opcodes.ICONST_5);
         return this;
     }
 
     public CodeBlock lconst_0() {
-        instructionList.add(new InsnNode(Opcodes.LCONST_0));
+        addInsn(Opcodes.LCONST_0);
         return this;
     }
 
     public CodeBlock aconst_null() {
-        instructionList.add(new InsnNode(Opcodes.ACONST_NULL));
+        addInsn(Opcodes.ACONST_NULL);
         return this;
     }
 
     public CodeBlock label(final LabelNode labelNode) {
-        instructionList.add(labelNode);
+        addLabel(labelNode);
         return this;
     }
 
     public CodeBlock nop() {
-        instructionList.add(new InsnNode(Opcodes.NOP));
+        addInsn(Opcodes.NOP);
         return this;
     }
 
     public CodeBlock pop() {
-        instructionList.add(new InsnNode(POP));
+        addInsn(POP);
         return this;
     }
 
     public CodeBlock pop2() {
-        instructionList.add(new InsnNode(POP2));
+        addInsn(POP2);
         return this;
     }
 
     public CodeBlock arrayload() {
-        instructionList.add(new InsnNode(AALOAD));
+        addInsn(AALOAD);
         return this;
     }
 
     public CodeBlock arraystore() {
-        instructionList.add(new InsnNode(AASTORE));
+        addInsn(AASTORE);
         return this;
     }
 
     public CodeBlock iarrayload() {
-        instructionList.add(new InsnNode(IALOAD));
+        addInsn(IALOAD);
         return this;
     }
 
     public CodeBlock barrayload() {
-        instructionList.add(new InsnNode(BALOAD));
+        addInsn(BALOAD);
         return this;
     }
 
     public CodeBlock barraystore() {
-        instructionList.add(new InsnNode(BASTORE));
+        addInsn(BASTORE);
         return this;
     }
 
     public CodeBlock aaload() {
-        instructionList.add(new InsnNode(AALOAD));
+        addInsn(AALOAD);
         return this;
     }
 
     public CodeBlock aastore() {
-        instructionList.add(new InsnNode(AASTORE));
+        addInsn(AASTORE);
         return this;
     }
 
     public CodeBlock iaload() {
-        instructionList.add(new InsnNode(IALOAD));
+        addInsn(IALOAD);
         return this;
     }
 
     public CodeBlock iastore() {
-        instructionList.add(new InsnNode(IASTORE));
+        addInsn(IASTORE);
         return this;
     }
 
     public CodeBlock laload() {
-        instructionList.add(new InsnNode(LALOAD));
+        addInsn(LALOAD);
         return this;
     }
 
     public CodeBlock lastore() {
-        instructionList.add(new InsnNode(LASTORE));
+        addInsn(LASTORE);
         return this;
     }
 
     public CodeBlock baload() {
-        instructionList.add(new InsnNode(BALOAD));
+        addInsn(BALOAD);
         return this;
     }
 
     public CodeBlock bastore() {
-        instructionList.add(new InsnNode(BASTORE));
+        addInsn(BASTORE);
         return this;
     }
 
     public CodeBlock saload() {
-        instructionList.add(new InsnNode(SALOAD));
+        addInsn(SALOAD);
         return this;
     }
 
     public CodeBlock sastore() {
-        instructionList.add(new InsnNode(SASTORE));
+        addInsn(SASTORE);
         return this;
     }
 
     public CodeBlock caload() {
-        instructionList.add(new InsnNode(CALOAD));
+        addInsn(CALOAD);
         return this;
     }
 
     public CodeBlock castore() {
-        instructionList.add(new InsnNode(CASTORE));
+        addInsn(CASTORE);
         return this;
     }
 
     public CodeBlock faload() {
-        instructionList.add(new InsnNode(FALOAD));
+        addInsn(FALOAD);
         return this;
     }
 
     public CodeBlock fastore() {
-        instructionList.add(new InsnNode(FASTORE));
+        addInsn(FASTORE);
         return this;
     }
 
     public CodeBlock daload() {
-        instructionList.add(new InsnNode(DALOAD));
+        addInsn(DALOAD);
         return this;
     }
 
     public CodeBlock dastore() {
-        instructionList.add(new InsnNode(DASTORE));
+        addInsn(DASTORE);
         return this;
     }
 
     public CodeBlock fcmpl() {
-        instructionList.add(new InsnNode(FCMPL));
+        addInsn(FCMPL);
         return this;
     }
 
     public CodeBlock fcmpg() {
-        instructionList.add(new InsnNode(FCMPG));
+        addInsn(FCMPG);
         return this;
     }
 
     public CodeBlock dcmpl() {
-        instructionList.add(new InsnNode(DCMPL));
+        addInsn(DCMPL);
         return this;
     }
 
     public CodeBlock dcmpg() {
-        instructionList.add(new InsnNode(DCMPG));
+        addInsn(DCMPG);
         return this;
     }
 
     public CodeBlock dup_x2() {
-        instructionList.add(new InsnNode(DUP_X2));
+        addInsn(DUP_X2);
         return this;
     }
 
     public CodeBlock dup_x1() {
-        instructionList.add(new InsnNode(DUP_X1));
+        addInsn(DUP_X1);
         return this;
     }
 
     public CodeBlock dup2_x2() {
-        instructionList.add(new InsnNode(DUP2_X2));
+        addInsn(DUP2_X2);
         return this;
     }
 
     public CodeBlock dup2_x1() {
-        instructionList.add(new InsnNode(DUP2_X1));
+        addInsn(DUP2_X1);
         return this;
     }
 
     public CodeBlock dup2() {
-        instructionList.add(new InsnNode(DUP2));
+        addInsn(DUP2);
         return this;
     }
 
     public CodeBlock trycatch(final LabelNode scopeStart, final LabelNode scopeEnd, final LabelNode handler, final String exceptionType) {
-        tryCatchBlockList.add(new TryCatchBlockNode(scopeStart, scopeEnd, handler, exceptionType));
-        return this;
+        return visitTryCatchBlock(scopeStart, scopeEnd, handler, exceptionType);
     }
 
     public CodeBlock trycatch(final String exceptionType, final Runnable body, final Runnable catchBody) {
@@ -573,27 +920,189 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock go_to(final LabelNode label) {
-        instructionList.add(new JumpInsnNode(GOTO, label));
+        addJumpInsn(GOTO, label);
         return this;
     }
 
     public CodeBlock lookupswitch(final LabelNode defaultHandler, final int[] keys, final LabelNode[] handlers) {
-        instructionList.add(new LookupSwitchInsnNode(defaultHandler, keys, handlers));
+        addLookupSwitchInsn(defaultHandler, keys, handlers);
+        return this;
+    }
+
+    /**
+     * Jumps to the target of the int on the stack, through a tableswitch or a lookupswitch picked with javac's cost
+     * heuristic. When the keys are too sparse for a single table but hold dense runs, the runs get tables of their
+     * own, and the key is routed to them by binary search.
+     *
+     * @param keys    the case keys, in any order
+     * @param targets the label of each key
+     * @param dflt    the label for any other value
+     * @throws IllegalArgumentException if keys and targets don't match up, or a key appears twice
+     */
+    public CodeBlock switchOn(final int[] keys, final LabelNode[] targets, final LabelNode dflt) {
+        if (keys.length != targets.length) {
+            throw new IllegalArgumentException(keys.length + " keys for " + targets.length + " targets");
+        }
+        if (keys.length == 0) {
+            return pop().go_to(dflt);
+        }
+        // sorts the keys along with the index of their target
+        final long[] cases = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            cases[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(cases);
+        final int[] sortedKeys = new int[keys.length];
+        final LabelNode[] sortedTargets = new LabelNode[keys.length];
+        for (int i = 0; i < cases.length; i++) {
+            sortedKeys[i] = (int) (cases[i] >> 32);
+            sortedTargets[i] = targets[(int) cases[i]];
+            if (i > 0 && sortedKeys[i] == sortedKeys[i - 1]) {
+                throw new IllegalArgumentException("duplicate case key " + sortedKeys[i]);
+            }
+        }
+        final List<int[]> segments = switchSegments(sortedKeys);
+        switchOn(sortedKeys, sortedTargets, dflt, segments, 0, segments.size());
         return this;
     }
 
+    /**
+     * Jumps to the target of the string on the stack the way javac compiles string switches: through a switch on its
+     * hash code, then equals calls among the keys sharing that hash code.
+     *
+     * @param keys    the case keys, in any order
+     * @param targets the label of each key
+     * @param dflt    the label for any other string
+     * @throws IllegalArgumentException if keys and targets don't match up, or a key appears twice
+     */
+    public CodeBlock switchOn(final String[] keys, final LabelNode[] targets, final LabelNode dflt) {
+        if (keys.length != targets.length) {
+            throw new IllegalArgumentException(keys.length + " keys for " + targets.length + " targets");
+        }
+        final Map<Integer, List<Integer>> buckets = new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < keys.length; i++) {
+            List<Integer> bucket = buckets.get(keys[i].hashCode());
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>();
+                buckets.put(keys[i].hashCode(), bucket);
+            }
+            for (final Integer other : bucket) {
+                if (keys[other].equals(keys[i])) {
+                    throw new IllegalArgumentException("duplicate case key " + keys[i]);
+                }
+            }
+            bucket.add(i);
+        }
+        final int[] hashes = new int[buckets.size()];
+        final LabelNode[] bucketLabels = new LabelNode[buckets.size()];
+        int index = 0;
+        for (final Integer hash : buckets.keySet()) {
+            hashes[index] = hash;
+            bucketLabels[index++] = new LabelNode();
+        }
+        final LabelNode noMatch = new LabelNode();
+        dup().invokevirtual(p(String.class), "hashCode", sig(int.class)).switchOn(hashes, bucketLabels, noMatch);
+        index = 0;
+        for (final List<Integer> bucket : buckets.values()) {
+            label(bucketLabels[index++]);
+            for (final Integer key : bucket) {
+                final LabelNode next = new LabelNode();
+                dup().ldc(keys[key]).invokevirtual(p(String.class), "equals", sig(boolean.class, Object.class)).ifeq(next)
+                        .pop()
+                        .go_to(targets[key])
+                        .label(next);
+            }
+            if (index < bucketLabels.length) {
+                go_to(noMatch);
+            }
+        }
+        return label(noMatch).pop().go_to(dflt);
+    }
+
+    private void switchOn(final int[] keys, final LabelNode[] targets, final LabelNode dflt, final List<int[]> segments,
+            final int from, final int to) {
+        if (to - from > 1) {
+            final int middle = (from + to) >>> 1;
+            final LabelNode upper = new LabelNode();
+            dup().pushInt(keys[segments.get(middle)[0]]).if_icmpge(upper);
+            switchOn(keys, targets, dflt, segments, from, middle);
+            label(upper);
+            switchOn(keys, targets, dflt, segments, middle, to);
+            return;
+        }
+        final int first = segments.get(from)[0];
+        final int last = segments.get(from)[1] - 1;
+        if (prefersTable(keys[first], keys[last], last - first + 1)) {
+            final LabelNode[] table = new LabelNode[keys[last] - keys[first] + 1];
+            Arrays.fill(table, dflt);
+            for (int i = first; i <= last; i++) {
+                table[keys[i] - keys[first]] = targets[i];
+            }
+            tableswitch(keys[first], keys[last], dflt, table);
+        } else {
+            lookupswitch(dflt, Arrays.copyOfRange(keys, first, last + 1), Arrays.copyOfRange(targets, first, last + 1));
+        }
+    }
+
+    /**
+     * Splits sorted keys into dense runs and the sparse stretches between them, as {from, to} index ranges
+     */
+    private static List<int[]> switchSegments(final int[] keys) {
+        final List<int[]> segments = new ArrayList<int[]>();
+        if (prefersTable(keys[0], keys[keys.length - 1], keys.length)) {
+            segments.add(new int[]{0, keys.length});
+            return segments;
+        }
+        int sparseStart = 0;
+        int start = 0;
+        while (start < keys.length) {
+            // the longest run from here that still makes a table, knowing that a table may cost 5 slots a key at most
+            int end = start + 1;
+            for (int i = start + 1; i < keys.length && (long) keys[i] - keys[start] <= 5L * (keys.length - start); i++) {
+                if (prefersTable(keys[start], keys[i], i - start + 1)) {
+                    end = i + 1;
+                }
+            }
+            if (end - start < MIN_TABLE_KEYS) {
+                start++;
+                continue;
+            }
+            if (sparseStart < start) {
+                segments.add(new int[]{sparseStart, start});
+            }
+            segments.add(new int[]{start, end});
+            sparseStart = end;
+            start = end;
+        }
+        if (sparseStart < keys.length) {
+            segments.add(new int[]{sparseStart, keys.length});
+        }
+        return segments;
+    }
+
+    /**
+     * javac's choice between tableswitch and lookupswitch, weighing time three times as much as space
+     */
+    private static boolean prefersTable(final long lo, final long hi, final int count) {
+        final long tableSpaceCost = 4 + (hi - lo + 1);
+        final long tableTimeCost = 3;
+        final long lookupSpaceCost = 3 + 2 * (long) count;
+        final long lookupTimeCost = count;
+        return tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost;
+    }
+
     public CodeBlock athrow() {
-        instructionList.add(new InsnNode(ATHROW));
+        addInsn(ATHROW);
         return this;
     }
 
     public CodeBlock instance_of(final String typeDesc) {
-        instructionList.add(new TypeInsnNode(INSTANCEOF, typeDesc));
+        addTypeInsn(INSTANCEOF, typeDesc);
         return this;
     }
 
     public CodeBlock ifeq(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFEQ, jumpLabel));
+        addJumpInsn(IFEQ, jumpLabel);
         return this;
     }
 
@@ -603,7 +1112,7 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock ifne(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFNE, jumpLabel));
+        addJumpInsn(IFNE, jumpLabel);
         return this;
     }
 
@@ -613,47 +1122,47 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock if_acmpne(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ACMPNE, jumpLabel));
+        addJumpInsn(IF_ACMPNE, jumpLabel);
         return this;
     }
 
     public CodeBlock if_acmpeq(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ACMPEQ, jumpLabel));
+        addJumpInsn(IF_ACMPEQ, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmple(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPLE, jumpLabel));
+        addJumpInsn(IF_ICMPLE, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmpgt(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPGT, jumpLabel));
+        addJumpInsn(IF_ICMPGT, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmplt(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPLT, jumpLabel));
+        addJumpInsn(IF_ICMPLT, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmpne(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPNE, jumpLabel));
+        addJumpInsn(IF_ICMPNE, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmpeq(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPEQ, jumpLabel));
+        addJumpInsn(IF_ICMPEQ, jumpLabel);
         return this;
     }
 
     public CodeBlock if_icmpge(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IF_ICMPGE, jumpLabel));
+        addJumpInsn(IF_ICMPGE, jumpLabel);
         return this;
     }
 
     public CodeBlock checkcast(final String typeDesc) {
-        instructionList.add(new TypeInsnNode(CHECKCAST, typeDesc));
+        addTypeInsn(CHECKCAST, typeDesc);
         return this;
     }
 
@@ -668,400 +1177,403 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock ifnonnull(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFNONNULL, jumpLabel));
+        addJumpInsn(IFNONNULL, jumpLabel);
         return this;
     }
 
     public CodeBlock ifnull(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFNULL, jumpLabel));
+        addJumpInsn(IFNULL, jumpLabel);
         return this;
     }
 
     public CodeBlock iflt(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFLT, jumpLabel));
+        addJumpInsn(IFLT, jumpLabel);
         return this;
     }
 
     public CodeBlock ifle(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFLE, jumpLabel));
+        addJumpInsn(IFLE, jumpLabel);
         return this;
     }
 
     public CodeBlock ifgt(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFGT, jumpLabel));
+        addJumpInsn(IFGT, jumpLabel);
         return this;
     }
 
     public CodeBlock ifge(final LabelNode jumpLabel) {
-        instructionList.add(new JumpInsnNode(IFGE, jumpLabel));
+        addJumpInsn(IFGE, jumpLabel);
         return this;
     }
 
     public CodeBlock arraylength() {
-        instructionList.add(new InsnNode(ARRAYLENGTH));
+        addInsn(ARRAYLENGTH);
         return this;
     }
 
     public CodeBlock ishr() {
-        instructionList.add(new InsnNode(ISHR));
+        addInsn(ISHR);
         return this;
     }
 
     public CodeBlock ishl() {
-        instructionList.add(new InsnNode(ISHL));
+        addInsn(ISHL);
         return this;
     }
 
     public CodeBlock iushr() {
-        instructionList.add(new InsnNode(IUSHR));
+        addInsn(IUSHR);
         return this;
     }
 
     public CodeBlock lshr() {
-        instructionList.add(new InsnNode(LSHR));
+        addInsn(LSHR);
         return this;
     }
 
     public CodeBlock lshl() {
-        instructionList.add(new InsnNode(LSHL));
+        addInsn(LSHL);
         return this;
     }
 
     public CodeBlock lushr() {
-        instructionList.add(new InsnNode(LUSHR));
+        addInsn(LUSHR);
         return this;
     }
 
     public CodeBlock lcmp() {
-        instructionList.add(new InsnNode(LCMP));
+        addInsn(LCMP);
         return this;
     }
 
     public CodeBlock iand() {
-        instructionList.add(new InsnNode(IAND));
+        addInsn(IAND);
         return this;
     }
 
     public CodeBlock ior() {
-        instructionList.add(new InsnNode(IOR));
+        addInsn(IOR);
         return this;
     }
 
     public CodeBlock ixor() {
-        instructionList.add(new InsnNode(IXOR));
+        addInsn(IXOR);
         return this;
     }
 
     public CodeBlock land() {
-        instructionList.add(new InsnNode(LAND));
+        addInsn(LAND);
         return this;
     }
 
     public CodeBlock lor() {
-        instructionList.add(new InsnNode(LOR));
+        addInsn(LOR);
         return this;
     }
 
     public CodeBlock lxor() {
-        instructionList.add(new InsnNode(LXOR));
+        addInsn(LXOR);
         return this;
     }
 
     public CodeBlock iadd() {
-        instructionList.add(new InsnNode(IADD));
+        addInsn(IADD);
         return this;
     }
 
     public CodeBlock ladd() {
-        instructionList.add(new InsnNode(LADD));
+        addInsn(LADD);
         return this;
     }
 
     public CodeBlock fadd() {
-        instructionList.add(new InsnNode(FADD));
+        addInsn(FADD);
         return this;
     }
 
     public CodeBlock dadd() {
-        instructionList.add(new InsnNode(DADD));
+        addInsn(DADD);
         return this;
     }
 
     public CodeBlock isub() {
-        instructionList.add(new InsnNode(ISUB));
+        addInsn(ISUB);
         return this;
     }
 
     public CodeBlock lsub() {
-        instructionList.add(new InsnNode(LSUB));
+        addInsn(LSUB);
         return this;
     }
 
     public CodeBlock fsub() {
-        instructionList.add(new InsnNode(FSUB));
+        addInsn(FSUB);
         return this;
     }
 
     public CodeBlock dsub() {
-        instructionList.add(new InsnNode(DSUB));
+        addInsn(DSUB);
         return this;
     }
 
     public CodeBlock idiv() {
-        instructionList.add(new InsnNode(IDIV));
+        addInsn(IDIV);
         return this;
     }
 
     public CodeBlock irem() {
-        instructionList.add(new InsnNode(IREM));
+        addInsn(IREM);
         return this;
     }
 
     public CodeBlock ineg() {
-        instructionList.add(new InsnNode(INEG));
+        addInsn(INEG);
         return this;
     }
 
     public CodeBlock i2d() {
-        instructionList.add(new InsnNode(I2D));
+        addInsn(I2D);
         return this;
     }
 
     public CodeBlock i2l() {
-        instructionList.add(new InsnNode(I2L));
+        addInsn(I2L);
         return this;
     }
 
     public CodeBlock i2f() {
-        instructionList.add(new InsnNode(I2F));
+        addInsn(I2F);
         return this;
     }
 
     public CodeBlock i2s() {
-        instructionList.add(new InsnNode(I2S));
+        addInsn(I2S);
         return this;
     }
 
     public CodeBlock i2c() {
-        instructionList.add(new InsnNode(I2C));
+        addInsn(I2C);
         return this;
     }
 
     public CodeBlock i2b() {
-        instructionList.add(new InsnNode(I2B));
+        addInsn(I2B);
         return this;
     }
 
     public CodeBlock ldiv() {
-        instructionList.add(new InsnNode(LDIV));
+        addInsn(LDIV);
         return this;
     }
 
     public CodeBlock lrem() {
-        instructionList.add(new InsnNode(LREM));
+        addInsn(LREM);
         return this;
     }
 
     public CodeBlock lneg() {
-        instructionList.add(new InsnNode(LNEG));
+        addInsn(LNEG);
         return this;
     }
 
     public CodeBlock l2d() {
-        instructionList.add(new InsnNode(L2D));
+        addInsn(L2D);
         return this;
     }
 
     public CodeBlock l2i() {
-        instructionList.add(new InsnNode(L2I));
+        addInsn(L2I);
         return this;
     }
 
     public CodeBlock l2f() {
-        instructionList.add(new InsnNode(L2F));
+        addInsn(L2F);
         return this;
     }
 
     public CodeBlock fdiv() {
-        instructionList.add(new InsnNode(FDIV));
+        addInsn(FDIV);
         return this;
     }
 
     public CodeBlock frem() {
-        instructionList.add(new InsnNode(FREM));
+        addInsn(FREM);
         return this;
     }
 
     public CodeBlock fneg() {
-        instructionList.add(new InsnNode(FNEG));
+        addInsn(FNEG);
         return this;
     }
 
     public CodeBlock f2d() {
-        instructionList.add(new InsnNode(F2D));
+        addInsn(F2D);
         return this;
     }
 
     public CodeBlock f2i() {
-        instructionList.add(new InsnNode(F2D));
+        addInsn(F2D);
         return this;
     }
 
     public CodeBlock f2l() {
-        instructionList.add(new InsnNode(F2L));
+        addInsn(F2L);
         return this;
     }
 
     public CodeBlock ddiv() {
-        instructionList.add(new InsnNode(DDIV));
+        addInsn(DDIV);
         return this;
     }
 
     public CodeBlock drem() {
-        instructionList.add(new InsnNode(DREM));
+        addInsn(DREM);
         return this;
     }
 
     public CodeBlock dneg() {
-        instructionList.add(new InsnNode(DNEG));
+        addInsn(DNEG);
         return this;
     }
 
     public CodeBlock d2f() {
-        instructionList.add(new InsnNode(D2F));
+        addInsn(D2F);
         return this;
     }
 
     public CodeBlock d2i() {
-        instructionList.add(new InsnNode(D2I));
+        addInsn(D2I);
         return this;
     }
 
     public CodeBlock d2l() {
-        instructionList.add(new InsnNode(D2L));
+        addInsn(D2L);
         return this;
     }
 
     public CodeBlock imul() {
-        instructionList.add(new InsnNode(IMUL));
+        addInsn(IMUL);
         return this;
     }
 
     public CodeBlock lmul() {
-        instructionList.add(new InsnNode(LMUL));
+        addInsn(LMUL);
         return this;
     }
 
     public CodeBlock fmul() {
-        instructionList.add(new InsnNode(FMUL));
+        addInsn(FMUL);
         return this;
     }
 
     public CodeBlock dmul() {
-        instructionList.add(new InsnNode(DMUL));
+        addInsn(DMUL);
         return this;
     }
 
     public CodeBlock iinc(final int varIndex, final int increment) {
-        instructionList.add(new IincInsnNode(varIndex, increment));
+        addIincInsn(varIndex, increment);
         return this;
     }
 
     public CodeBlock monitorenter() {
-        instructionList.add(new InsnNode(MONITORENTER));
+        addInsn(MONITORENTER);
         return this;
     }
 
     public CodeBlock monitorexit() {
-        instructionList.add(new InsnNode(MONITOREXIT));
+        addInsn(MONITOREXIT);
         return this;
     }
 
     public CodeBlock jsr(final LabelNode branch) {
-        instructionList.add(new JumpInsnNode(JSR, branch));
+        addJumpInsn(JSR, branch);
         return this;
     }
 
     public CodeBlock ret(final int value) {
-        instructionList.add(new IntInsnNode(RET, value));
+        addIntInsn(RET, value);
         return this;
     }
 
     public CodeBlock visitInsn(final int opcode) {
-        instructionList.add(new InsnNode(opcode));
+        addInsn(opcode);
         return this;
     }
 
     public CodeBlock visitIntInsn(final int opcode, final int operand) {
-        instructionList.add(new IntInsnNode(opcode, operand));
+        addIntInsn(opcode, operand);
         return this;
     }
 
     public CodeBlock visitInsnNode(final int opcode, final int operand) {
-        instructionList.add(new IntInsnNode(opcode, operand));
+        addIntInsn(opcode, operand);
         return this;
     }
 
     public CodeBlock visitTypeInsn(final int opcode, final String desc) {
-        instructionList.add(new TypeInsnNode(opcode, desc));
+        addTypeInsn(opcode, desc);
         return this;
     }
 
     public CodeBlock visitFieldInsn(final int opcode, final String className, final String fieldName, final String fieldDesc) {
-        instructionList.add(new FieldInsnNode(opcode, className, fieldName, fieldDesc));
+        addFieldInsn(opcode, className, fieldName, fieldDesc);
         return this;
     }
 
     public CodeBlock visitMethodInsn(final int opcode, final String className, final String methodName, final String methodDesc) {
         final boolean intf = opcode == INVOKEINTERFACE;
-        instructionList.add(new MethodInsnNode(opcode, className, methodName, methodDesc, intf));
+        addMethodInsn(opcode, className, methodName, methodDesc, intf);
         return this;
     }
 
     public CodeBlock visitInvokeDynamicInsn(final String name, final String desc, final Handle bootstrapMethod,
             final Object... bootstrapArguments) {
-        instructionList.add(new InvokeDynamicInsnNode(name, desc, bootstrapMethod, bootstrapArguments));
+        addInvokeDynamicInsn(name, desc, bootstrapMethod, bootstrapArguments);
         return this;
     }
 
     public CodeBlock visitJumpInsn(final int opcode, final LabelNode node) {
-        instructionList.add(new JumpInsnNode(opcode, node));
+        addJumpInsn(opcode, node);
         return this;
     }
 
     public CodeBlock visitLabel(final Label label) {
-        instructionList.add(new LabelNode(label));
+        addLabel(new LabelNode(label));
         return this;
     }
 
     public CodeBlock visitLdcInsn(final Object value) {
-        instructionList.add(new LdcInsnNode(value));
+        addLdcInsn(value);
         return this;
     }
 
     public CodeBlock visitIincInsn(final int varIndex, final int increment) {
-        instructionList.add(new IincInsnNode(varIndex, increment));
+        addIincInsn(varIndex, increment);
         return this;
     }
 
     public CodeBlock visitTableSwitchInsn(final int min, final int max, final LabelNode defaultHandler, final LabelNode[] handlers) {
-        instructionList.add(new TableSwitchInsnNode(min, max, defaultHandler, handlers));
+        addTableSwitchInsn(min, max, defaultHandler, handlers);
         return this;
     }
 
     public CodeBlock visitLookupSwitchInsn(final LabelNode defaultHandler, final int[] keys, final LabelNode[] handlers) {
-        instructionList.add(new LookupSwitchInsnNode(defaultHandler, keys, handlers));
+        addLookupSwitchInsn(defaultHandler, keys, handlers);
         return this;
     }
 
     public CodeBlock visitMultiANewArrayInsn(final String desc, final int dims) {
-        instructionList.add(new MultiANewArrayInsnNode(desc, dims));
+        addMultiANewArrayInsn(desc, dims);
         return this;
     }
 
     public CodeBlock visitTryCatchBlock(final LabelNode scopeStart, final LabelNode scopeEnd, final LabelNode handler,
             final String exceptionType) {
         tryCatchBlockList.add(new TryCatchBlockNode(scopeStart, scopeEnd, handler, exceptionType));
+        if (stackTracker != null) {
+            stackTracker.tryCatch(scopeStart, scopeEnd, handler, exceptionType);
+        }
         return this;
     }
 
@@ -1072,22 +1584,68 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock visitLineNumber(final int lineNumber, final LabelNode start) {
-        instructionList.add(new LineNumberNode(lineNumber, start));
+        addLineNumber(lineNumber, start);
         return this;
     }
 
     public CodeBlock tableswitch(final int min, final int max, final LabelNode defaultLabel, final LabelNode[] cases) {
-        instructionList.add(new TableSwitchInsnNode(min, max, defaultLabel, cases));
+        addTableSwitchInsn(min, max, defaultLabel, cases);
         return this;
     }
 
     public CodeBlock visitFrame(final int opcode, final int nrLocals, final Object[] localTypes, final int nrStackElements,
             final Object[] stackElements) {
-        instructionList.add(new FrameNode(opcode, nrLocals, localTypes, nrStackElements, stackElements));
+        addFrame(opcode, nrLocals, localTypes, nrStackElements, stackElements);
+        return this;
+    }
+
+    /**
+     * Clears this block, as if it was just created, while keeping the storage it has grown
+     */
+    public CodeBlock reset() {
+        if (instructionBuffer != null) {
+            instructionBuffer.clear();
+        } else {
+            instructionList.clear();
+            instructionBuffer = new InstructionBuffer();
+        }
+        tryCatchBlockList.clear();
+        localVariableList.clear();
+        annotations.clear();
+        locals = null;
+        stackTracker = null;
+        arity = 0;
+        returns = false;
         return this;
     }
 
+    /**
+     * Closes the scopes left open in the local allocator, if any, adding their local variable table entries
+     */
+    void finishLocals() {
+        if (locals != null) {
+            locals.finish();
+        }
+    }
+
+    /**
+     * Returns the instructions of this block as ASM nodes, creating them out of the compact representation the
+     * block builds them in on the first call. Later instructions are added to the returned list.
+     *
+     * Since the list may be edited freely, frames are no longer written from a tracked stack once it was asked for.
+     */
     public InsnList getInstructionList() {
+        if (stackTracker != null) {
+            stackTracker.invalidateFrames();
+        }
+        return instructions();
+    }
+
+    private InsnList instructions() {
+        if (instructionBuffer != null) {
+            instructionBuffer.materialize(instructionList);
+            instructionBuffer = null;
+        }
         return instructionList;
     }
 
@@ -1103,6 +1661,64 @@ public class CodeBlock implements Opcodes {
         return annotations;
     }
 
+    /**
+     * Visits the code of this block into the given method visitor, from visitCode to visitMaxs.
+     * Nothing is visited for an empty block, so abstract and native methods stay code-less.
+     *
+     * @param mv the visitor receiving the code
+     */
+    public void accept(final MethodVisitor mv) {
+        accept(mv, false);
+    }
+
+    /**
+     * @return true if this block can write its own stack map frames, from the stack it has tracked all along
+     * @see #trackStack(String, int, String)
+     */
+    boolean hasTrackedFrames() {
+        if (stackTracker != null) {
+            return stackTracker.hasFrames();
+        }
+        return locals == null && (instructionBuffer != null ? instructionBuffer.isEmpty() : instructionList.size() == 0);
+    }
+
+    /**
+     * Visits the code of this block into the given method visitor, optionally along with the frames and maximums
+     * known from the tracked stack, for visitors which don't compute them
+     *
+     * @see #hasTrackedFrames()
+     */
+    void accept(final MethodVisitor mv, final boolean trackedFrames) {
+        finishLocals();
+        if (instructionBuffer != null ? instructionBuffer.isEmpty() : instructionList.size() == 0) {
+            return;
+        }
+        mv.visitCode();
+        if (instructionBuffer != null) {
+            instructionBuffer.resetLabels();
+        } else {
+            instructionList.resetLabels();
+        }
+        for (final TryCatchBlockNode tryCatchBlockNode : tryCatchBlockList) {
+            tryCatchBlockNode.accept(mv);
+        }
+        final MethodVisitor code = trackedFrames ? stackTracker.withFrames(mv) : mv;
+        if (instructionBuffer != null) {
+            instructionBuffer.accept(code);
+        } else {
+            instructionList.accept(code);
+        }
+        for (final LocalVariableNode localVariableNode : localVariableList) {
+            localVariableNode.accept(mv);
+        }
+        if (trackedFrames) {
+            final int maxLocals = locals == null ? 0 : locals.maxLocals();
+            mv.visitMaxs(stackTracker.getMaxStack(), Math.max(maxLocals, stackTracker.getMaxLocals()));
+        } else {
+            mv.visitMaxs(0, 0);
+        }
+    }
+
     /**
      * adds a compressed frame to the stack
      *
@@ -1123,16 +1739,23 @@ public class CodeBlock implements Opcodes {
                 throw new IllegalArgumentException("same frame should have 0" + " or 1 arguments on stack");
         }
 
-        instructionList.add(new FrameNode(type, 0, null, stackArguments.length, stackArguments));
+        addFrame(type, 0, null, stackArguments.length, stackArguments);
         return this;
     }
 
     public CodeBlock prepend(final CodeBlock codeBlock) {
+        if (stackTracker != null) {
+            throw new IllegalStateException("can't prepend to a block whose stack is tracked");
+        }
         if (codeBlock.returns())
             returns = true;
 
         annotations.addAll(codeBlock.annotations);
-        instructionList.insert(codeBlock.instructionList);
+        if (instructionBuffer != null && codeBlock.instructionBuffer != null) {
+            instructionBuffer.prepend(codeBlock.instructionBuffer);
+        } else {
+            instructions().insert(codeBlock.getInstructionList());
+        }
         return this;
     }
 
@@ -1140,12 +1763,50 @@ public class CodeBlock implements Opcodes {
         if (codeBlock.returns())
             returns = true;
 
-        instructionList.add(codeBlock.instructionList);
+        if (stackTracker != null) {
+            for (final TryCatchBlockNode tryCatchBlockNode : codeBlock.tryCatchBlockList) {
+                stackTracker.tryCatch(tryCatchBlockNode.start, tryCatchBlockNode.end, tryCatchBlockNode.handler, tryCatchBlockNode.type);
+            }
+            track(codeBlock.getInstructionList());
+        }
+
+        if (instructionBuffer != null && codeBlock.instructionBuffer != null) {
+            instructionBuffer.append(codeBlock.instructionBuffer);
+        } else {
+            instructions().add(codeBlock.getInstructionList());
+        }
         tryCatchBlockList.addAll(codeBlock.tryCatchBlockList);
         annotations.addAll(codeBlock.annotations);
         return this;
     }
 
+    /**
+     * Runs the default optimizations over this block: peephole rules, constant folding and unreachable code removal
+     *
+     * @see PeepholeOptimizer
+     * @see ConstantFolder
+     * @see UnreachableCodeEliminator
+     */
+    public CodeBlock optimize() {
+        return optimize(new PeepholeOptimizer(), new ConstantFolder(), new UnreachableCodeEliminator());
+    }
+
+    /**
+     * Runs the given optimizers over this block, over and over, until none of them changes anything
+     *
+     * @param optimizers the passes to run, in order
+     */
+    public CodeBlock optimize(final CodeOptimizer... optimizers) {
+        boolean changed;
+        do {
+            changed = false;
+            for (final CodeOptimizer optimizer : optimizers) {
+                changed |= optimizer.optimize(this);
+            }
+        } while (changed);
+        return this;
+    }
+
     public VisibleAnnotation annotation(final Class<?> type) {
         final VisibleAnnotation annotation = new VisibleAnnotation(ci(type));
         addAnnotation(annotation);
@@ -1158,10 +1819,81 @@ public class CodeBlock implements Opcodes {
     }
 
     public CodeBlock addAll(final InsnList insnList) {
-        instructionList.add(insnList);
+        if (stackTracker != null) {
+            track(insnList);
+        }
+        instructions().add(insnList);
+        return this;
+    }
+
+    /**
+     * Starts checking the operand stack and local variable types of this block as instructions are added, failing
+     * with an {@link IllegalStateException} right at the instruction that underflows the stack or gets an operand
+     * of the wrong type. Reference types are resolved through the class loader of this library.
+     *
+     * @param owner  the internal name of the class the method will be declared in
+     * @param access the access flags of the method
+     * @param desc   the descriptor of the method
+     * @throws IllegalStateException if the block already has instructions
+     */
+    public CodeBlock trackStack(final String owner, final int access, final String desc) {
+        return trackStack(owner, access, desc, new ClassLoaderTypeHierarchyResolver(CodeBlock.class.getClassLoader()));
+    }
+
+    /**
+     * Starts checking the operand stack and local variable types of this block as instructions are added
+     *
+     * @param owner    the internal name of the class the method will be declared in
+     * @param access   the access flags of the method
+     * @param desc     the descriptor of the method
+     * @param resolver the resolver to check reference types against; types it doesn't know are accepted anywhere
+     * @throws IllegalStateException if the block already has instructions
+     * @see #trackStack(String, int, String)
+     */
+    public CodeBlock trackStack(final String owner, final int access, final String desc, final TypeHierarchyResolver resolver) {
+        if (instructionBuffer != null ? !instructionBuffer.isEmpty() : instructionList.size() != 0) {
+            throw new IllegalStateException("stack tracking must start on an empty block");
+        }
+        stackTracker = new StackTracker(owner, access, desc, new TypeHierarchy(new CachingTypeHierarchyResolver(resolver)));
         return this;
     }
 
+    /**
+     * @return the largest operand stack size of this block so far, in slots
+     * @throws IllegalStateException if the stack of this block isn't tracked
+     * @see #trackStack(String, int, String)
+     */
+    public int maxStack() {
+        return tracker().getMaxStack();
+    }
+
+    /**
+     * @return the current operand stack size of this block in slots, or -1 where the end of the block can't be
+     * reached from the code before it
+     * @throws IllegalStateException if the stack of this block isn't tracked
+     * @see #trackStack(String, int, String)
+     */
+    public int stackSize() {
+        return tracker().getStackSize();
+    }
+
+    private StackTracker tracker() {
+        if (stackTracker == null) {
+            throw new IllegalStateException("the stack of this block isn't tracked");
+        }
+        return stackTracker;
+    }
+
+    private void track(final InsnList insnList) {
+        for (AbstractInsnNode node = insnList.getFirst(); node != null; node = node.getNext()) {
+            if (node instanceof LabelNode) {
+                stackTracker.label((LabelNode) node);
+            } else if (node.getOpcode() >= 0) {
+                stackTracker.execute(node);
+            }
+        }
+    }
+
     public int arity() {
         return arity;
     }
@@ -1169,4 +1901,201 @@ public class CodeBlock implements Opcodes {
     public boolean returns() {
         return returns;
     }
+
+    /**
+     * @return the number of bytes the instructions take in the method code, at most, assuming short branch offsets
+     */
+    int codeSize() {
+        return instructionBuffer != null ? instructionBuffer.codeSize() : Instructions.codeSize(instructionList);
+    }
+
+    /**
+     * @return the number of instructions, leaving labels, line numbers and frames out
+     */
+    int instructionCount() {
+        if (instructionBuffer != null) {
+            return instructionBuffer.instructionCount();
+        }
+        int count = 0;
+        for (AbstractInsnNode node = instructionList.getFirst(); node != null; node = node.getNext()) {
+            if (node.getOpcode() >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addInsn(final int opcode) {
+        if (stackTracker != null) {
+            stackTracker.execute(new InsnNode(opcode));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.insn(opcode);
+        } else {
+            instructionList.add(new InsnNode(opcode));
+        }
+    }
+
+    private void addIntInsn(final int opcode, final int operand) {
+        if (stackTracker != null) {
+            stackTracker.execute(new IntInsnNode(opcode, operand));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.intInsn(opcode, operand);
+        } else {
+            instructionList.add(new IntInsnNode(opcode, operand));
+        }
+    }
+
+    private void addVarInsn(final int opcode, final int var) {
+        if (stackTracker != null) {
+            stackTracker.execute(new VarInsnNode(opcode, var));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.varInsn(opcode, var);
+        } else {
+            instructionList.add(new VarInsnNode(opcode, var));
+        }
+    }
+
+    private void addTypeInsn(final int opcode, final String type) {
+        if (stackTracker != null) {
+            stackTracker.execute(new TypeInsnNode(opcode, type));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.typeInsn(opcode, type);
+        } else {
+            instructionList.add(new TypeInsnNode(opcode, type));
+        }
+    }
+
+    private void addFieldInsn(final int opcode, final String owner, final String name, final String desc) {
+        if (stackTracker != null) {
+            stackTracker.execute(new FieldInsnNode(opcode, owner, name, desc));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.fieldInsn(opcode, owner, name, desc);
+        } else {
+            instructionList.add(new FieldInsnNode(opcode, owner, name, desc));
+        }
+    }
+
+    private void addMethodInsn(final int opcode, final String owner, final String name, final String desc, final boolean itf) {
+        if (stackTracker != null) {
+            stackTracker.execute(new MethodInsnNode(opcode, owner, name, desc, itf));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.methodInsn(opcode, owner, name, desc, itf);
+        } else {
+            instructionList.add(new MethodInsnNode(opcode, owner, name, desc, itf));
+        }
+    }
+
+    private void addInvokeDynamicInsn(final String name, final String desc, final Handle bootstrapMethod, final Object[] bootstrapArguments) {
+        if (stackTracker != null) {
+            stackTracker.execute(new InvokeDynamicInsnNode(name, desc, bootstrapMethod, bootstrapArguments));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.invokeDynamic(name, desc, bootstrapMethod, bootstrapArguments);
+        } else {
+            instructionList.add(new InvokeDynamicInsnNode(name, desc, bootstrapMethod, bootstrapArguments));
+        }
+    }
+
+    private void addJumpInsn(final int opcode, final LabelNode label) {
+        if (stackTracker != null) {
+            stackTracker.execute(new JumpInsnNode(opcode, label));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.jumpInsn(opcode, label);
+        } else {
+            instructionList.add(new JumpInsnNode(opcode, label));
+        }
+    }
+
+    private void addLabel(final LabelNode label) {
+        if (stackTracker != null) {
+            stackTracker.label(label);
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.label(label);
+        } else {
+            instructionList.add(label);
+        }
+    }
+
+    private void addLdcInsn(final Object value) {
+        if (stackTracker != null) {
+            stackTracker.execute(new LdcInsnNode(value));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.ldc(value);
+        } else {
+            instructionList.add(new LdcInsnNode(value));
+        }
+    }
+
+    private void addIincInsn(final int var, final int increment) {
+        if (stackTracker != null) {
+            stackTracker.execute(new IincInsnNode(var, increment));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.iinc(var, increment);
+        } else {
+            instructionList.add(new IincInsnNode(var, increment));
+        }
+    }
+
+    private void addTableSwitchInsn(final int min, final int max, final LabelNode defaultLabel, final LabelNode[] labels) {
+        if (stackTracker != null) {
+            stackTracker.execute(new TableSwitchInsnNode(min, max, defaultLabel, labels));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.tableSwitch(min, max, defaultLabel, labels);
+        } else {
+            instructionList.add(new TableSwitchInsnNode(min, max, defaultLabel, labels));
+        }
+    }
+
+    private void addLookupSwitchInsn(final LabelNode defaultLabel, final int[] keys, final LabelNode[] labels) {
+        if (stackTracker != null) {
+            stackTracker.execute(new LookupSwitchInsnNode(defaultLabel, keys, labels));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.lookupSwitch(defaultLabel, keys, labels);
+        } else {
+            instructionList.add(new LookupSwitchInsnNode(defaultLabel, keys, labels));
+        }
+    }
+
+    private void addMultiANewArrayInsn(final String desc, final int dims) {
+        if (stackTracker != null) {
+            stackTracker.execute(new MultiANewArrayInsnNode(desc, dims));
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.multiANewArray(desc, dims);
+        } else {
+            instructionList.add(new MultiANewArrayInsnNode(desc, dims));
+        }
+    }
+
+    private void addLineNumber(final int line, final LabelNode start) {
+        if (instructionBuffer != null) {
+            instructionBuffer.lineNumber(line, start);
+        } else {
+            instructionList.add(new LineNumberNode(line, start));
+        }
+    }
+
+    private void addFrame(final int type, final int nLocal, final Object[] local, final int nStack, final Object[] stack) {
+        final FrameNode frame = new FrameNode(type, nLocal, local, nStack, stack);
+        if (stackTracker != null) {
+            stackTracker.frame();
+        }
+        if (instructionBuffer != null) {
+            instructionBuffer.node(frame);
+        } else {
+            instructionList.add(frame);
+        }
+    }
 }
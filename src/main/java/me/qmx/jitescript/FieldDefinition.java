@@ -2,6 +2,8 @@ package me.qmx.jitescript;
 
 import java.util.ArrayList;
 import java.util.List;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.FieldNode;
 
@@ -30,6 +32,18 @@ public class FieldDefinition {
         return node;
     }
 
+    public void accept(ClassVisitor cv) {
+        FieldVisitor fv = cv.visitField(modifiers, fieldName, signature, null, value);
+        if (fv == null) {
+            return;
+        }
+        for (VisibleAnnotation annotation : annotations) {
+            AnnotationNode node = annotation.getNode();
+            node.accept(fv.visitAnnotation(node.desc, true));
+        }
+        fv.visitEnd();
+    }
+
     public FieldDefinition addAnnotation(VisibleAnnotation annotation) {
         annotations.add(annotation);
         return this;
@@ -0,0 +1,585 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.util.Arrays;
+import me.qmx.jitescript.opt.Instructions;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * The compact backend of {@link CodeBlock}: instructions are encoded as runs of ints, starting with the opcode and
+ * followed by the operands, with strings, labels and other objects interned in a constant table the operands point
+ * into. ASM nodes are only created when the instructions are turned into an {@link InsnList}.
+ */
+final class InstructionBuffer implements Opcodes {
+
+    private static final int LABEL = -1;
+    private static final int LINE = -2;
+    private static final int NODE = -3;
+    private static final int MAX_RETAINED_CODE = 1 << 16;
+    private static final int MAX_RETAINED_CONSTANTS = 1 << 12;
+
+    private int[] code = new int[64];
+    private int length;
+    private Object[] constants = new Object[16];
+    private int constantCount;
+    // open addressing table from constants to their index plus one, so that interning allocates nothing
+    private Object[] constantKeys = new Object[32];
+    private int[] constantSlots = new int[32];
+
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    void insn(int opcode) {
+        if (shape(opcode) != AbstractInsnNode.INSN) {
+            node(new InsnNode(opcode));
+            return;
+        }
+        ensure(1);
+        code[length++] = opcode;
+    }
+
+    void intInsn(int opcode, int operand) {
+        if (shape(opcode) != AbstractInsnNode.INT_INSN) {
+            node(new IntInsnNode(opcode, operand));
+            return;
+        }
+        ensure(2);
+        code[length++] = opcode;
+        code[length++] = operand;
+    }
+
+    void varInsn(int opcode, int var) {
+        if (shape(opcode) != AbstractInsnNode.VAR_INSN) {
+            node(new VarInsnNode(opcode, var));
+            return;
+        }
+        ensure(2);
+        code[length++] = opcode;
+        code[length++] = var;
+    }
+
+    void typeInsn(int opcode, String type) {
+        if (shape(opcode) != AbstractInsnNode.TYPE_INSN) {
+            node(new TypeInsnNode(opcode, type));
+            return;
+        }
+        ensure(2);
+        code[length++] = opcode;
+        code[length++] = constant(type);
+    }
+
+    void fieldInsn(int opcode, String owner, String name, String desc) {
+        if (shape(opcode) != AbstractInsnNode.FIELD_INSN) {
+            node(new FieldInsnNode(opcode, owner, name, desc));
+            return;
+        }
+        ensure(4);
+        code[length++] = opcode;
+        code[length++] = constant(owner);
+        code[length++] = constant(name);
+        code[length++] = constant(desc);
+    }
+
+    void methodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        if (shape(opcode) != AbstractInsnNode.METHOD_INSN) {
+            node(new MethodInsnNode(opcode, owner, name, desc, itf));
+            return;
+        }
+        ensure(5);
+        code[length++] = opcode;
+        code[length++] = constant(owner);
+        code[length++] = constant(name);
+        code[length++] = constant(desc);
+        code[length++] = itf ? 1 : 0;
+    }
+
+    void invokeDynamic(String name, String desc, Handle bootstrapMethod, Object[] bootstrapArguments) {
+        ensure(5);
+        code[length++] = INVOKEDYNAMIC;
+        code[length++] = constant(name);
+        code[length++] = constant(desc);
+        code[length++] = constant(bootstrapMethod);
+        code[length++] = constant(bootstrapArguments);
+    }
+
+    void jumpInsn(int opcode, LabelNode label) {
+        if (shape(opcode) != AbstractInsnNode.JUMP_INSN) {
+            node(new JumpInsnNode(opcode, label));
+            return;
+        }
+        ensure(2);
+        code[length++] = opcode;
+        code[length++] = constant(label);
+    }
+
+    void label(LabelNode label) {
+        ensure(2);
+        code[length++] = LABEL;
+        code[length++] = constant(label);
+    }
+
+    void ldc(Object value) {
+        ensure(2);
+        code[length++] = LDC;
+        code[length++] = constant(value);
+    }
+
+    void iinc(int var, int increment) {
+        ensure(3);
+        code[length++] = IINC;
+        code[length++] = var;
+        code[length++] = increment;
+    }
+
+    void tableSwitch(int min, int max, LabelNode defaultLabel, LabelNode[] labels) {
+        ensure(5);
+        code[length++] = TABLESWITCH;
+        code[length++] = min;
+        code[length++] = max;
+        code[length++] = constant(defaultLabel);
+        code[length++] = constant(labels);
+    }
+
+    void lookupSwitch(LabelNode defaultLabel, int[] keys, LabelNode[] labels) {
+        ensure(4);
+        code[length++] = LOOKUPSWITCH;
+        code[length++] = constant(defaultLabel);
+        code[length++] = constant(keys);
+        code[length++] = constant(labels);
+    }
+
+    void multiANewArray(String desc, int dims) {
+        ensure(3);
+        code[length++] = MULTIANEWARRAY;
+        code[length++] = constant(desc);
+        code[length++] = dims;
+    }
+
+    void lineNumber(int line, LabelNode start) {
+        ensure(3);
+        code[length++] = LINE;
+        code[length++] = line;
+        code[length++] = constant(start);
+    }
+
+    /**
+     * Keeps a node that has no compact encoding, such as a frame, as it is. The node must not belong to a list.
+     */
+    void node(AbstractInsnNode node) {
+        ensure(2);
+        code[length++] = NODE;
+        code[length++] = constant(node);
+    }
+
+    /**
+     * Moves the instructions of the given buffer to the end of this one, leaving it empty
+     */
+    void append(InstructionBuffer other) {
+        ensure(other.length);
+        for (int i = 0; i < other.length; ) {
+            int opcode = other.code[i];
+            int size = entrySize(opcode);
+            code[length] = opcode;
+            for (int k = 1; k < size; k++) {
+                int operand = other.code[i + k];
+                code[length + k] = isConstant(opcode, k) ? constant(other.constants[operand]) : operand;
+            }
+            length += size;
+            i += size;
+        }
+        other.clear();
+    }
+
+    /**
+     * Moves the instructions of the given buffer to the start of this one, leaving it empty
+     */
+    void prepend(InstructionBuffer other) {
+        int[] tail = Arrays.copyOf(code, length);
+        length = 0;
+        append(other);
+        ensure(tail.length);
+        System.arraycopy(tail, 0, code, length, tail.length);
+        length += tail.length;
+    }
+
+    /**
+     * Empties this buffer, keeping its arrays unless they grew past what is worth holding on to
+     */
+    void clear() {
+        if (code.length > MAX_RETAINED_CODE) {
+            code = new int[64];
+        }
+        if (constants.length > MAX_RETAINED_CONSTANTS) {
+            constants = new Object[16];
+            constantKeys = new Object[32];
+            constantSlots = new int[32];
+        } else {
+            Arrays.fill(constants, 0, constantCount, null);
+            Arrays.fill(constantKeys, null);
+            Arrays.fill(constantSlots, 0);
+        }
+        constantCount = 0;
+        length = 0;
+    }
+
+    void resetLabels() {
+        for (int i = 0; i < constantCount; i++) {
+            if (constants[i] instanceof LabelNode) {
+                ((LabelNode) constants[i]).resetLabel();
+            }
+        }
+    }
+
+    /**
+     * @return the number of instructions, leaving labels, line numbers and frames out
+     */
+    int instructionCount() {
+        int count = 0;
+        for (int i = 0; i < length; i += entrySize(code[i])) {
+            int opcode = code[i];
+            if (opcode == NODE) {
+                if (((AbstractInsnNode) constants[code[i + 1]]).getOpcode() >= 0) {
+                    count++;
+                }
+            } else if (opcode != LABEL && opcode != LINE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @see Instructions#codeSize(AbstractInsnNode)
+     */
+    int codeSize() {
+        int size = 0;
+        for (int i = 0; i < length; i += entrySize(code[i])) {
+            int opcode = code[i];
+            switch (opcode) {
+                case LABEL:
+                case LINE:
+                    break;
+                case NODE:
+                    size += Instructions.codeSize((AbstractInsnNode) constants[code[i + 1]]);
+                    break;
+                case IINC:
+                    size += code[i + 1] < 256 && code[i + 2] == (byte) code[i + 2] ? 3 : 6;
+                    break;
+                case TABLESWITCH:
+                    size += 16 + 4 * ((LabelNode[]) constants[code[i + 4]]).length;
+                    break;
+                case LOOKUPSWITCH:
+                    size += 12 + 8 * ((int[]) constants[code[i + 2]]).length;
+                    break;
+                case MULTIANEWARRAY:
+                    size += 4;
+                    break;
+                default:
+                    switch (shape(opcode)) {
+                        case AbstractInsnNode.INSN:
+                            size += 1;
+                            break;
+                        case AbstractInsnNode.INT_INSN:
+                            size += opcode == SIPUSH ? 3 : 2;
+                            break;
+                        case AbstractInsnNode.VAR_INSN:
+                            size += code[i + 1] < 4 ? 1 : code[i + 1] < 256 ? 2 : 4;
+                            break;
+                        case AbstractInsnNode.METHOD_INSN:
+                            size += opcode == INVOKEINTERFACE ? 5 : 3;
+                            break;
+                        case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                            size += 5;
+                            break;
+                        default:
+                            size += 3;
+                    }
+            }
+        }
+        return size;
+    }
+
+    void accept(MethodVisitor mv) {
+        for (int i = 0; i < length; ) {
+            int opcode = code[i];
+            switch (opcode) {
+                case LABEL:
+                    mv.visitLabel(label(code[i + 1]).getLabel());
+                    break;
+                case LINE:
+                    mv.visitLineNumber(code[i + 1], label(code[i + 2]).getLabel());
+                    break;
+                case NODE:
+                    ((AbstractInsnNode) constants[code[i + 1]]).accept(mv);
+                    break;
+                case LDC:
+                    mv.visitLdcInsn(constants[code[i + 1]]);
+                    break;
+                case IINC:
+                    mv.visitIincInsn(code[i + 1], code[i + 2]);
+                    break;
+                case TABLESWITCH:
+                    mv.visitTableSwitchInsn(code[i + 1], code[i + 2], label(code[i + 3]).getLabel(), labels((LabelNode[]) constants[code[i + 4]]));
+                    break;
+                case LOOKUPSWITCH:
+                    mv.visitLookupSwitchInsn(label(code[i + 1]).getLabel(), (int[]) constants[code[i + 2]], labels((LabelNode[]) constants[code[i + 3]]));
+                    break;
+                case MULTIANEWARRAY:
+                    mv.visitMultiANewArrayInsn((String) constants[code[i + 1]], code[i + 2]);
+                    break;
+                case INVOKEDYNAMIC:
+                    mv.visitInvokeDynamicInsn((String) constants[code[i + 1]], (String) constants[code[i + 2]], (Handle) constants[code[i + 3]], (Object[]) constants[code[i + 4]]);
+                    break;
+                default:
+                    switch (shape(opcode)) {
+                        case AbstractInsnNode.INSN:
+                            mv.visitInsn(opcode);
+                            break;
+                        case AbstractInsnNode.INT_INSN:
+                            mv.visitIntInsn(opcode, code[i + 1]);
+                            break;
+                        case AbstractInsnNode.VAR_INSN:
+                            mv.visitVarInsn(opcode, code[i + 1]);
+                            break;
+                        case AbstractInsnNode.TYPE_INSN:
+                            mv.visitTypeInsn(opcode, (String) constants[code[i + 1]]);
+                            break;
+                        case AbstractInsnNode.FIELD_INSN:
+                            mv.visitFieldInsn(opcode, (String) constants[code[i + 1]], (String) constants[code[i + 2]], (String) constants[code[i + 3]]);
+                            break;
+                        case AbstractInsnNode.METHOD_INSN:
+                            mv.visitMethodInsn(opcode, (String) constants[code[i + 1]], (String) constants[code[i + 2]], (String) constants[code[i + 3]], code[i + 4] != 0);
+                            break;
+                        default:
+                            mv.visitJumpInsn(opcode, label(code[i + 1]).getLabel());
+                    }
+            }
+            i += entrySize(opcode);
+        }
+    }
+
+    /**
+     * Creates the nodes for the instructions of this buffer, at the end of the given list
+     */
+    void materialize(InsnList instructions) {
+        for (int i = 0; i < length; ) {
+            int opcode = code[i];
+            instructions.add(toNode(i));
+            i += entrySize(opcode);
+        }
+    }
+
+    private AbstractInsnNode toNode(int i) {
+        int opcode = code[i];
+        switch (opcode) {
+            case LABEL:
+                return label(code[i + 1]);
+            case LINE:
+                return new LineNumberNode(code[i + 1], label(code[i + 2]));
+            case NODE:
+                return (AbstractInsnNode) constants[code[i + 1]];
+            case LDC:
+                return new LdcInsnNode(constants[code[i + 1]]);
+            case IINC:
+                return new IincInsnNode(code[i + 1], code[i + 2]);
+            case TABLESWITCH:
+                return new TableSwitchInsnNode(code[i + 1], code[i + 2], label(code[i + 3]), (LabelNode[]) constants[code[i + 4]]);
+            case LOOKUPSWITCH:
+                return new LookupSwitchInsnNode(label(code[i + 1]), (int[]) constants[code[i + 2]], (LabelNode[]) constants[code[i + 3]]);
+            case MULTIANEWARRAY:
+                return new MultiANewArrayInsnNode((String) constants[code[i + 1]], code[i + 2]);
+            case INVOKEDYNAMIC:
+                return new InvokeDynamicInsnNode((String) constants[code[i + 1]], (String) constants[code[i + 2]], (Handle) constants[code[i + 3]], (Object[]) constants[code[i + 4]]);
+            default:
+                switch (shape(opcode)) {
+                    case AbstractInsnNode.INSN:
+                        return new InsnNode(opcode);
+                    case AbstractInsnNode.INT_INSN:
+                        return new IntInsnNode(opcode, code[i + 1]);
+                    case AbstractInsnNode.VAR_INSN:
+                        return new VarInsnNode(opcode, code[i + 1]);
+                    case AbstractInsnNode.TYPE_INSN:
+                        return new TypeInsnNode(opcode, (String) constants[code[i + 1]]);
+                    case AbstractInsnNode.FIELD_INSN:
+                        return new FieldInsnNode(opcode, (String) constants[code[i + 1]], (String) constants[code[i + 2]], (String) constants[code[i + 3]]);
+                    case AbstractInsnNode.METHOD_INSN:
+                        return new MethodInsnNode(opcode, (String) constants[code[i + 1]], (String) constants[code[i + 2]], (String) constants[code[i + 3]], code[i + 4] != 0);
+                    default:
+                        return new JumpInsnNode(opcode, label(code[i + 1]));
+                }
+        }
+    }
+
+    private LabelNode label(int index) {
+        return (LabelNode) constants[index];
+    }
+
+    private static Label[] labels(LabelNode[] nodes) {
+        Label[] labels = new Label[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            labels[i] = nodes[i].getLabel();
+        }
+        return labels;
+    }
+
+    private int constant(Object value) {
+        int mask = constantKeys.length - 1;
+        int slot = hash(value) & mask;
+        while (constantSlots[slot] != 0) {
+            Object key = constantKeys[slot];
+            if (key == value || (key != null && key.equals(value))) {
+                return constantSlots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        int index = constantCount++;
+        constants[index] = value;
+        constantKeys[slot] = value;
+        constantSlots[slot] = index + 1;
+        if (constantCount * 2 > constantKeys.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    private void rehash() {
+        constantKeys = new Object[constantKeys.length * 2];
+        constantSlots = new int[constantKeys.length];
+        int mask = constantKeys.length - 1;
+        for (int index = 0; index < constantCount; index++) {
+            int slot = hash(constants[index]) & mask;
+            while (constantSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            constantKeys[slot] = constants[index];
+            constantSlots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(Object value) {
+        int hash = value == null ? 0 : value.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private void ensure(int size) {
+        if (length + size > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + size));
+        }
+    }
+
+    /**
+     * @return the node type an instruction with the given opcode is encoded as
+     */
+    private static int shape(int opcode) {
+        if (opcode == BIPUSH || opcode == SIPUSH || opcode == NEWARRAY || opcode == RET) {
+            return AbstractInsnNode.INT_INSN;
+        } else if ((opcode >= ILOAD && opcode <= ALOAD) || (opcode >= ISTORE && opcode <= ASTORE)) {
+            return AbstractInsnNode.VAR_INSN;
+        } else if (opcode == NEW || opcode == ANEWARRAY || opcode == CHECKCAST || opcode == INSTANCEOF) {
+            return AbstractInsnNode.TYPE_INSN;
+        } else if (opcode >= GETSTATIC && opcode <= PUTFIELD) {
+            return AbstractInsnNode.FIELD_INSN;
+        } else if (opcode >= INVOKEVIRTUAL && opcode <= INVOKEINTERFACE) {
+            return AbstractInsnNode.METHOD_INSN;
+        } else if (opcode == INVOKEDYNAMIC) {
+            return AbstractInsnNode.INVOKE_DYNAMIC_INSN;
+        } else if ((opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL) {
+            return AbstractInsnNode.JUMP_INSN;
+        } else if (opcode == LDC || opcode == IINC || opcode == TABLESWITCH || opcode == LOOKUPSWITCH || opcode == MULTIANEWARRAY) {
+            return -1;
+        }
+        return AbstractInsnNode.INSN;
+    }
+
+    private static int entrySize(int opcode) {
+        switch (opcode) {
+            case LINE:
+            case IINC:
+            case MULTIANEWARRAY:
+                return 3;
+            case LOOKUPSWITCH:
+                return 4;
+            case TABLESWITCH:
+                return 5;
+            case LABEL:
+            case NODE:
+            case LDC:
+                return 2;
+            default:
+                switch (shape(opcode)) {
+                    case AbstractInsnNode.INSN:
+                        return 1;
+                    case AbstractInsnNode.FIELD_INSN:
+                        return 4;
+                    case AbstractInsnNode.METHOD_INSN:
+                    case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                        return 5;
+                    default:
+                        return 2;
+                }
+        }
+    }
+
+    /**
+     * @return true if the operand at the given offset of an instruction is an index into the constant table
+     */
+    private static boolean isConstant(int opcode, int offset) {
+        switch (opcode) {
+            case LINE:
+                return offset == 2;
+            case IINC:
+                return false;
+            case MULTIANEWARRAY:
+                return offset == 1;
+            case TABLESWITCH:
+                return offset >= 3;
+            case LOOKUPSWITCH:
+            case LABEL:
+            case NODE:
+            case LDC:
+                return true;
+            default:
+                int shape = shape(opcode);
+                return shape != AbstractInsnNode.INT_INSN && shape != AbstractInsnNode.VAR_INSN
+                        && !(shape == AbstractInsnNode.METHOD_INSN && offset == 4);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+/**
+ * What {@link JiteClass#toBytes} puts into the methods of a class to profile them.
+ *
+ * @see me.qmx.jitescript.runtime.Profiler
+ */
+public enum Instrumentation {
+    /** No probes at all: the methods are written exactly as built */
+    OFF,
+    /** Counts the invocations of every method */
+    COUNT,
+    /**
+     * Counts the invocations of every method, and times a sample of them from entry to each return or throw in the
+     * method
+     */
+    TIME
+}
@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.util.ArrayList;
+import java.util.List;
+import me.qmx.jitescript.runtime.MethodProfile;
+import me.qmx.jitescript.runtime.Profiler;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Puts the probes of an {@link Instrumentation} mode into every method with code. Each method gets a private static
+ * field holding its {@link MethodProfile}, looked up on its first run, and counts itself on entry; when timed, it
+ * also keeps the sampled start time in a new local, and records the latency before each return or throw.
+ * Constructors count themselves once the super constructor has run. Incoming stack map frames are dropped, since the
+ * new local shifts them all: instrumented classes have their frames computed.
+ */
+final class InstrumentingAdapter extends ClassVisitor {
+
+    private final boolean timed;
+    private final List<String> profileFields = new ArrayList<String>();
+    private String className;
+    private boolean instrumented;
+
+    private InstrumentingAdapter(ClassVisitor cv, boolean timed) {
+        super(Opcodes.ASM9, cv);
+        this.timed = timed;
+    }
+
+    /**
+     * @return the given visitor, behind an adapter putting in the probes of the given mode, if any
+     */
+    static ClassVisitor adapt(ClassVisitor cv, Instrumentation instrumentation) {
+        return instrumentation == Instrumentation.OFF ? cv
+                : new InstrumentingAdapter(cv, instrumentation == Instrumentation.TIME);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+        // interfaces can't have static fields other than constants
+        instrumented = (access & Opcodes.ACC_INTERFACE) == 0;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (mv == null || !instrumented || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return mv;
+        }
+        String field = "profile$" + profileFields.size();
+        profileFields.add(field);
+        return new Probes(mv, access, name, desc, field);
+    }
+
+    @Override
+    public void visitEnd() {
+        for (String field : profileFields) {
+            super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, field,
+                    ci(MethodProfile.class), null, null).visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    private final class Probes extends AdviceAdapter {
+        private final String methodName;
+        private final String field;
+        private int start;
+
+        Probes(MethodVisitor mv, int access, String name, String desc, String field) {
+            super(Opcodes.ASM9, mv, access, name, desc);
+            this.methodName = name;
+            this.field = field;
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            // the class writer computes every frame again, and the locals sorter would reject compressed ones
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            // racing first runs may both look the profile up, and get the same one
+            Label known = new Label();
+            visitFieldInsn(GETSTATIC, className, field, ci(MethodProfile.class));
+            visitInsn(DUP);
+            visitJumpInsn(IFNONNULL, known);
+            visitInsn(POP);
+            visitLdcInsn(className);
+            visitLdcInsn(methodName);
+            visitLdcInsn(methodDesc);
+            visitMethodInsn(INVOKESTATIC, p(Profiler.class), "profile",
+                    sig(MethodProfile.class, String.class, String.class, String.class), false);
+            visitInsn(DUP);
+            visitFieldInsn(PUTSTATIC, className, field, ci(MethodProfile.class));
+            visitLabel(known);
+            if (timed) {
+                start = newLocal(Type.LONG_TYPE);
+                visitMethodInsn(INVOKEVIRTUAL, p(MethodProfile.class), "enterTimed", sig(long.class), false);
+                storeLocal(start);
+            } else {
+                visitMethodInsn(INVOKEVIRTUAL, p(MethodProfile.class), "enter", sig(void.class), false);
+            }
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            if (timed) {
+                visitFieldInsn(GETSTATIC, className, field, ci(MethodProfile.class));
+                loadLocal(start);
+                visitMethodInsn(INVOKEVIRTUAL, p(MethodProfile.class), "exit", sig(void.class, long.class), false);
+            }
+        }
+    }
+}
@@ -20,7 +20,12 @@ import org.objectweb.asm.Opcodes;
 public enum JDKVersion implements Opcodes {
     V1_6(Opcodes.V1_6),
     V1_7(Opcodes.V1_7),
-    V1_8(Opcodes.V1_8);
+    V1_8(Opcodes.V1_8),
+    V9(Opcodes.V9),
+    V11(Opcodes.V11),
+    V17(Opcodes.V17),
+    V21(Opcodes.V21),
+    V25(Opcodes.V25);
 
     private final int ver;
 
@@ -31,4 +36,11 @@ public enum JDKVersion implements Opcodes {
     public int getVer() {
         return ver;
     }
+
+    /**
+     * @return true if class files of this version may use whatever the given version introduced
+     */
+    public boolean isAtLeast(JDKVersion version) {
+        return ver >= version.ver;
+    }
 }
@@ -20,11 +20,27 @@ import static me.qmx.jitescript.util.CodegenUtils.p;
 import static me.qmx.jitescript.util.CodegenUtils.sig;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import me.qmx.jitescript.cache.FingerprintVisitor;
+import me.qmx.jitescript.hierarchy.CachingTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassLoaderTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.JiteClassTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.JiteClassWriter;
+import me.qmx.jitescript.hierarchy.TypeHierarchy;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+import me.qmx.jitescript.opt.MethodSplitter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
 
 /**
  * Represents a Java Class
@@ -39,12 +55,19 @@ public class JiteClass implements Opcodes {
     private final List<String> interfaces = new ArrayList<String>();
     private final List<VisibleAnnotation> annotations = new ArrayList<VisibleAnnotation>();
     private final List<ChildEntry> childClasses = new ArrayList<ChildEntry>();
-    private final String className;
-    private final String superClassName;
+    private String className;
+    private String superClassName;
     private String sourceFile;
     private String sourceDebug;
     private int access = ACC_PUBLIC;
     private String parentClassName;
+    private TypeHierarchyResolver typeHierarchyResolver;
+    private int methodSizeLimit = MethodSplitter.MAX_METHOD_SIZE;
+    private boolean trackedFrames;
+    private Instrumentation instrumentation = Instrumentation.OFF;
+    private int lambdaCount;
+    private int constantFactoryCount;
+    boolean pooled;
 
     /**
      * Creates a new class representation
@@ -80,6 +103,38 @@ public class JiteClass implements Opcodes {
         }
     }
 
+    /**
+     * Clears this class representation, as if it was just created with the given names, while keeping the storage
+     * it has grown. The code blocks of its methods are left alone.
+     *
+     * @param className      the desired class name
+     * @param superClassName the desired parent class
+     * @param interfaces     the desired java interfaces this class will implement
+     * @see BuilderPool#release(JiteClass)
+     */
+    public void reset(String className, String superClassName, String[] interfaces) {
+        this.className = className;
+        this.superClassName = superClassName;
+        this.interfaces.clear();
+        for (String anInterface : interfaces) {
+            this.interfaces.add(anInterface);
+        }
+        methods.clear();
+        fields.clear();
+        annotations.clear();
+        childClasses.clear();
+        sourceFile = null;
+        sourceDebug = null;
+        access = ACC_PUBLIC;
+        parentClassName = null;
+        typeHierarchyResolver = null;
+        methodSizeLimit = MethodSplitter.MAX_METHOD_SIZE;
+        trackedFrames = false;
+        instrumentation = Instrumentation.OFF;
+        lambdaCount = 0;
+        constantFactoryCount = 0;
+    }
+
     public int getAccess() {
         return access;
     }
@@ -88,10 +143,22 @@ public class JiteClass implements Opcodes {
         return className;
     }
 
+    public String getSuperClassName() {
+        return superClassName;
+    }
+
+    public String[] getInterfaces() {
+        return interfaces.toArray(new String[interfaces.size()]);
+    }
+
     public String getParentClassName() {
         return parentClassName;
     }
 
+    public TypeHierarchyResolver getTypeHierarchyResolver() {
+        return typeHierarchyResolver;
+    }
+
     public void setAccess(int access) {
         this.access = access;
     }
@@ -100,6 +167,64 @@ public class JiteClass implements Opcodes {
         this.parentClassName = parentClassName;
     }
 
+    /**
+     * Sets the resolver used to compute stack map frames. Without one, ASM loads the classes it needs to compare
+     * through reflection.
+     *
+     * @param typeHierarchyResolver the resolver for every type this class does not define itself
+     */
+    public void setTypeHierarchyResolver(TypeHierarchyResolver typeHierarchyResolver) {
+        this.typeHierarchyResolver = typeHierarchyResolver;
+    }
+
+    public int getMethodSizeLimit() {
+        return methodSizeLimit;
+    }
+
+    /**
+     * Sets the code size, in bytes, above which straight-line regions of a method are moved into private static
+     * helper methods. It defaults to the JVM limit, {@link MethodSplitter#MAX_METHOD_SIZE}; lowering it to
+     * {@link MethodSplitter#HUGE_METHOD_LIMIT} keeps generated methods small enough for HotSpot to JIT compile them.
+     *
+     * @param methodSizeLimit the size limit of method code
+     * @see MethodSplitter
+     */
+    public void setMethodSizeLimit(int methodSizeLimit) {
+        this.methodSizeLimit = methodSizeLimit;
+    }
+
+    public boolean isTrackedFrames() {
+        return trackedFrames;
+    }
+
+    /**
+     * Makes {@link #toBytes} write the stack map frames of methods whose bodies tracked their stack from the tracked
+     * types, instead of having ASM analyze every method again. Methods without a complete tracked state, and methods
+     * split for size, still get their frames computed by ASM, one scratch class for all of them.
+     *
+     * @param trackedFrames whether to write frames from tracked stacks
+     * @see CodeBlock#trackStack(String, int, String)
+     */
+    public void setTrackedFrames(boolean trackedFrames) {
+        this.trackedFrames = trackedFrames;
+    }
+
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Makes {@link #toBytes} put profiling probes into every method, recording into the
+     * {@link me.qmx.jitescript.runtime.Profiler#global() global profiler}. Instrumented classes always have their
+     * frames computed by ASM, since the probes change the locals of every method. It is off by default, and then
+     * leaves the methods untouched.
+     *
+     * @param instrumentation what to record
+     */
+    public void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
     public void setSourceFile(String sourceFile) {
         this.sourceFile = sourceFile;
     }
@@ -131,6 +256,10 @@ public class JiteClass implements Opcodes {
         return childClasses;
     }
 
+    List<MethodDefinition> getMethods() {
+        return methods;
+    }
+
     /**
      * Defines a new method on the target class
      *
@@ -140,7 +269,33 @@ public class JiteClass implements Opcodes {
      * @param methodBody the method body
      */
     public void defineMethod(String methodName, int modifiers, String signature, CodeBlock methodBody) {
-        this.methods.add(new MethodDefinition(methodName, modifiers, signature, methodBody));
+        this.methods.add(new MethodDefinition(className, methodName, modifiers, signature, methodBody));
+    }
+
+    /**
+     * Defines the private static synthetic method implementing a lambda, named like the ones javac generates
+     *
+     * @param signature  the method signature, captured values first and then the parameters of the interface method
+     * @param methodBody the method body
+     * @return the handle to hand to {@link CodeBlock#lambda(Class, Handle)}
+     */
+    public Handle defineLambda(String signature, CodeBlock methodBody) {
+        String name = "lambda$" + lambdaCount++;
+        defineMethod(name, ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, signature, methodBody);
+        return new Handle(H_INVOKESTATIC, className, name, signature, false);
+    }
+
+    /**
+     * Defines the private static synthetic method computing a lazy constant
+     *
+     * @param type       the type of the constant
+     * @param methodBody the method body, taking nothing and returning the constant
+     * @return the handle to hand to {@link CodeBlock#lazyConstant(String, Class, Handle)}
+     */
+    public Handle defineConstantFactory(Class<?> type, CodeBlock methodBody) {
+        String name = "constant$" + constantFactoryCount++;
+        defineMethod(name, ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, sig(type), methodBody);
+        return new Handle(H_INVOKESTATIC, className, name, sig(type), false);
     }
 
     /**
@@ -190,6 +345,266 @@ public class JiteClass implements Opcodes {
      * @return the bytecode representation of this class
      */
     public byte[] toBytes(JDKVersion version) {
+        return toBytes(version, typeHierarchyResolver);
+    }
+
+    /**
+     * Convert this class representation to JDK bytecode
+     *
+     * @param version  the desired JDK version
+     * @param resolver the resolver used to compute frames in place of the one set on this class
+     * @return the bytecode representation of this class
+     */
+    public byte[] toBytes(JDKVersion version, TypeHierarchyResolver resolver) {
+        return toBytes(version, resolver, null, Collections.<String>emptyList());
+    }
+
+    private byte[] toBytes(JDKVersion version, TypeHierarchyResolver resolver, String nestHost, List<String> nestMembers) {
+        boolean tracked = trackedFrames && instrumentation == Instrumentation.OFF;
+        ClassWriter cw = tracked ? new ClassWriter(0) : newClassWriter(resolver);
+        JiteMetrics metrics = JiteMetricsRegistry.get();
+        if (metrics == null) {
+            accept(cw, version, resolver, tracked, nestHost, nestMembers);
+            return cw.toByteArray();
+        }
+        for (MethodDefinition def : methods) {
+            metrics.methodEmitted(className, def.getMethodName(), def.getMethodBody().instructionCount());
+        }
+        long allocated = JiteMetricsRegistry.threadAllocatedBytes();
+        long start = System.nanoTime();
+        FrameTimer timer = new FrameTimer(cw);
+        accept(timer, version, resolver, tracked, nestHost, nestMembers);
+        long built = System.nanoTime();
+        byte[] bytes = cw.toByteArray();
+        long serialized = System.nanoTime();
+        if (allocated >= 0) {
+            allocated = JiteMetricsRegistry.threadAllocatedBytes() - allocated;
+        }
+        metrics.classEmitted(className, built - start - timer.nanos, timer.nanos, serialized - built, bytes.length,
+                allocated);
+        return bytes;
+    }
+
+    /**
+     * Converts this class and all of its child classes, recursively, to JDK bytecode
+     *
+     * @return the bytecode of each class by internal name, this class first and every class before its children
+     * @see #toBytesAll(JDKVersion, TypeHierarchyResolver)
+     */
+    public Map<String, byte[]> toBytesAll() {
+        return toBytesAll(JDKVersion.V1_6);
+    }
+
+    /**
+     * Converts this class and all of its child classes, recursively, to JDK bytecode
+     *
+     * @param version the desired JDK version
+     * @return the bytecode of each class by internal name, this class first and every class before its children
+     * @see #toBytesAll(JDKVersion, TypeHierarchyResolver)
+     */
+    public Map<String, byte[]> toBytesAll(JDKVersion version) {
+        return toBytesAll(version, typeHierarchyResolver);
+    }
+
+    /**
+     * Converts this class and all of its child classes, recursively, to JDK bytecode. Every class of the tree looks
+     * types up through the same cache, and from Java 11 on, this class is written as the nest host of all the others,
+     * so that they can reach each other's private members without synthetic accessors.
+     *
+     * @param version  the desired JDK version
+     * @param resolver the resolver used to compute frames for every class of the tree, in place of their own
+     * @return the bytecode of each class by internal name, this class first and every class before its children
+     */
+    public Map<String, byte[]> toBytesAll(JDKVersion version, TypeHierarchyResolver resolver) {
+        List<JiteClass> nest = new ArrayList<JiteClass>();
+        collectNest(this, nest);
+        if (resolver == null) {
+            resolver = new ClassLoaderTypeHierarchyResolver(getClass().getClassLoader());
+        }
+        TypeHierarchyResolver shared = new CachingTypeHierarchyResolver(new JiteClassTypeHierarchyResolver(this, resolver));
+        boolean nestmates = version.isAtLeast(JDKVersion.V11) && nest.size() > 1;
+        List<String> members = new ArrayList<String>();
+        if (nestmates) {
+            for (JiteClass member : nest.subList(1, nest.size())) {
+                members.add(member.getClassName());
+            }
+        }
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (JiteClass jiteClass : nest) {
+            byte[] bytes = jiteClass == this
+                    ? toBytes(version, shared, null, members)
+                    : jiteClass.toBytes(version, shared, nestmates ? className : null, Collections.<String>emptyList());
+            classes.put(jiteClass.getClassName(), bytes);
+        }
+        return classes;
+    }
+
+    private static void collectNest(JiteClass jiteClass, List<JiteClass> nest) {
+        nest.add(jiteClass);
+        for (ChildEntry child : jiteClass.childClasses) {
+            collectNest(child.getJiteClass(), nest);
+        }
+    }
+
+    private ClassWriter newClassWriter(TypeHierarchyResolver resolver) {
+        if (resolver == null) {
+            return new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        }
+        return new JiteClassWriter(ClassWriter.COMPUTE_FRAMES, new JiteClassTypeHierarchyResolver(this, resolver));
+    }
+
+    /**
+     * Visits this class representation straight into the given visitor, without building an intermediate
+     * {@link ClassNode} tree
+     *
+     * @param cv      the visitor receiving the class contents
+     * @param version the desired JDK version
+     */
+    public void accept(ClassVisitor cv, JDKVersion version) {
+        accept(cv, version, typeHierarchyResolver, false, null, Collections.<String>emptyList());
+    }
+
+    private void accept(ClassVisitor cv, JDKVersion version, TypeHierarchyResolver resolver, boolean trackedFrames,
+            String nestHost, List<String> nestMembers) {
+        cv = InstrumentingAdapter.adapt(TargetVersionAdapter.adapt(cv, version), instrumentation);
+        visitHeader(cv, version);
+
+        if (sourceFile != null || sourceDebug != null) {
+            cv.visitSource(sourceFile, sourceDebug);
+        }
+
+        if (nestHost != null) {
+            cv.visitNestHost(nestHost);
+        }
+
+        if (parentClassName != null) {
+            cv.visitOuterClass(parentClassName, null, null);
+        }
+
+        for (VisibleAnnotation a : annotations) {
+            AnnotationNode annotation = a.getNode();
+            annotation.accept(cv.visitAnnotation(annotation.desc, true));
+        }
+
+        for (String nestMember : nestMembers) {
+            cv.visitNestMember(nestMember);
+        }
+
+        for (ChildEntry child : childClasses) {
+            cv.visitInnerClass(child.getClassName(), className, child.getInnerName(), child.getAccess());
+        }
+
+        for (FieldDefinition def : fields) {
+            def.accept(cv);
+        }
+
+        if (trackedFrames) {
+            acceptMethodsWithTrackedFrames(cv, version, resolver);
+        } else {
+            MethodSplitter splitter = null;
+            for (MethodDefinition def : methods) {
+                if (splitter == null && needsSplitting(def)) {
+                    splitter = newMethodSplitter(resolver);
+                }
+                acceptMethod(cv, def, splitter);
+            }
+        }
+
+        cv.visitEnd();
+    }
+
+    private void visitHeader(ClassVisitor cv, JDKVersion version) {
+        cv.visit(version.getVer(), this.access | ACC_SUPER, this.className, null, this.superClassName,
+                this.interfaces.toArray(new String[this.interfaces.size()]));
+    }
+
+    private boolean needsSplitting(MethodDefinition def) {
+        return (access & ACC_INTERFACE) == 0 && def.getMethodBody().codeSize() > methodSizeLimit;
+    }
+
+    /**
+     * @return the number of methods visited, helpers split out of the method included
+     */
+    private int acceptMethod(ClassVisitor cv, MethodDefinition def, MethodSplitter splitter) {
+        if (!needsSplitting(def)) {
+            def.accept(cv);
+            return 1;
+        }
+        MethodNode method = def.copyMethodNode();
+        List<MethodNode> helpers = splitter.split(method);
+        method.accept(cv);
+        for (MethodNode helper : helpers) {
+            helper.accept(cv);
+        }
+        return 1 + helpers.size();
+    }
+
+    private void acceptMethodsWithTrackedFrames(ClassVisitor cv, JDKVersion version, TypeHierarchyResolver resolver) {
+        // the methods without tracked frames go through a scratch class computing them, and are copied back in order
+        int[] counts = new int[methods.size()];
+        ClassWriter scratch = null;
+        MethodSplitter splitter = null;
+        for (int i = 0; i < counts.length; i++) {
+            MethodDefinition def = methods.get(i);
+            if (!needsSplitting(def) && def.getMethodBody().hasTrackedFrames()) {
+                continue;
+            }
+            if (scratch == null) {
+                scratch = newClassWriter(resolver);
+                visitHeader(scratch, version);
+            }
+            if (splitter == null && needsSplitting(def)) {
+                splitter = newMethodSplitter(resolver);
+            }
+            counts[i] = acceptMethod(scratch, def, splitter);
+        }
+        List<?> computed = Collections.emptyList();
+        if (scratch != null) {
+            scratch.visitEnd();
+            ClassNode node = new ClassNode();
+            new ClassReader(scratch.toByteArray()).accept(node, 0);
+            computed = node.methods;
+        }
+        int next = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                methods.get(i).acceptWithTrackedFrames(cv);
+            }
+            for (int j = 0; j < counts[i]; j++) {
+                ((MethodNode) computed.get(next++)).accept(cv);
+            }
+        }
+    }
+
+    private MethodSplitter newMethodSplitter(TypeHierarchyResolver resolver) {
+        if (resolver == null) {
+            resolver = new ClassLoaderTypeHierarchyResolver(getClass().getClassLoader());
+        }
+        TypeHierarchy hierarchy = new TypeHierarchy(new JiteClassTypeHierarchyResolver(this, resolver));
+        return new MethodSplitter(className, hierarchy, methodSizeLimit);
+    }
+
+    /**
+     * Computes a structural fingerprint of this class: two classes with the same name, hierarchy, annotations,
+     * fields and method bodies share a fingerprint, whichever way they were built
+     *
+     * @return the fingerprint, as a hex string
+     */
+    public String fingerprint() {
+        FingerprintVisitor visitor = new FingerprintVisitor();
+        accept(visitor, JDKVersion.V1_6);
+        return visitor.getFingerprint();
+    }
+
+    /**
+     * Convert this class representation to an ASM tree
+     *
+     * Note that the instructions of every method are moved into the returned tree.
+     *
+     * @param version the desired JDK version
+     * @return the tree representation of this class
+     */
+    public ClassNode toClassNode(JDKVersion version) {
         ClassNode node = new ClassNode();
         node.version = version.getVer();
         node.access = this.access | ACC_SUPER;
@@ -226,9 +641,31 @@ public class JiteClass implements Opcodes {
             node.visibleAnnotations.add(a.getNode());
         }
 
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        node.accept(cw);
-        return cw.toByteArray();
+        return node;
+    }
+
+    /**
+     * Times the stack map frames and maximums ASM computes as each method ends
+     */
+    private static final class FrameTimer extends ClassVisitor {
+        long nanos;
+
+        FrameTimer(ClassVisitor cv) {
+            super(ASM9, cv);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            return mv == null ? null : new MethodVisitor(ASM9, mv) {
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals) {
+                    long start = System.nanoTime();
+                    super.visitMaxs(maxStack, maxLocals);
+                    nanos += System.nanoTime() - start;
+                }
+            };
+        }
     }
 
     private static final class ChildEntry {
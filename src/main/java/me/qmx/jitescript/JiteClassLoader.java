@@ -0,0 +1,257 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.util.CodegenUtils.c;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import me.qmx.jitescript.cache.BytecodeCache;
+import me.qmx.jitescript.hierarchy.CachingTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassFileTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassLoaderTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.TypeInfo;
+
+/**
+ * Defines {@link JiteClass}es, together with their child classes, lazily: nothing is emitted until the class is
+ * first requested through {@link #findClass(String)}.
+ *
+ * Classes without a {@link TypeHierarchyResolver} of their own get their frames computed against every class added
+ * to this loader, then against the class files visible from it, so classes of the same batch may reference each
+ * other freely.
+ *
+ * When given a {@link MethodHandles.Lookup} through {@link #setHiddenClassLookup(MethodHandles.Lookup)}, and running
+ * on a JVM with hidden classes, {@link #define(JiteClass)} defines unloadable hidden classes instead.
+ */
+public class JiteClassLoader extends ClassLoader implements TypeHierarchyResolver {
+
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_CLASS_OPTIONS;
+
+    static {
+        registerAsParallelCapable();
+
+        Method defineHiddenClass = null;
+        Object noClassOptions = null;
+        try {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noClassOptions = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                    noClassOptions.getClass());
+        } catch (ClassNotFoundException e) {
+            // hidden classes need Java 15
+        } catch (NoSuchMethodException e) {
+            // hidden classes need Java 15
+        }
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_CLASS_OPTIONS = noClassOptions;
+    }
+
+    private final ConcurrentMap<String, JiteClass> pending = new ConcurrentHashMap<String, JiteClass>();
+    private final ConcurrentMap<String, TypeInfo> types = new ConcurrentHashMap<String, TypeInfo>();
+    private final TypeHierarchyResolver classFiles;
+    private final TypeHierarchyResolver loadedClasses;
+    private final JDKVersion version;
+    private volatile MethodHandles.Lookup hiddenClassLookup;
+    private volatile BytecodeCache bytecodeCache;
+
+    public JiteClassLoader() {
+        this(getSystemClassLoader());
+    }
+
+    public JiteClassLoader(ClassLoader parent) {
+        this(parent, JDKVersion.V1_6);
+    }
+
+    /**
+     * @param parent  the parent class loader
+     * @param version the JDK version every class of this loader is emitted for
+     */
+    public JiteClassLoader(ClassLoader parent, JDKVersion version) {
+        super(parent);
+        this.version = version;
+        this.classFiles = new CachingTypeHierarchyResolver(new ClassFileTypeHierarchyResolver(parent));
+        this.loadedClasses = new ClassLoaderTypeHierarchyResolver(this);
+    }
+
+    /**
+     * @return true if the running JVM can define hidden classes
+     */
+    public static boolean isHiddenClassSupported() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    /**
+     * Makes {@link #define(JiteClass)} define hidden classes through the given lookup, when the JVM supports them.
+     * Hidden classes are unloaded as soon as they become unreachable, but they cannot be found by name: they are
+     * meant for self-contained classes, and must live in the package of the lookup class.
+     *
+     * @param lookup a lookup with full privileges, or null to define regular classes again
+     */
+    public void setHiddenClassLookup(MethodHandles.Lookup lookup) {
+        this.hiddenClassLookup = lookup;
+    }
+
+    /**
+     * Makes this loader take the bytecode of structurally identical classes from the given cache instead of
+     * emitting it again
+     *
+     * @param bytecodeCache the cache to share, or null to always emit
+     */
+    public void setBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+    }
+
+    public JDKVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * Registers the given class, and its child classes, to be defined on first use
+     *
+     * @param jiteClass the class to register
+     */
+    public void add(JiteClass jiteClass) {
+        Deque<JiteClass> classes = new ArrayDeque<JiteClass>();
+        classes.add(jiteClass);
+        while (!classes.isEmpty()) {
+            JiteClass next = classes.poll();
+            types.put(next.getClassName(), TypeInfo.fromAccess(next.getClassName(), next.getAccess(),
+                    next.getSuperClassName(), next.getInterfaces()));
+            pending.put(c(next.getClassName()), next);
+            classes.addAll(next.getChildClasses());
+        }
+    }
+
+    /**
+     * Defines the given class right away; its child classes are still defined on first use
+     *
+     * @param jiteClass the class to define
+     * @return the defined class
+     */
+    public Class<?> define(JiteClass jiteClass) {
+        MethodHandles.Lookup lookup = hiddenClassLookup;
+        if (lookup != null && isHiddenClassSupported()) {
+            return defineHidden(jiteClass, toBytes(jiteClass), lookup);
+        }
+        add(jiteClass);
+        try {
+            return loadClass(c(jiteClass.getClassName()));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("could not define " + jiteClass.getClassName(), e);
+        }
+    }
+
+    /**
+     * Defines the given class right away from already emitted bytecode; its child classes are still defined on
+     * first use
+     *
+     * @param jiteClass the class the bytecode was emitted from
+     * @param bytes     the bytecode representation of the class
+     * @return the defined class
+     */
+    public Class<?> define(JiteClass jiteClass, byte[] bytes) {
+        MethodHandles.Lookup lookup = hiddenClassLookup;
+        if (lookup != null && isHiddenClassSupported()) {
+            return defineHidden(jiteClass, bytes, lookup);
+        }
+        add(jiteClass);
+        String name = c(jiteClass.getClassName());
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> definedClass = findLoadedClass(name);
+            if (definedClass == null) {
+                definedClass = define(name, bytes);
+            }
+            pending.remove(name);
+            return definedClass;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        JiteClass jiteClass = pending.get(name);
+        if (jiteClass == null) {
+            throw new ClassNotFoundException(name);
+        }
+        byte[] bytes = toBytes(jiteClass);
+        Class<?> definedClass = define(name, bytes);
+        pending.remove(name);
+        return definedClass;
+    }
+
+    public TypeInfo resolve(String internalName) {
+        TypeInfo info = types.get(internalName);
+        if (info == null) {
+            info = classFiles.resolve(internalName);
+        }
+        if (info == null) {
+            info = loadedClasses.resolve(internalName);
+        }
+        return info;
+    }
+
+    private byte[] toBytes(JiteClass jiteClass) {
+        TypeHierarchyResolver resolver = jiteClass.getTypeHierarchyResolver();
+        if (resolver == null) {
+            resolver = this;
+        }
+        BytecodeCache cache = bytecodeCache;
+        return cache == null ? jiteClass.toBytes(version, resolver) : cache.toBytes(jiteClass, version, resolver);
+    }
+
+    private Class<?> define(String name, byte[] bytes) {
+        JiteMetrics metrics = JiteMetricsRegistry.get();
+        if (metrics == null) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+        long start = System.nanoTime();
+        Class<?> definedClass = defineClass(name, bytes, 0, bytes.length);
+        metrics.classDefined(p(definedClass), System.nanoTime() - start);
+        return definedClass;
+    }
+
+    private Class<?> defineHidden(JiteClass jiteClass, byte[] bytes, MethodHandles.Lookup lookup) {
+        try {
+            JiteMetrics metrics = JiteMetricsRegistry.get();
+            long start = metrics == null ? 0 : System.nanoTime();
+            MethodHandles.Lookup hidden = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(lookup, bytes, false,
+                    NO_CLASS_OPTIONS);
+            if (metrics != null) {
+                metrics.classDefined(jiteClass.getClassName(), System.nanoTime() - start);
+            }
+            return hidden.lookupClass();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("could not define hidden class " + jiteClass.getClassName(), e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("could not define hidden class " + jiteClass.getClassName(), cause);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import me.qmx.jitescript.cache.BytecodeCache;
+import me.qmx.jitescript.hierarchy.CachingTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.ClassFileTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.JiteClassTypeHierarchyResolver;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+
+/**
+ * Emits batches of {@link JiteClass}es in parallel on any {@link Executor}, be it a fork-join pool, a fixed thread
+ * pool or one virtual thread per task.
+ *
+ * Every class of a batch, child classes included, computes its frames against one shared resolver that knows the
+ * whole batch and caches everything else, so classes may reference each other and hierarchy lookups are done once
+ * per batch. Classes of a batch must not share {@link CodeBlock}s, since emitting a block resets its labels.
+ */
+public class JiteCompiler {
+
+    private final JDKVersion version;
+    private final TypeHierarchyResolver fallback;
+    private volatile BytecodeCache bytecodeCache;
+
+    /**
+     * Creates a compiler resolving types outside of a batch from the class files visible to jitescript
+     *
+     * @param version the JDK version every class is emitted for
+     */
+    public JiteCompiler(JDKVersion version) {
+        this(version, new CachingTypeHierarchyResolver(new ClassFileTypeHierarchyResolver(JiteCompiler.class.getClassLoader())));
+    }
+
+    /**
+     * @param version  the JDK version every class is emitted for
+     * @param fallback the resolver for every type outside of a batch; shared by every thread, so it must be safe
+     *                 for concurrent use
+     */
+    public JiteCompiler(JDKVersion version, TypeHierarchyResolver fallback) {
+        this.version = version;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @param bytecodeCache the cache every emission goes through, or null to always emit
+     */
+    public void setBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+    }
+
+    /**
+     * Schedules the emission of every given class and their child classes
+     *
+     * @param classes  the classes to emit
+     * @param executor the executor to run emission tasks on
+     * @return the pending bytecode of every class, by class name, in batch order
+     */
+    public Map<String, Future<byte[]>> submitAll(Collection<JiteClass> classes, Executor executor) {
+        final TypeHierarchyResolver resolver = new CachingTypeHierarchyResolver(
+                new JiteClassTypeHierarchyResolver(classes, fallback));
+        final BytecodeCache cache = bytecodeCache;
+        Map<String, Future<byte[]>> results = new LinkedHashMap<String, Future<byte[]>>();
+        for (final JiteClass jiteClass : withChildren(classes)) {
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() {
+                    if (cache != null) {
+                        return cache.toBytes(jiteClass, version, resolver);
+                    }
+                    return jiteClass.toBytes(version, resolver);
+                }
+            });
+            results.put(jiteClass.getClassName(), task);
+            executor.execute(task);
+        }
+        return results;
+    }
+
+    /**
+     * Emits every given class and their child classes in parallel, waiting for all of them
+     *
+     * @param classes  the classes to emit
+     * @param executor the executor to run emission tasks on
+     * @return the bytecode of every class, by class name, in batch order
+     * @throws InterruptedException if interrupted while waiting for emission to finish
+     */
+    public Map<String, byte[]> compileAll(Collection<JiteClass> classes, Executor executor) throws InterruptedException {
+        Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, Future<byte[]>> pending : submitAll(classes, executor).entrySet()) {
+            try {
+                results.put(pending.getKey(), pending.getValue().get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("could not emit " + pending.getKey(), cause);
+            }
+        }
+        return results;
+    }
+
+    private static Collection<JiteClass> withChildren(Collection<JiteClass> classes) {
+        Collection<JiteClass> all = new ArrayDeque<JiteClass>();
+        Deque<JiteClass> pending = new ArrayDeque<JiteClass>(classes);
+        while (!pending.isEmpty()) {
+            JiteClass jiteClass = pending.poll();
+            all.add(jiteClass);
+            pending.addAll(jiteClass.getChildClasses());
+        }
+        return all;
+    }
+}
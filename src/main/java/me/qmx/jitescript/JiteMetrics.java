@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+/**
+ * Listens to what code generation costs: the time each class spends in every phase of {@link JiteClass#toBytes},
+ * the size of what it emits and the memory it allocates doing so, and what happens as classes get defined and looked
+ * up in caches. Install one with {@link JiteMetricsRegistry#set}; without one, nothing gets timed at all.
+ * Implementations are called from every thread generating code, so they have to be thread safe.
+ *
+ * @see JiteMetricsCollector
+ */
+public interface JiteMetrics {
+
+    /**
+     * A method was emitted, either into bytecode or into an ASM tree by {@link MethodDefinition#getMethodNode}.
+     *
+     * @param className    the internal name of the class, null for a method definition built without one
+     * @param methodName   the name of the method
+     * @param instructions the number of instructions in the method, leaving labels and line numbers out
+     */
+    void methodEmitted(String className, String methodName, int instructions);
+
+    /**
+     * A class was converted to bytecode.
+     *
+     * @param className      the internal name of the class
+     * @param buildNanos     the time spent visiting the class and its methods into the writer, frames left out
+     * @param frameNanos     the time ASM spent computing stack map frames and maximums
+     * @param serializeNanos the time spent writing the class file out
+     * @param bytes          the size of the class file
+     * @param allocated      the bytes the emitting thread allocated for it, or -1 if the JVM does not count them
+     */
+    void classEmitted(String className, long buildNanos, long frameNanos, long serializeNanos, int bytes, long allocated);
+
+    /**
+     * A class was defined by a {@link JiteClassLoader}.
+     *
+     * @param className the internal name of the class
+     * @param nanos     the time the JVM took to define it
+     */
+    void classDefined(String className, long nanos);
+
+    /**
+     * A class was looked up in a {@link me.qmx.jitescript.cache.BytecodeCache}.
+     *
+     * @param className the internal name of the class
+     * @param hit       true if its bytecode was cached, in memory or in the cache's pack
+     */
+    void cacheAccessed(String className, boolean hit);
+}
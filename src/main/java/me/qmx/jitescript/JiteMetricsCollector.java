@@ -0,0 +1,177 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Sums up everything reported to it into running totals. The totals are plain getters, so any metrics library can
+ * poll them, and {@link #register(MBeanServer)} publishes them over JMX as well.
+ */
+public class JiteMetricsCollector implements JiteMetrics, JiteMetricsMXBean {
+
+    /** The name this collector registers under by default */
+    public static final String OBJECT_NAME = "me.qmx.jitescript:type=JiteMetrics";
+
+    private final AtomicLong classesEmitted = new AtomicLong();
+    private final AtomicLong bytesEmitted = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+    private final AtomicLong frameNanos = new AtomicLong();
+    private final AtomicLong serializeNanos = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong methodsEmitted = new AtomicLong();
+    private final AtomicLong instructionsEmitted = new AtomicLong();
+    private final AtomicLong maxMethodInstructions = new AtomicLong();
+    private final AtomicLong classesDefined = new AtomicLong();
+    private final AtomicLong defineNanos = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    @Override
+    public void methodEmitted(String className, String methodName, int instructions) {
+        methodsEmitted.incrementAndGet();
+        instructionsEmitted.addAndGet(instructions);
+        long max = maxMethodInstructions.get();
+        while (instructions > max && !maxMethodInstructions.compareAndSet(max, instructions)) {
+            max = maxMethodInstructions.get();
+        }
+    }
+
+    @Override
+    public void classEmitted(String className, long buildNanos, long frameNanos, long serializeNanos, int bytes,
+            long allocated) {
+        classesEmitted.incrementAndGet();
+        bytesEmitted.addAndGet(bytes);
+        this.buildNanos.addAndGet(buildNanos);
+        this.frameNanos.addAndGet(frameNanos);
+        this.serializeNanos.addAndGet(serializeNanos);
+        if (allocated > 0) {
+            allocatedBytes.addAndGet(allocated);
+        }
+    }
+
+    @Override
+    public void classDefined(String className, long nanos) {
+        classesDefined.incrementAndGet();
+        defineNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void cacheAccessed(String className, boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+    }
+
+    /**
+     * Registers this collector with the given server, under {@link #OBJECT_NAME}.
+     *
+     * @param server the server to register with, such as {@link ManagementFactory#getPlatformMBeanServer()}
+     * @return the name this collector is registered under
+     */
+    public ObjectName register(MBeanServer server) {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public long getClassesEmitted() {
+        return classesEmitted.get();
+    }
+
+    @Override
+    public long getBytesEmitted() {
+        return bytesEmitted.get();
+    }
+
+    @Override
+    public long getBuildNanos() {
+        return buildNanos.get();
+    }
+
+    @Override
+    public long getFrameNanos() {
+        return frameNanos.get();
+    }
+
+    @Override
+    public long getSerializeNanos() {
+        return serializeNanos.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public long getMethodsEmitted() {
+        return methodsEmitted.get();
+    }
+
+    @Override
+    public long getInstructionsEmitted() {
+        return instructionsEmitted.get();
+    }
+
+    @Override
+    public long getMaxMethodInstructions() {
+        return maxMethodInstructions.get();
+    }
+
+    @Override
+    public long getClassesDefined() {
+        return classesDefined.get();
+    }
+
+    @Override
+    public long getDefineNanos() {
+        return defineNanos.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong counter : new AtomicLong[]{classesEmitted, bytesEmitted, buildNanos, frameNanos,
+                serializeNanos, allocatedBytes, methodsEmitted, instructionsEmitted, maxMethodInstructions,
+                classesDefined, defineNanos, cacheHits, cacheMisses}) {
+            counter.set(0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+/**
+ * The management interface of {@link JiteMetricsCollector}. Times are totals, in nanoseconds.
+ */
+public interface JiteMetricsMXBean {
+
+    long getClassesEmitted();
+
+    long getBytesEmitted();
+
+    long getBuildNanos();
+
+    long getFrameNanos();
+
+    long getSerializeNanos();
+
+    /**
+     * @return the bytes allocated while emitting classes, zero where the JVM does not count them
+     */
+    long getAllocatedBytes();
+
+    long getMethodsEmitted();
+
+    long getInstructionsEmitted();
+
+    long getMaxMethodInstructions();
+
+    long getClassesDefined();
+
+    long getDefineNanos();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    void reset();
+}
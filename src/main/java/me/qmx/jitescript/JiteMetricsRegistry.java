@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Holds the {@link JiteMetrics} every class, loader and cache reports into.
+ */
+public final class JiteMetricsRegistry {
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCountingThreads();
+
+    private static volatile JiteMetrics metrics;
+
+    private JiteMetricsRegistry() {
+    }
+
+    /**
+     * @return the installed metrics, or null if there are none
+     */
+    public static JiteMetrics get() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics to report into from now on, or null to stop reporting
+     */
+    public static void set(JiteMetrics metrics) {
+        JiteMetricsRegistry.metrics = metrics;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM does not count them
+     */
+    static long threadAllocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCountingThreads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting;
+            }
+        }
+        return null;
+    }
+}
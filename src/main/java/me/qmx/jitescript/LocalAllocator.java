@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.LabelNode;
+
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+
+/**
+ * Hands out local variable slots for a {@link CodeBlock}, so that callers don't have to number them by hand.
+ *
+ * Slots are allocated in scopes: leaving a scope frees every slot allocated in it for reuse by the next ones,
+ * the way javac reuses the slots of variables declared in sibling blocks. Longs and doubles take two slots.
+ * Named locals get a local variable table entry covering the code between their first
+ * {@link CodeBlock#store(Local) store} and the end of their scope, as javac does; a named local never stored that
+ * way gets none. Parameters, including {@code this}, must be allocated first, in order, before any code or scope:
+ * their entries cover the whole method.
+ */
+public final class LocalAllocator {
+
+    private final CodeBlock block;
+    private final List<Local> locals = new ArrayList<Local>();
+    private final List<Scope> scopes = new ArrayList<Scope>();
+    private int nextSlot;
+    private int maxLocals;
+    private boolean allocatingParameters = true;
+
+    LocalAllocator(CodeBlock block) {
+        this.block = block;
+        scopes.add(new Scope(0, 0));
+    }
+
+    /**
+     * Allocates a named local, listed in the local variable table
+     *
+     * @param name the name of the local
+     * @param type the type of the local
+     * @return the local
+     */
+    public Local allocate(String name, Class<?> type) {
+        return allocate(name, ci(type));
+    }
+
+    /**
+     * Allocates a named local, listed in the local variable table
+     *
+     * @param name the name of the local
+     * @param desc the type descriptor of the local
+     * @return the local
+     */
+    public Local allocate(String name, String desc) {
+        if (name == null) {
+            throw new IllegalArgumentException("locals need a name, use temp() for unnamed ones");
+        }
+        return newLocal(name, desc);
+    }
+
+    /**
+     * Allocates an unnamed local, left out of the local variable table
+     *
+     * @param type the type of the local
+     * @return the local
+     */
+    public Local temp(Class<?> type) {
+        return newLocal(null, ci(type));
+    }
+
+    /**
+     * Opens a new scope, nested in the current one
+     */
+    public LocalAllocator enterScope() {
+        allocatingParameters = false;
+        scopes.add(new Scope(nextSlot, locals.size()));
+        return this;
+    }
+
+    /**
+     * Closes the current scope, freeing the slots allocated since it was opened
+     *
+     * @throws IllegalStateException if no scope is open
+     */
+    public LocalAllocator exitScope() {
+        if (scopes.size() == 1) {
+            throw new IllegalStateException("no scope to exit");
+        }
+        close(scopes.remove(scopes.size() - 1));
+        return this;
+    }
+
+    /**
+     * @return the number of slots allocated in the current scope and the ones enclosing it
+     */
+    public int size() {
+        return nextSlot;
+    }
+
+    /**
+     * @return the number of slots the method needs for all the locals ever allocated here
+     */
+    public int maxLocals() {
+        return maxLocals;
+    }
+
+    /**
+     * Closes every open scope at the current end of the block, parameters included
+     */
+    void finish() {
+        while (scopes.size() > 1) {
+            close(scopes.remove(scopes.size() - 1));
+        }
+        if (!locals.isEmpty()) {
+            // keep the slots of closed-off parameters from being handed out again
+            int used = nextSlot;
+            close(scopes.get(0));
+            nextSlot = used;
+        }
+    }
+
+    private Local newLocal(String name, String desc) {
+        Type type = Type.getType(desc);
+        if (type.getSize() == 0) {
+            throw new IllegalArgumentException("locals can't be void");
+        }
+        Local local = new Local(name, desc, type, nextSlot);
+        if (name != null && allocatingParameters()) {
+            start(local);
+        }
+        nextSlot += type.getSize();
+        maxLocals = Math.max(maxLocals, nextSlot);
+        locals.add(local);
+        return local;
+    }
+
+    /**
+     * Starts the local variable table entry of a named local at its first store
+     */
+    void stored(Local local) {
+        if (local.name != null && local.start == null) {
+            start(local);
+        }
+    }
+
+    private void start(Local local) {
+        local.start = new LabelNode();
+        block.label(local.start);
+    }
+
+    /**
+     * @return true until the block has code or a scope was opened, as the locals allocated until then are the
+     *         parameters
+     */
+    private boolean allocatingParameters() {
+        allocatingParameters = allocatingParameters && block.instructionCount() == 0;
+        return allocatingParameters;
+    }
+
+    private void close(Scope scope) {
+        LabelNode end = null;
+        for (int i = scope.firstLocal; i < locals.size(); i++) {
+            Local local = locals.get(i);
+            if (local.start != null) {
+                if (end == null) {
+                    end = new LabelNode();
+                    block.label(end);
+                }
+                block.visitLocalVariable(local.name, local.desc, null, local.start, end, local.index);
+            }
+        }
+        locals.subList(scope.firstLocal, locals.size()).clear();
+        nextSlot = scope.firstSlot;
+    }
+
+    private static final class Scope {
+        final int firstSlot;
+        final int firstLocal;
+
+        Scope(int firstSlot, int firstLocal) {
+            this.firstSlot = firstSlot;
+            this.firstLocal = firstLocal;
+        }
+    }
+
+    /**
+     * A local variable slot, with the type it was allocated for
+     */
+    public static final class Local {
+        private final String name;
+        private final String desc;
+        private final Type type;
+        private final int index;
+        private LabelNode start;
+
+        Local(String name, String desc, Type type, int index) {
+            this.name = name;
+            this.desc = desc;
+            this.type = type;
+            this.index = index;
+        }
+
+        /**
+         * @return the name of the local, or null for temporaries
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the load opcode for the type of this local
+         */
+        public int getLoadOpcode() {
+            return type.getOpcode(CodeBlock.ILOAD);
+        }
+
+        /**
+         * @return the store opcode for the type of this local
+         */
+        public int getStoreOpcode() {
+            return type.getOpcode(CodeBlock.ISTORE);
+        }
+    }
+}
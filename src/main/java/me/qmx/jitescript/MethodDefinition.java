@@ -16,6 +16,8 @@
 package me.qmx.jitescript;
 
 import java.util.ArrayList;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -26,18 +28,34 @@ import org.objectweb.asm.tree.TryCatchBlockNode;
  */
 public class MethodDefinition {
 
+    private final String owner;
     private final String methodName;
     private final int modifiers;
     private final String signature;
     private final CodeBlock methodBody;
 
     public MethodDefinition(String methodName, int modifiers, String signature, CodeBlock methodBody) {
+        this(null, methodName, modifiers, signature, methodBody);
+    }
+
+    /**
+     * @param owner the internal name of the class declaring the method, or null
+     */
+    public MethodDefinition(String owner, String methodName, int modifiers, String signature, CodeBlock methodBody) {
+        this.owner = owner;
         this.methodName = methodName;
         this.modifiers = modifiers;
         this.signature = signature;
         this.methodBody = methodBody;
     }
 
+    /**
+     * @return the internal name of the class declaring the method, or null if it was not given
+     */
+    public String getOwner() {
+        return owner;
+    }
+
     public String getMethodName() {
         return methodName;
     }
@@ -57,6 +75,12 @@ public class MethodDefinition {
     public MethodNode getMethodNode() {
         MethodNode method = new MethodNode(getModifiers(), getMethodName(), getSignature(), null, null);
         method.visibleAnnotations = new ArrayList<AnnotationNode>();
+        getMethodBody().finishLocals();
+        JiteMetrics metrics = JiteMetricsRegistry.get();
+        if (metrics != null) {
+            // counted before the instructions move over to the tree
+            metrics.methodEmitted(owner, getMethodName(), getMethodBody().instructionCount());
+        }
         method.instructions.add(getMethodBody().getInstructionList());
         for (TryCatchBlockNode tryCatchBlockNode : getMethodBody().getTryCatchBlockList()) {
             method.tryCatchBlocks.add(tryCatchBlockNode);
@@ -69,4 +93,54 @@ public class MethodDefinition {
         }
         return method;
     }
+
+    /**
+     * Visits this method straight into the given class visitor, leaving the method body untouched
+     *
+     * @param cv the visitor receiving the method
+     */
+    public void accept(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(getModifiers(), getMethodName(), getSignature(), null, null);
+        if (mv != null) {
+            accept(mv);
+        }
+    }
+
+    /**
+     * Visits this method into the given class visitor with the stack map frames and maximums its body tracked,
+     * for visitors which don't compute them
+     *
+     * @param cv the visitor receiving the method
+     * @see CodeBlock#hasTrackedFrames()
+     */
+    void acceptWithTrackedFrames(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(getModifiers(), getMethodName(), getSignature(), null, null);
+        if (mv != null) {
+            accept(mv, true);
+        }
+    }
+
+    /**
+     * Copies this method into a new ASM tree, leaving the method body untouched
+     *
+     * @return the copy
+     */
+    public MethodNode copyMethodNode() {
+        MethodNode method = new MethodNode(getModifiers(), getMethodName(), getSignature(), null, null);
+        accept(method);
+        return method;
+    }
+
+    private void accept(MethodVisitor mv) {
+        accept(mv, false);
+    }
+
+    private void accept(MethodVisitor mv, boolean trackedFrames) {
+        for (VisibleAnnotation annotation : methodBody.getAnnotations()) {
+            AnnotationNode node = annotation.getNode();
+            node.accept(mv.visitAnnotation(node.desc, true));
+        }
+        methodBody.accept(mv, trackedFrames);
+        mv.visitEnd();
+    }
 }
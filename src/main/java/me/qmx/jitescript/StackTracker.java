@@ -0,0 +1,618 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import me.qmx.jitescript.hierarchy.TypeHierarchy;
+import me.qmx.jitescript.hierarchy.TypeHierarchyVerifier;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.util.Printer;
+
+/**
+ * Follows the operand stack and local variable types of a {@link CodeBlock} one instruction at a time, as they are
+ * added, so that stack underflows and type mismatches surface where the faulty instruction is built rather than as a
+ * {@link VerifyError} once the class is defined.
+ *
+ * Frames are carried along jumps: the code after a goto, a return, a throw or a switch is only checked again from a
+ * label some earlier jump or handler flows into. Backward jumps are checked for stack height only, since loops are
+ * not iterated to a fixed point. Types nobody can resolve are given the benefit of the doubt.
+ *
+ * When the state at every jump target turns out to be known, the same frames are written out as the method's
+ * stack map frames, and unreachable instructions are dropped, as ASM would do when computing them itself.
+ */
+final class StackTracker {
+
+    private static final Type THROWABLE = Type.getObjectType("java/lang/Throwable");
+
+    private final LenientVerifier interpreter;
+    private final BasicValue returnValue;
+    private final Map<LabelNode, Frame<BasicValue>> labelFrames = new IdentityHashMap<LabelNode, Frame<BasicValue>>();
+    private final Map<LabelNode, Boolean> placedLabels = new IdentityHashMap<LabelNode, Boolean>();
+    private final List<Handler> handlers = new ArrayList<Handler>();
+    private final List<Handler> activeHandlers = new ArrayList<Handler>();
+    private final Map<LabelNode, Boolean> targets = new IdentityHashMap<LabelNode, Boolean>();
+    private final BitSet unreachable = new BitSet();
+    // the frames written out last time, kept for as long as no instruction is added
+    private Map<LabelNode, Object[][]> writtenFrames;
+    private Frame<BasicValue> current;
+    private int localCapacity;
+    private int stackCapacity = 16;
+    private int instructionCount;
+    private int maxStack;
+    private int maxLocals;
+    private boolean framesKnown = true;
+    // frames can't describe objects between new and their constructor call, nor this before the super call
+    private int pendingNews;
+    private boolean superInitialized;
+    private boolean targetBeforeSuperInit;
+
+    /**
+     * @param owner     the internal name of the class declaring the method
+     * @param access    the access flags of the method
+     * @param desc      the descriptor of the method
+     * @param hierarchy the hierarchy to check reference types against
+     */
+    StackTracker(String owner, int access, String desc, TypeHierarchy hierarchy) {
+        interpreter = new LenientVerifier(owner, hierarchy);
+        returnValue = interpreter.newValue(Type.getReturnType(desc));
+        Type[] arguments = Type.getArgumentTypes(desc);
+        int locals = (access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
+        for (Type argument : arguments) {
+            locals += argument.getSize();
+        }
+        localCapacity = Math.max(16, locals * 2);
+        maxLocals = locals;
+        current = newFrame();
+        int local = 0;
+        if ((access & Opcodes.ACC_STATIC) == 0) {
+            current.setLocal(local++, interpreter.newValue(Type.getObjectType(owner)));
+        }
+        for (Type argument : arguments) {
+            current.setLocal(local, interpreter.newValue(argument));
+            local += argument.getSize();
+        }
+    }
+
+    /**
+     * @return the largest operand stack size seen so far, in slots
+     */
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    /**
+     * @return the current operand stack size in slots, or -1 where the code can't be reached from what came before
+     */
+    int getStackSize() {
+        return current == null ? -1 : stackSize(current);
+    }
+
+    /**
+     * @return the largest local variable index used so far, plus the size of its value
+     */
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    /**
+     * Stops frames from being written out of the tracked state, for blocks edited behind the tracker's back
+     */
+    void invalidateFrames() {
+        framesKnown = false;
+    }
+
+    /**
+     * @return true if the state at every jump target is known, so that frames can be written from it
+     */
+    boolean hasFrames() {
+        if (!framesKnown) {
+            return false;
+        }
+        for (Handler handler : handlers) {
+            // a handler covering nothing but dropped code would end up with an empty range
+            if (!handler.covering || !placedLabels.containsKey(handler.handler)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps a method visitor to write the tracked frames after each jump target and drop unreachable instructions.
+     * The labels of the block must have been reset already, and the block must be visited from its first instruction.
+     */
+    MethodVisitor withFrames(MethodVisitor mv) {
+        if (writtenFrames == null) {
+            writtenFrames = new IdentityHashMap<LabelNode, Object[][]>();
+            for (LabelNode target : targets.keySet()) {
+                Frame<BasicValue> frame = labelFrames.get(target);
+                writtenFrames.put(target, new Object[][]{locals(frame), stack(frame)});
+            }
+        }
+        Map<Label, Object[][]> frames = new IdentityHashMap<Label, Object[][]>();
+        for (Map.Entry<LabelNode, Object[][]> entry : writtenFrames.entrySet()) {
+            frames.put(entry.getKey().getLabel(), entry.getValue());
+        }
+        return new FrameWriter(mv, frames, unreachable);
+    }
+
+    void frame() {
+        // explicit frames would have to agree with the tracked ones
+        framesKnown = false;
+    }
+
+    void tryCatch(LabelNode start, LabelNode end, LabelNode handler, String type) {
+        Handler entry = new Handler(start, end, handler, type == null ? THROWABLE : Type.getObjectType(type));
+        handlers.add(entry);
+        if (placedLabels.containsKey(start) && !placedLabels.containsKey(end)) {
+            activeHandlers.add(entry);
+        }
+    }
+
+    void label(LabelNode label) {
+        writtenFrames = null;
+        if (current != null) {
+            flow(label, current, false);
+        }
+        Frame<BasicValue> frame = labelFrames.get(label);
+        current = frame == null ? null : new Frame<BasicValue>(frame);
+        placedLabels.put(label, Boolean.TRUE);
+        for (Handler handler : handlers) {
+            if (handler.end == label) {
+                activeHandlers.remove(handler);
+            } else if (handler.start == label) {
+                activeHandlers.add(handler);
+            }
+        }
+    }
+
+    void execute(AbstractInsnNode insn) {
+        writtenFrames = null;
+        if (current == null) {
+            unreachable.set(instructionCount++);
+            return;
+        }
+        instructionCount++;
+        ensureCapacity(insn);
+        for (Handler handler : activeHandlers) {
+            Frame<BasicValue> frame = new Frame<BasicValue>(current);
+            frame.clearStack();
+            frame.push(interpreter.newValue(handler.type));
+            flow(handler.handler, frame, true);
+            handler.covering = true;
+        }
+        try {
+            current.execute(insn, interpreter);
+        } catch (AnalyzerException e) {
+            throw error(insn, e.getMessage());
+        } catch (IndexOutOfBoundsException e) {
+            throw error(insn, "stack underflow");
+        } catch (RuntimeException e) {
+            throw error(insn, e.toString());
+        }
+        maxStack = Math.max(maxStack, stackSize(current));
+        countLocals(insn);
+        switch (insn.getOpcode()) {
+            case Opcodes.NEW:
+                pendingNews++;
+                break;
+            case Opcodes.INVOKESPECIAL:
+                if ("<init>".equals(((MethodInsnNode) insn).name)) {
+                    if (pendingNews > 0) {
+                        pendingNews--;
+                    } else {
+                        framesKnown &= !targetBeforeSuperInit;
+                        superInitialized = true;
+                    }
+                }
+                break;
+            case Opcodes.GOTO:
+                flow(((JumpInsnNode) insn).label);
+                current = null;
+                break;
+            case Opcodes.JSR:
+                // subroutines are not followed, so the code after one is left unchecked
+                framesKnown = false;
+                current = null;
+                break;
+            case Opcodes.TABLESWITCH:
+                TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+                flow(tableSwitch.dflt);
+                for (Object label : tableSwitch.labels) {
+                    flow((LabelNode) label);
+                }
+                current = null;
+                break;
+            case Opcodes.LOOKUPSWITCH:
+                LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+                flow(lookupSwitch.dflt);
+                for (Object label : lookupSwitch.labels) {
+                    flow((LabelNode) label);
+                }
+                current = null;
+                break;
+            case Opcodes.IRETURN:
+            case Opcodes.LRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.DRETURN:
+            case Opcodes.ARETURN:
+            case Opcodes.RETURN:
+            case Opcodes.ATHROW:
+                current = null;
+                break;
+            default:
+                if (insn instanceof JumpInsnNode) {
+                    flow(((JumpInsnNode) insn).label);
+                }
+        }
+    }
+
+    private void flow(LabelNode label) {
+        flow(label, current, true);
+    }
+
+    private void flow(LabelNode label, Frame<BasicValue> frame, boolean jump) {
+        if (jump) {
+            targets.put(label, Boolean.TRUE);
+            if (pendingNews > 0) {
+                framesKnown = false;
+            }
+            targetBeforeSuperInit |= !superInitialized;
+        }
+        boolean placed = placedLabels.containsKey(label);
+        Frame<BasicValue> target = labelFrames.get(label);
+        if (target == null) {
+            // a label placed where nothing flowed in yet has code checked against no state at all
+            framesKnown &= !placed;
+            labelFrames.put(label, new Frame<BasicValue>(frame));
+            return;
+        }
+        if (placed && target.getStackSize() != frame.getStackSize()) {
+            throw new IllegalStateException("jump back with a stack of " + stackSize(frame)
+                    + " slots to a label reached with " + stackSize(target));
+        }
+        try {
+            if (target.merge(frame, interpreter) && placed) {
+                // the code after the label was checked against a narrower state, and its frame would be wrong
+                framesKnown = false;
+            }
+        } catch (AnalyzerException e) {
+            throw new IllegalStateException("inconsistent stack at label: " + e.getMessage(), e);
+        }
+    }
+
+    private void countLocals(AbstractInsnNode insn) {
+        int local;
+        if (insn instanceof VarInsnNode) {
+            local = ((VarInsnNode) insn).var;
+            switch (insn.getOpcode()) {
+                case Opcodes.LLOAD:
+                case Opcodes.DLOAD:
+                case Opcodes.LSTORE:
+                case Opcodes.DSTORE:
+                    maxLocals = Math.max(maxLocals, local + 2);
+                    return;
+                default:
+                    maxLocals = Math.max(maxLocals, local + 1);
+            }
+        } else if (insn instanceof IincInsnNode) {
+            maxLocals = Math.max(maxLocals, ((IincInsnNode) insn).var + 1);
+        }
+    }
+
+    private Object[] locals(Frame<BasicValue> frame) {
+        List<Object> types = new ArrayList<Object>();
+        int last = 0;
+        for (int i = 0; i < maxLocals; i++) {
+            BasicValue value = frame.getLocal(i);
+            types.add(frameType(value));
+            if (value.getType() != null) {
+                last = types.size();
+            }
+            if (value.getSize() == 2) {
+                i++;
+            }
+        }
+        return types.subList(0, last).toArray();
+    }
+
+    private static Object[] stack(Frame<BasicValue> frame) {
+        Object[] types = new Object[frame.getStackSize()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = frameType(frame.getStack(i));
+        }
+        return types;
+    }
+
+    private static Object frameType(BasicValue value) {
+        Type type = value.getType();
+        if (type == null) {
+            return Opcodes.TOP;
+        }
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+            case Type.INT:
+                return Opcodes.INTEGER;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            default:
+                return "null".equals(type.getInternalName()) ? Opcodes.NULL : type.getInternalName();
+        }
+    }
+
+    private IllegalStateException error(AbstractInsnNode insn, String message) {
+        return new IllegalStateException(Printer.OPCODES[insn.getOpcode()].toLowerCase() + " (instruction "
+                + instructionCount + "): " + message);
+    }
+
+    private void ensureCapacity(AbstractInsnNode insn) {
+        int local = -1;
+        if (insn instanceof VarInsnNode) {
+            local = ((VarInsnNode) insn).var;
+        } else if (insn instanceof IincInsnNode) {
+            local = ((IincInsnNode) insn).var;
+        }
+        if (local + 2 <= localCapacity && current.getStackSize() + 4 <= stackCapacity) {
+            return;
+        }
+        while (local + 2 > localCapacity) {
+            localCapacity *= 2;
+        }
+        while (current.getStackSize() + 4 > stackCapacity) {
+            stackCapacity *= 2;
+        }
+        current = resize(current);
+        for (Map.Entry<LabelNode, Frame<BasicValue>> entry : labelFrames.entrySet()) {
+            entry.setValue(resize(entry.getValue()));
+        }
+    }
+
+    private Frame<BasicValue> newFrame() {
+        Frame<BasicValue> frame = new Frame<BasicValue>(localCapacity, stackCapacity);
+        for (int i = 0; i < localCapacity; i++) {
+            frame.setLocal(i, BasicValue.UNINITIALIZED_VALUE);
+        }
+        frame.setReturn(returnValue);
+        return frame;
+    }
+
+    private Frame<BasicValue> resize(Frame<BasicValue> frame) {
+        Frame<BasicValue> resized = newFrame();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            resized.setLocal(i, frame.getLocal(i));
+        }
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            resized.push(frame.getStack(i));
+        }
+        return resized;
+    }
+
+    private static int stackSize(Frame<BasicValue> frame) {
+        int size = 0;
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            size += frame.getStack(i).getSize();
+        }
+        return size;
+    }
+
+    private static final class Handler {
+        final LabelNode start;
+        final LabelNode end;
+        final LabelNode handler;
+        final Type type;
+        boolean covering;
+
+        Handler(LabelNode start, LabelNode end, LabelNode handler, Type type) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Writes a frame before the first instruction following a jump target, and skips unreachable instructions
+     */
+    private static final class FrameWriter extends MethodVisitor {
+        private final Map<Label, Object[][]> frames;
+        private final BitSet unreachable;
+        private Object[][] pending;
+        private int instruction;
+
+        FrameWriter(MethodVisitor mv, Map<Label, Object[][]> frames, BitSet unreachable) {
+            super(Opcodes.ASM9, mv);
+            this.frames = frames;
+            this.unreachable = unreachable;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            super.visitLabel(label);
+            Object[][] frame = frames.get(label);
+            if (frame != null) {
+                // labels in a row share an offset, and the last one's frame has merged the ones before
+                pending = frame;
+            }
+        }
+
+        private boolean reachable() {
+            if (unreachable.get(instruction++)) {
+                return false;
+            }
+            if (pending != null) {
+                super.visitFrame(Opcodes.F_NEW, pending[0].length, pending[0], pending[1].length, pending[1]);
+                pending = null;
+            }
+            return true;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (reachable()) {
+                super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (reachable()) {
+                super.visitIntInsn(opcode, operand);
+            }
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (reachable()) {
+                super.visitVarInsn(opcode, var);
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (reachable()) {
+                super.visitTypeInsn(opcode, type);
+            }
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (reachable()) {
+                super.visitFieldInsn(opcode, owner, name, desc);
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (reachable()) {
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
+            }
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            if (reachable()) {
+                super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+            }
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (reachable()) {
+                super.visitJumpInsn(opcode, label);
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            if (reachable()) {
+                super.visitLdcInsn(cst);
+            }
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            if (reachable()) {
+                super.visitIincInsn(var, increment);
+            }
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            if (reachable()) {
+                super.visitTableSwitchInsn(min, max, dflt, labels);
+            }
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            if (reachable()) {
+                super.visitLookupSwitchInsn(dflt, keys, labels);
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            if (reachable()) {
+                super.visitMultiANewArrayInsn(desc, dims);
+            }
+        }
+    }
+
+    /**
+     * A verifier which assumes the best about the types its hierarchy can't resolve
+     */
+    private static final class LenientVerifier extends TypeHierarchyVerifier {
+
+        LenientVerifier(String owner, TypeHierarchy hierarchy) {
+            super(owner, hierarchy);
+        }
+
+        @Override
+        protected boolean isInterface(Type type) {
+            try {
+                return super.isInterface(type);
+            } catch (TypeNotPresentException e) {
+                return false;
+            }
+        }
+
+        @Override
+        protected Type getSuperClass(Type type) {
+            try {
+                return super.getSuperClass(type);
+            } catch (TypeNotPresentException e) {
+                return Type.getObjectType(TypeHierarchy.OBJECT);
+            }
+        }
+
+        @Override
+        protected boolean isAssignableFrom(Type to, Type from) {
+            try {
+                return super.isAssignableFrom(to, from);
+            } catch (TypeNotPresentException e) {
+                return true;
+            }
+        }
+    }
+}
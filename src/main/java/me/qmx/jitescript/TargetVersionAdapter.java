@@ -0,0 +1,70 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import me.qmx.jitescript.runtime.LazyConstants;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Rewrites code built for any target into the faster idioms the actual target version allows. Code blocks are built
+ * before anyone knows which version they will be written for, so they stick to what every version supports, and the
+ * upgrades happen here, as the class is written.
+ */
+final class TargetVersionAdapter extends ClassVisitor {
+
+    private static final Handle LAZY_CONSTANT_CONDY_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+            p(LazyConstants.class), "constant",
+            sig(Object.class, MethodHandles.Lookup.class, String.class, Class.class, MethodHandle.class), false);
+
+    private TargetVersionAdapter(ClassVisitor cv) {
+        super(Opcodes.ASM9, cv);
+    }
+
+    /**
+     * @return the given visitor, behind an adapter if the version has anything to upgrade to
+     */
+    static ClassVisitor adapt(ClassVisitor cv, JDKVersion version) {
+        // dynamic constants are the only upgrade so far, and came with Java 11
+        return version.isAtLeast(JDKVersion.V11) ? new TargetVersionAdapter(cv) : cv;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        return mv == null ? null : new MethodVisitor(Opcodes.ASM9, mv) {
+            @Override
+            public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                if (CodeBlock.LAZY_CONSTANT_BOOTSTRAP.equals(bsm)) {
+                    // a dynamic constant needs no call site, and is shared by every ldc of it in the class
+                    String type = Type.getReturnType(desc).getDescriptor();
+                    super.visitLdcInsn(new ConstantDynamic(name, type, LAZY_CONSTANT_CONDY_BOOTSTRAP, bsmArgs));
+                } else {
+                    super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.cache;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import me.qmx.jitescript.JiteMetrics;
+import me.qmx.jitescript.JiteMetricsRegistry;
+import me.qmx.jitescript.hierarchy.TypeHierarchyResolver;
+
+/**
+ * A bounded, least recently used cache of emitted bytecode, keyed on the structural
+ * {@link JiteClass#fingerprint() fingerprint} of a class and the JDK version it was emitted for.
+ *
+ * Emission happens outside the cache lock, so two threads missing on the same class at once may both emit it.
+ *
+ * A {@link BytecodePack} may back the cache: misses are then looked up on disk before emitting, and everything
+ * emitted is appended to the pack.
+ */
+public class BytecodeCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile BytecodePack pack;
+    private long bytes;
+
+    /**
+     * @param maxEntries the maximum number of classes kept
+     * @param maxBytes   the maximum total size of the bytecode kept
+     */
+    public BytecodeCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public BytecodeCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param pack the persistent pack backing this cache, or null
+     */
+    public void setPack(BytecodePack pack) {
+        this.pack = pack;
+    }
+
+    public BytecodePack getPack() {
+        return pack;
+    }
+
+    /**
+     * Returns the bytecode previously emitted for a structurally identical class, emitting it on a miss
+     *
+     * @param jiteClass the class to emit
+     * @param version   the desired JDK version
+     * @return the bytecode representation of the class, shared with every other caller: do not modify it
+     */
+    public byte[] toBytes(JiteClass jiteClass, JDKVersion version) {
+        return toBytes(jiteClass, version, jiteClass.getTypeHierarchyResolver());
+    }
+
+    public byte[] toBytes(JiteClass jiteClass, JDKVersion version, TypeHierarchyResolver resolver) {
+        return load(jiteClass, version, resolver).bytes;
+    }
+
+    /**
+     * Returns the class previously defined by the given loader for a structurally identical class, defining it on
+     * a miss. Bytecode is reused across loaders.
+     *
+     * @param jiteClass the class to define
+     * @param loader    the loader to define the class with
+     * @return the defined class
+     */
+    public Class<?> define(JiteClass jiteClass, JiteClassLoader loader) {
+        Entry entry = load(jiteClass, loader.getVersion(), resolverFor(jiteClass, loader));
+        Class<?> definedClass = entry.getDefinedClass(loader);
+        if (definedClass == null) {
+            definedClass = loader.define(jiteClass, entry.bytes);
+            entry.definedClass = new WeakReference<Class<?>>(definedClass);
+        }
+        return definedClass;
+    }
+
+    /**
+     * @return the cached bytecode for the given fingerprint and version, or null
+     */
+    public byte[] get(String fingerprint, JDKVersion version) {
+        Entry entry = lookup(key(fingerprint, version));
+        count(entry != null);
+        return entry == null ? null : entry.bytes;
+    }
+
+    public void put(String fingerprint, JDKVersion version, byte[] bytecode) {
+        store(key(fingerprint, version), bytecode);
+    }
+
+    /**
+     * @return the number of lookups served without emitting, from memory or from the pack
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the bytecode kept
+     */
+    public synchronized long byteSize() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private Entry load(JiteClass jiteClass, JDKVersion version, TypeHierarchyResolver resolver) {
+        String fingerprint = jiteClass.fingerprint();
+        String key = key(fingerprint, version);
+        Entry entry = lookup(key);
+        JiteMetrics metrics = JiteMetricsRegistry.get();
+        if (entry != null) {
+            count(true);
+            if (metrics != null) {
+                metrics.cacheAccessed(jiteClass.getClassName(), true);
+            }
+            return entry;
+        }
+        BytecodePack pack = this.pack;
+        byte[] bytecode = pack == null ? null : pack.get(fingerprint, version);
+        // a pack hit saves the emission just as well, so it counts as a hit
+        count(bytecode != null);
+        if (metrics != null) {
+            metrics.cacheAccessed(jiteClass.getClassName(), bytecode != null);
+        }
+        if (bytecode == null) {
+            bytecode = jiteClass.toBytes(version, resolver);
+            if (pack != null) {
+                try {
+                    pack.put(fingerprint, version, bytecode);
+                } catch (IOException e) {
+                    // the pack only saves work on the next start, failing to extend it must not fail emission
+                }
+            }
+        }
+        return store(key, bytecode);
+    }
+
+    private static TypeHierarchyResolver resolverFor(JiteClass jiteClass, JiteClassLoader loader) {
+        TypeHierarchyResolver resolver = jiteClass.getTypeHierarchyResolver();
+        return resolver == null ? loader : resolver;
+    }
+
+    private static String key(String fingerprint, JDKVersion version) {
+        return fingerprint + '/' + version.getVer();
+    }
+
+    private synchronized Entry lookup(String key) {
+        return entries.get(key);
+    }
+
+    private void count(boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+    }
+
+    private synchronized Entry store(String key, byte[] bytecode) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = new Entry(bytecode);
+        entries.put(key, entry);
+        bytes += bytecode.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            if (evicted == entry) {
+                break;
+            }
+            eldest.remove();
+            bytes -= evicted.bytes.length;
+            evictions.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+
+        private final byte[] bytes;
+        private volatile WeakReference<Class<?>> definedClass;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Class<?> getDefinedClass(ClassLoader loader) {
+            WeakReference<Class<?>> reference = definedClass;
+            Class<?> defined = reference == null ? null : reference.get();
+            return defined != null && defined.getClassLoader() == loader ? defined : null;
+        }
+    }
+}
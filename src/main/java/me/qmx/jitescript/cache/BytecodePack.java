@@ -0,0 +1,300 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import me.qmx.jitescript.JDKVersion;
+
+/**
+ * A persistent, append-only pack of emitted classes, indexed on structural fingerprint and JDK version, so that
+ * a restarted process can define classes straight from disk instead of generating them again.
+ *
+ * The pack starts with a header holding a format version and a caller supplied stamp; a pack written with another
+ * stamp is considered stale and discarded. Every record carries its length and a CRC32 of its contents, so a record
+ * torn by a crash is detected, and truncated away, the next time the pack is opened. Reads go through a memory
+ * mapping of the file.
+ *
+ * Only the pack holding the file lock appends to it; any other pack opening the file, in this process or another,
+ * serves reads only. Packs
+ * are limited to 2GB, the size of a single mapping.
+ */
+public class BytecodePack implements Closeable {
+
+    private static final int MAGIC = 0x4A495445;
+    private static final int FORMAT_VERSION = 1;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final boolean sync;
+    private final ConcurrentMap<String, long[]> index = new ConcurrentHashMap<String, long[]>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile MappedByteBuffer mapped;
+    private long end;
+
+    /**
+     * Opens, or creates, the pack at the given location, syncing every append to disk
+     *
+     * @param file  the pack file
+     * @param stamp identifies the code generator that wrote the pack; bump it whenever generated classes change
+     */
+    public BytecodePack(File file, String stamp) throws IOException {
+        this(file, stamp, true);
+    }
+
+    /**
+     * @param file  the pack file
+     * @param stamp identifies the code generator that wrote the pack; bump it whenever generated classes change
+     * @param sync  whether to force every append to disk before returning
+     */
+    public BytecodePack(File file, String stamp, boolean sync) throws IOException {
+        this.sync = sync;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // another pack of this process holds the file
+            fileLock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.lock = fileLock;
+        try {
+            open(stamp);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false when another pack holds the file, in which case nothing gets appended
+     */
+    public boolean isWritable() {
+        return lock != null;
+    }
+
+    /**
+     * @return the bytecode stored for the given fingerprint and version, or null
+     */
+    public byte[] get(String fingerprint, JDKVersion version) {
+        long[] location = index.get(key(fingerprint, version));
+        if (location == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        ByteBuffer buffer = mapping(location[0] + location[1]).duplicate();
+        buffer.position((int) location[0]);
+        byte[] bytecode = new byte[(int) location[1]];
+        buffer.get(bytecode);
+        hits.incrementAndGet();
+        return bytecode;
+    }
+
+    /**
+     * Appends the given bytecode, unless the pack already holds it or is not writable
+     */
+    public synchronized void put(String fingerprint, JDKVersion version, byte[] bytecode) throws IOException {
+        String key = key(fingerprint, version);
+        if (lock == null || index.containsKey(key)) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(bytecode.length + 64);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(key);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.flush();
+        byte[] payloadBytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadBytes.length);
+        record.putInt(payloadBytes.length).putInt((int) crc.getValue()).put(payloadBytes).flip();
+        long position = end;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        index.put(key, new long[]{end + 8 + payloadBytes.length - bytecode.length, bytecode.length});
+        end = position;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void close() throws IOException {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String key(String fingerprint, JDKVersion version) {
+        return fingerprint + '/' + version.getVer();
+    }
+
+    private void open(String stamp) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long headerEnd = readHeader(buffer, stamp);
+        if (headerEnd < 0) {
+            end = 0;
+            if (lock != null) {
+                channel.truncate(0);
+                writeHeader(stamp);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            return;
+        }
+        end = scan(buffer, headerEnd);
+        if (end < size && lock != null) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        mapped = buffer;
+    }
+
+    private static long readHeader(MappedByteBuffer buffer, String stamp) {
+        ByteBuffer header = buffer.duplicate();
+        try {
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(header));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(stamp)) {
+                return -1;
+            }
+            return header.position();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void writeHeader(String stamp) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(stamp);
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+        while (buffer.hasRemaining()) {
+            end += channel.write(buffer, end);
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Indexes every intact record from the given position on
+     *
+     * @return the end of the last intact record
+     */
+    private long scan(ByteBuffer buffer, long position) {
+        CRC32 crc = new CRC32();
+        while (position + 8 <= buffer.limit()) {
+            int length = buffer.getInt((int) position);
+            int checksum = buffer.getInt((int) position + 4);
+            long payloadStart = position + 8;
+            if (length < 0 || payloadStart + length > buffer.limit()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) payloadStart);
+            slice.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            int keyLength = record.getShort() & 0xFFFF;
+            String key;
+            try {
+                key = new String(payload, 2, keyLength, "UTF-8");
+            } catch (IOException e) {
+                break;
+            }
+            record.position(2 + keyLength);
+            int bytecodeLength = record.getInt();
+            index.put(key, new long[]{payloadStart + record.position(), bytecodeLength});
+            position = payloadStart + length;
+        }
+        return position;
+    }
+
+    private MappedByteBuffer mapping(long limit) {
+        MappedByteBuffer current = mapped;
+        if (limit <= current.capacity()) {
+            return current;
+        }
+        synchronized (this) {
+            if (limit > mapped.capacity()) {
+                try {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                } catch (IOException e) {
+                    throw new IllegalStateException("could not map bytecode pack", e);
+                }
+            }
+            return mapped;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+    }
+}
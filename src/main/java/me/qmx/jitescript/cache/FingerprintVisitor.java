@@ -0,0 +1,346 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.cache;
+
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Digests everything visited into it into a structural fingerprint. The class file version is left out, so the
+ * same class emitted for different JDK versions shares one fingerprint, and labels are numbered in visiting order
+ * so that two separately built but identical classes hash the same.
+ */
+public class FingerprintVisitor extends ClassVisitor {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private final Map<Label, Integer> labels = new IdentityHashMap<Label, Integer>();
+
+    public FingerprintVisitor() {
+        super(Opcodes.ASM9);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required on every Java platform", e);
+        }
+    }
+
+    /**
+     * @return the fingerprint of everything visited so far, as a hex string
+     */
+    public String getFingerprint() {
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        put('C').put(access).put(name).put(signature).put(superName).put(interfaces);
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+        put('S').put(source).put(debug);
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String desc) {
+        put('O').put(owner).put(name).put(desc);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        put('@').put(desc).put(visible ? 1 : 0);
+        return new FingerprintAnnotationVisitor();
+    }
+
+    @Override
+    public void visitAttribute(Attribute attr) {
+        put('A').put(attr.type);
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        put('I').put(name).put(outerName).put(innerName).put(access);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        put('F').put(access).put(name).put(desc).put(signature).putConstant(value);
+        return new FieldVisitor(Opcodes.ASM9) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                return FingerprintVisitor.this.visitAnnotation(desc, visible);
+            }
+        };
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        put('M').put(access).put(name).put(desc).put(signature).put(exceptions);
+        labels.clear();
+        return new FingerprintMethodVisitor();
+    }
+
+    private FingerprintVisitor put(char tag) {
+        digest.update((byte) tag);
+        return this;
+    }
+
+    private FingerprintVisitor put(int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+        return this;
+    }
+
+    private FingerprintVisitor put(String value) {
+        if (value == null) {
+            return put(-1);
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        put(bytes.length);
+        digest.update(bytes);
+        return this;
+    }
+
+    private FingerprintVisitor put(String[] values) {
+        if (values == null) {
+            return put(-1);
+        }
+        put(values.length);
+        for (String value : values) {
+            put(value);
+        }
+        return this;
+    }
+
+    private FingerprintVisitor put(Label label) {
+        Integer index = labels.get(label);
+        if (index == null) {
+            index = labels.size();
+            labels.put(label, index);
+        }
+        return put(index);
+    }
+
+    private FingerprintVisitor putConstant(Object value) {
+        if (value == null) {
+            return put('0');
+        }
+        if (value instanceof Handle) {
+            Handle handle = (Handle) value;
+            return put('H').put(handle.getTag()).put(handle.getOwner()).put(handle.getName()).put(handle.getDesc());
+        }
+        if (value.getClass().isArray()) {
+            return put('[').put(value.getClass().getName()).put(arrayToString(value));
+        }
+        return put('K').put(value.getClass().getName()).put(value.toString());
+    }
+
+    private static String arrayToString(Object array) {
+        StringBuilder builder = new StringBuilder();
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            builder.append(Array.get(array, i)).append(',');
+        }
+        return builder.toString();
+    }
+
+    private class FingerprintAnnotationVisitor extends AnnotationVisitor {
+
+        FingerprintAnnotationVisitor() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(String name, Object value) {
+            put('v').put(name).putConstant(value);
+        }
+
+        @Override
+        public void visitEnum(String name, String desc, String value) {
+            put('e').put(name).put(desc).put(value);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String name, String desc) {
+            put('a').put(name).put(desc);
+            return this;
+        }
+
+        @Override
+        public AnnotationVisitor visitArray(String name) {
+            put('[').put(name);
+            return this;
+        }
+
+        @Override
+        public void visitEnd() {
+            put(';');
+        }
+    }
+
+    private class FingerprintMethodVisitor extends MethodVisitor {
+
+        FingerprintMethodVisitor() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return FingerprintVisitor.this.visitAnnotation(desc, visible);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            put('f').put(type).put(nLocal).put(nStack);
+            for (int i = 0; i < nLocal; i++) {
+                putFrameValue(local[i]);
+            }
+            for (int i = 0; i < nStack; i++) {
+                putFrameValue(stack[i]);
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            put(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            put(opcode).put(operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            put(opcode).put(var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            put(opcode).put(type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            put(opcode).put(owner).put(name).put(desc);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            put(opcode).put(owner).put(name).put(desc).put(itf ? 1 : 0);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            put(Opcodes.INVOKEDYNAMIC).put(name).put(desc).putConstant(bsm).put(bsmArgs.length);
+            for (Object arg : bsmArgs) {
+                putConstant(arg);
+            }
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            put(opcode).put(label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            put('L').put(label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            put(Opcodes.LDC).putConstant(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            put(Opcodes.IINC).put(var).put(increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            put(Opcodes.TABLESWITCH).put(min).put(max).put(dflt);
+            for (Label label : labels) {
+                put(label);
+            }
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            put(Opcodes.LOOKUPSWITCH).put(dflt).put(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                put(keys[i]).put(labels[i]);
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            put(Opcodes.MULTIANEWARRAY).put(desc).put(dims);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            put('T').put(start).put(end).put(handler).put(type);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+            put('V').put(name).put(desc).put(signature).put(start).put(end).put(index);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            put('N').put(line).put(start);
+        }
+
+        @Override
+        public void visitEnd() {
+            put(';');
+        }
+
+        private void putFrameValue(Object value) {
+            if (value instanceof Label) {
+                put('L').put((Label) value);
+            } else {
+                putConstant(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers every answer, including unknown types, given by another resolver. Safe to share between threads.
+ */
+public class CachingTypeHierarchyResolver implements TypeHierarchyResolver {
+
+    private static final Object UNKNOWN = new Object();
+
+    private final TypeHierarchyResolver delegate;
+    private final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+
+    public CachingTypeHierarchyResolver(TypeHierarchyResolver delegate) {
+        this.delegate = delegate;
+    }
+
+    public TypeInfo resolve(String internalName) {
+        Object cached = cache.get(internalName);
+        if (cached == null) {
+            TypeInfo info = delegate.resolve(internalName);
+            cached = info == null ? UNKNOWN : info;
+            Object raced = cache.putIfAbsent(internalName, cached);
+            if (raced != null) {
+                cached = raced;
+            }
+        }
+        return cached == UNKNOWN ? null : (TypeInfo) cached;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+}
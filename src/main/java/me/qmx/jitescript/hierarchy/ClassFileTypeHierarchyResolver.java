@@ -0,0 +1,118 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resolves types by reading the header of their class files through
+ * {@link ClassLoader#getResourceAsStream(String)}, so no class gets loaded or initialized.
+ *
+ * Only the constant pool and the header are parsed, which also keeps this independent of the class file versions
+ * the bundled ASM understands.
+ */
+public class ClassFileTypeHierarchyResolver implements TypeHierarchyResolver {
+
+    private final ClassLoader classLoader;
+
+    public ClassFileTypeHierarchyResolver(ClassLoader classLoader) {
+        this.classLoader = classLoader == null ? ClassLoader.getSystemClassLoader() : classLoader;
+    }
+
+    public TypeInfo resolve(String internalName) {
+        InputStream stream = classLoader.getResourceAsStream(internalName + ".class");
+        if (stream == null) {
+            return null;
+        }
+        try {
+            try {
+                return readHeader(new DataInputStream(new BufferedInputStream(stream)));
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the class header from the given stream
+     *
+     * @return the type described by the stream, or null if it is not a class file
+     */
+    public static TypeInfo readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != 0xCAFEBABE) {
+            return null;
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int constantCount = in.readUnsignedShort();
+        String[] utf8 = new String[constantCount];
+        int[] classNames = new int[constantCount];
+        for (int i = 1; i < constantCount; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.readLong();
+                    i++;
+                    break;
+                default:
+                    throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+
+        int access = in.readUnsignedShort();
+        String name = utf8[classNames[in.readUnsignedShort()]];
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex == 0 ? null : utf8[classNames[superIndex]];
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = utf8[classNames[in.readUnsignedShort()]];
+        }
+        return TypeInfo.fromAccess(name, access, superName, interfaces);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import static me.qmx.jitescript.util.CodegenUtils.c;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+
+/**
+ * Resolves types by loading them, without initialization, from a class loader. This is what ASM does by default,
+ * so it comes with the same class loading side effects and lock contention; prefer it only as a last fallback.
+ */
+public class ClassLoaderTypeHierarchyResolver implements TypeHierarchyResolver {
+
+    private final ClassLoader classLoader;
+
+    public ClassLoaderTypeHierarchyResolver(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    public TypeInfo resolve(String internalName) {
+        Class<?> type;
+        try {
+            type = Class.forName(c(internalName), false, classLoader);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+        Class<?>[] interfaces = type.getInterfaces();
+        String[] interfaceNames = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceNames[i] = p(interfaces[i]);
+        }
+        Class<?> superClass = type.getSuperclass();
+        return new TypeInfo(internalName, superClass == null ? null : p(superClass), interfaceNames, type.isInterface());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import me.qmx.jitescript.JiteClass;
+
+/**
+ * Resolves the {@link JiteClass}es of a batch, including their child classes, and hands every other type to a
+ * fallback resolver. This is what lets frames be computed for classes that reference each other before any of them
+ * has been defined.
+ */
+public class JiteClassTypeHierarchyResolver implements TypeHierarchyResolver {
+
+    private final Map<String, TypeInfo> types;
+    private final TypeHierarchyResolver fallback;
+
+    /**
+     * @param classes  the classes generated together
+     * @param fallback the resolver for every other type, may be null
+     */
+    public JiteClassTypeHierarchyResolver(Iterable<JiteClass> classes, TypeHierarchyResolver fallback) {
+        this.fallback = fallback;
+        Map<String, TypeInfo> types = new HashMap<String, TypeInfo>();
+        Deque<JiteClass> pending = new ArrayDeque<JiteClass>();
+        for (JiteClass jiteClass : classes) {
+            pending.add(jiteClass);
+        }
+        while (!pending.isEmpty()) {
+            JiteClass jiteClass = pending.poll();
+            types.put(jiteClass.getClassName(), TypeInfo.fromAccess(jiteClass.getClassName(), jiteClass.getAccess(),
+                    jiteClass.getSuperClassName(), jiteClass.getInterfaces()));
+            pending.addAll(jiteClass.getChildClasses());
+        }
+        this.types = types;
+    }
+
+    public JiteClassTypeHierarchyResolver(JiteClass jiteClass, TypeHierarchyResolver fallback) {
+        this(Collections.singletonList(jiteClass), fallback);
+    }
+
+    public TypeInfo resolve(String internalName) {
+        TypeInfo info = types.get(internalName);
+        if (info == null && fallback != null) {
+            info = fallback.resolve(internalName);
+        }
+        return info;
+    }
+}
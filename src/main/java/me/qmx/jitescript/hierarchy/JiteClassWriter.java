@@ -0,0 +1,37 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A {@link ClassWriter} computing common super classes through a {@link TypeHierarchyResolver} instead of loading
+ * classes.
+ */
+public class JiteClassWriter extends ClassWriter {
+
+    private final TypeHierarchy hierarchy;
+
+    public JiteClassWriter(int flags, TypeHierarchyResolver resolver) {
+        super(flags);
+        this.hierarchy = new TypeHierarchy(resolver);
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        return hierarchy.getCommonSuperClass(type1, type2);
+    }
+}
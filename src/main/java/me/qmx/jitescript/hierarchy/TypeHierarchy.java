@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Type hierarchy queries answered through a {@link TypeHierarchyResolver}, following the same rules as ASM's
+ * reflective {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}.
+ */
+public final class TypeHierarchy {
+
+    public static final String OBJECT = "java/lang/Object";
+
+    private final TypeHierarchyResolver resolver;
+
+    public TypeHierarchy(TypeHierarchyResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public TypeHierarchyResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @throws TypeNotPresentException if the resolver does not know the type
+     */
+    public TypeInfo resolve(String type) {
+        TypeInfo info = resolver.resolve(type);
+        if (info == null) {
+            throw new TypeNotPresentException(type.replace('/', '.'), null);
+        }
+        return info;
+    }
+
+    public boolean isInterface(String type) {
+        return !isArray(type) && resolve(type).isInterface();
+    }
+
+    public String getSuperClass(String type) {
+        if (isArray(type)) {
+            return OBJECT;
+        }
+        return resolve(type).getSuperName();
+    }
+
+    /**
+     * @return true if a value of type {@code from} can be assigned to a variable of type {@code to}
+     */
+    public boolean isAssignableFrom(String to, String from) {
+        if (to.equals(from) || to.equals(OBJECT)) {
+            return true;
+        }
+        if (isArray(to) || isArray(from)) {
+            return false;
+        }
+        return isSubtype(from, to, new HashSet<String>());
+    }
+
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (isInterface(type1) || isInterface(type2)) {
+            return OBJECT;
+        }
+        String common = type1;
+        do {
+            common = getSuperClass(common);
+        } while (common != null && !isAssignableFrom(common, type2));
+        return common == null ? OBJECT : common;
+    }
+
+    private boolean isSubtype(String type, String target, Set<String> visited) {
+        while (type != null && visited.add(type)) {
+            if (type.equals(target)) {
+                return true;
+            }
+            TypeInfo info = resolve(type);
+            for (String anInterface : info.getInterfaces()) {
+                if (isSubtype(anInterface, target, visited)) {
+                    return true;
+                }
+            }
+            type = info.getSuperName();
+        }
+        return false;
+    }
+
+    private static boolean isArray(String type) {
+        return type.charAt(0) == '[';
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+/**
+ * Answers questions about the class hierarchy while frames are computed, in place of the reflective lookups
+ * ASM's {@link org.objectweb.asm.ClassWriter} performs by default.
+ *
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface TypeHierarchyResolver {
+
+    /**
+     * Resolves the given type
+     *
+     * @param internalName the type, as a class path name e.g java/lang/String
+     * @return the resolved type, or null when this resolver does not know it
+     */
+    TypeInfo resolve(String internalName);
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+/**
+ * A {@link SimpleVerifier} answering its type hierarchy questions through a {@link TypeHierarchy} instead of loading
+ * classes, so that code referring to classes which are not defined yet can be analyzed.
+ */
+public class TypeHierarchyVerifier extends SimpleVerifier {
+
+    private final TypeHierarchy hierarchy;
+
+    /**
+     * @param owner     the internal name of the class declaring the analyzed methods
+     * @param hierarchy the hierarchy to answer type questions from
+     */
+    public TypeHierarchyVerifier(String owner, TypeHierarchy hierarchy) {
+        super(Opcodes.ASM9, Type.getObjectType(owner), null, null, false);
+        this.hierarchy = hierarchy;
+    }
+
+    @Override
+    protected boolean isInterface(Type type) {
+        return type.getSort() == Type.OBJECT && hierarchy.isInterface(type.getInternalName());
+    }
+
+    @Override
+    protected Type getSuperClass(Type type) {
+        String superClass = hierarchy.getSuperClass(type.getInternalName());
+        return superClass == null ? null : Type.getObjectType(superClass);
+    }
+
+    @Override
+    protected boolean isAssignableFrom(Type to, Type from) {
+        if (to.equals(from) || "null".equals(from.getInternalName())) {
+            return true;
+        }
+        if (to.getSort() == Type.OBJECT) {
+            // like the JVM verifier, and SimpleVerifier, anything goes into an interface
+            if (isInterface(to)) {
+                return true;
+            }
+            if (from.getSort() == Type.ARRAY) {
+                return TypeHierarchy.OBJECT.equals(to.getInternalName());
+            }
+            return from.getSort() == Type.OBJECT && hierarchy.isAssignableFrom(to.getInternalName(), from.getInternalName());
+        }
+        if (to.getSort() != Type.ARRAY || from.getSort() != Type.ARRAY) {
+            return false;
+        }
+        Type toComponent = Type.getType(to.getDescriptor().substring(1));
+        Type fromComponent = Type.getType(from.getDescriptor().substring(1));
+        if (isReference(toComponent) && isReference(fromComponent)) {
+            return isAssignableFrom(toComponent, fromComponent);
+        }
+        return toComponent.equals(fromComponent);
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The part of a class header needed to walk the type hierarchy
+ */
+public final class TypeInfo {
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces;
+    private final boolean isInterface;
+
+    public TypeInfo(String name, String superName, String[] interfaces, boolean isInterface) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces == null || interfaces.length == 0
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(interfaces.clone()));
+        this.isInterface = isInterface;
+    }
+
+    public static TypeInfo fromAccess(String name, int access, String superName, String[] interfaces) {
+        return new TypeInfo(name, superName, interfaces, (access & Opcodes.ACC_INTERFACE) != 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the super class path name, null for java/lang/Object
+     */
+    public String getSuperName() {
+        return superName;
+    }
+
+    public List<String> getInterfaces() {
+        return interfaces;
+    }
+
+    public boolean isInterface() {
+        return isInterface;
+    }
+
+    @Override
+    public String toString() {
+        return name + (isInterface ? " (interface)" : " extends " + superName);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import me.qmx.jitescript.CodeBlock;
+
+/**
+ * A rewriting pass over the instructions of a {@link CodeBlock}
+ *
+ * @see CodeBlock#optimize(CodeOptimizer...)
+ */
+public interface CodeOptimizer {
+
+    /**
+     * Rewrites the given block in place
+     *
+     * @param block the block to rewrite
+     * @return true if anything changed
+     */
+    boolean optimize(CodeBlock block);
+}
@@ -0,0 +1,211 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.opt.Instructions.evaluate;
+import static me.qmx.jitescript.opt.Instructions.intConstant;
+import static me.qmx.jitescript.opt.Instructions.isIntConstant;
+import static me.qmx.jitescript.opt.Instructions.isLongConstant;
+import static me.qmx.jitescript.opt.Instructions.longConstant;
+import static me.qmx.jitescript.opt.Instructions.pushInt;
+import static me.qmx.jitescript.opt.Instructions.pushLong;
+
+import me.qmx.jitescript.CodeBlock;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+
+/**
+ * Folds int and long arithmetic, conversions and comparisons on constant operands into a single push, and resolves
+ * conditional jumps on constants into a goto or nothing at all. Operands must directly precede the operation, so
+ * no jump can land between them. Divisions by zero are left alone to throw at runtime.
+ *
+ * Code left unreachable by resolved jumps is removed by {@link UnreachableCodeEliminator}.
+ */
+public class ConstantFolder implements CodeOptimizer, Opcodes {
+
+    public boolean optimize(CodeBlock block) {
+        InsnList instructions = block.getInstructionList();
+        boolean changed = false;
+        AbstractInsnNode node = instructions.getFirst();
+        while (node != null) {
+            AbstractInsnNode next = node.getNext();
+            if (node.getOpcode() >= 0 && fold(instructions, node)) {
+                changed = true;
+            }
+            node = next;
+        }
+        return changed;
+    }
+
+    private static boolean fold(InsnList instructions, AbstractInsnNode operation) {
+        AbstractInsnNode second = operation.getPrevious();
+        if (second == null) {
+            return false;
+        }
+        AbstractInsnNode first = second.getPrevious();
+        int opcode = operation.getOpcode();
+
+        if (isIntConstant(second)) {
+            int value = intConstant(second);
+            switch (opcode) {
+                case INEG:
+                    return replace(instructions, second, operation, pushInt(-value));
+                case I2B:
+                    return replace(instructions, second, operation, pushInt((byte) value));
+                case I2C:
+                    return replace(instructions, second, operation, pushInt((char) value));
+                case I2S:
+                    return replace(instructions, second, operation, pushInt((short) value));
+                case I2L:
+                    return replace(instructions, second, operation, pushLong(value));
+                case IFEQ:
+                case IFNE:
+                case IFLT:
+                case IFGE:
+                case IFGT:
+                case IFLE:
+                    return branch(instructions, second, (JumpInsnNode) operation, evaluate(opcode, value));
+            }
+            if (isIntConstant(first)) {
+                return foldInts(instructions, first, operation, intConstant(first), value);
+            }
+            if (isLongConstant(first)) {
+                return foldLongShift(instructions, first, operation, longConstant(first), value);
+            }
+            return false;
+        }
+
+        if (isLongConstant(second)) {
+            long value = longConstant(second);
+            switch (opcode) {
+                case LNEG:
+                    return replace(instructions, second, operation, pushLong(-value));
+                case L2I:
+                    return replace(instructions, second, operation, pushInt((int) value));
+            }
+            if (isLongConstant(first)) {
+                return foldLongs(instructions, first, operation, longConstant(first), value);
+            }
+        }
+        return false;
+    }
+
+    private static boolean foldInts(InsnList instructions, AbstractInsnNode first, AbstractInsnNode operation, int left, int right) {
+        int opcode = operation.getOpcode();
+        switch (opcode) {
+            case IADD:
+                return replace(instructions, first, operation, pushInt(left + right));
+            case ISUB:
+                return replace(instructions, first, operation, pushInt(left - right));
+            case IMUL:
+                return replace(instructions, first, operation, pushInt(left * right));
+            case IDIV:
+                return right != 0 && replace(instructions, first, operation, pushInt(left / right));
+            case IREM:
+                return right != 0 && replace(instructions, first, operation, pushInt(left % right));
+            case IAND:
+                return replace(instructions, first, operation, pushInt(left & right));
+            case IOR:
+                return replace(instructions, first, operation, pushInt(left | right));
+            case IXOR:
+                return replace(instructions, first, operation, pushInt(left ^ right));
+            case ISHL:
+                return replace(instructions, first, operation, pushInt(left << right));
+            case ISHR:
+                return replace(instructions, first, operation, pushInt(left >> right));
+            case IUSHR:
+                return replace(instructions, first, operation, pushInt(left >>> right));
+            case IF_ICMPEQ:
+            case IF_ICMPNE:
+            case IF_ICMPLT:
+            case IF_ICMPGE:
+            case IF_ICMPGT:
+            case IF_ICMPLE:
+                return branch(instructions, first, (JumpInsnNode) operation, evaluate(opcode, left, right));
+            default:
+                return false;
+        }
+    }
+
+    private static boolean foldLongShift(InsnList instructions, AbstractInsnNode first, AbstractInsnNode operation, long left, int right) {
+        switch (operation.getOpcode()) {
+            case LSHL:
+                return replace(instructions, first, operation, pushLong(left << right));
+            case LSHR:
+                return replace(instructions, first, operation, pushLong(left >> right));
+            case LUSHR:
+                return replace(instructions, first, operation, pushLong(left >>> right));
+            default:
+                return false;
+        }
+    }
+
+    private static boolean foldLongs(InsnList instructions, AbstractInsnNode first, AbstractInsnNode operation, long left, long right) {
+        switch (operation.getOpcode()) {
+            case LADD:
+                return replace(instructions, first, operation, pushLong(left + right));
+            case LSUB:
+                return replace(instructions, first, operation, pushLong(left - right));
+            case LMUL:
+                return replace(instructions, first, operation, pushLong(left * right));
+            case LDIV:
+                return right != 0 && replace(instructions, first, operation, pushLong(left / right));
+            case LREM:
+                return right != 0 && replace(instructions, first, operation, pushLong(left % right));
+            case LAND:
+                return replace(instructions, first, operation, pushLong(left & right));
+            case LOR:
+                return replace(instructions, first, operation, pushLong(left | right));
+            case LXOR:
+                return replace(instructions, first, operation, pushLong(left ^ right));
+            case LCMP:
+                return replace(instructions, first, operation, pushInt(left < right ? -1 : (left == right ? 0 : 1)));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Replaces every node from first to last, inclusive, with the given one
+     */
+    private static boolean replace(InsnList instructions, AbstractInsnNode first, AbstractInsnNode last, AbstractInsnNode replacement) {
+        instructions.insertBefore(first, replacement);
+        AbstractInsnNode node = first;
+        while (node != last) {
+            AbstractInsnNode next = node.getNext();
+            instructions.remove(node);
+            node = next;
+        }
+        instructions.remove(last);
+        return true;
+    }
+
+    private static boolean branch(InsnList instructions, AbstractInsnNode first, JumpInsnNode jump, boolean taken) {
+        if (taken) {
+            return replace(instructions, first, jump, new JumpInsnNode(GOTO, jump.label));
+        }
+        AbstractInsnNode node = first;
+        while (node != jump) {
+            AbstractInsnNode next = node.getNext();
+            instructions.remove(node);
+            node = next;
+        }
+        instructions.remove(jump);
+        return true;
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import java.util.Iterator;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Helpers to inspect instruction nodes
+ */
+public final class Instructions implements Opcodes {
+
+    private Instructions() {
+    }
+
+    /**
+     * @return true for nodes standing for bytecode, false for labels, line numbers and frames
+     */
+    public static boolean isInstruction(AbstractInsnNode node) {
+        return node != null && node.getOpcode() >= 0;
+    }
+
+    /**
+     * @return the next node standing for bytecode, skipping labels, line numbers and frames
+     */
+    public static AbstractInsnNode nextInstruction(AbstractInsnNode node) {
+        AbstractInsnNode next = node.getNext();
+        while (next != null && !isInstruction(next)) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    /**
+     * Drops the try/catch blocks left without any instruction in their range, which class files reject
+     *
+     * @return true if any block was dropped
+     */
+    public static boolean removeEmptyTryCatchBlocks(List<TryCatchBlockNode> tryCatchBlocks) {
+        boolean changed = false;
+        Iterator<TryCatchBlockNode> iterator = tryCatchBlocks.iterator();
+        while (iterator.hasNext()) {
+            if (isEmptyRange(iterator.next())) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isEmptyRange(TryCatchBlockNode tryCatchBlock) {
+        for (AbstractInsnNode node = tryCatchBlock.start; node != null; node = node.getNext()) {
+            if (node == tryCatchBlock.end) {
+                return true;
+            }
+            if (isInstruction(node)) {
+                return false;
+            }
+        }
+        // the end label is not after the start one in this list, so leave the block alone
+        return false;
+    }
+
+    public static boolean isIntConstant(AbstractInsnNode node) {
+        if (node == null) {
+            return false;
+        }
+        int opcode = node.getOpcode();
+        return (opcode >= ICONST_M1 && opcode <= ICONST_5) || opcode == BIPUSH || opcode == SIPUSH
+                || (opcode == LDC && ((LdcInsnNode) node).cst instanceof Integer);
+    }
+
+    public static int intConstant(AbstractInsnNode node) {
+        int opcode = node.getOpcode();
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+            return opcode - ICONST_0;
+        }
+        if (opcode == BIPUSH || opcode == SIPUSH) {
+            return ((IntInsnNode) node).operand;
+        }
+        return (Integer) ((LdcInsnNode) node).cst;
+    }
+
+    public static boolean isLongConstant(AbstractInsnNode node) {
+        if (node == null) {
+            return false;
+        }
+        int opcode = node.getOpcode();
+        return opcode == LCONST_0 || opcode == LCONST_1 || (opcode == LDC && ((LdcInsnNode) node).cst instanceof Long);
+    }
+
+    public static long longConstant(AbstractInsnNode node) {
+        int opcode = node.getOpcode();
+        if (opcode == LCONST_0 || opcode == LCONST_1) {
+            return opcode - LCONST_0;
+        }
+        return (Long) ((LdcInsnNode) node).cst;
+    }
+
+    /**
+     * @return the shortest instruction pushing the given int, as {@link me.qmx.jitescript.CodeBlock#pushInt(int)}
+     */
+    public static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        }
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(BIPUSH, value);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /**
+     * @return the shortest instruction pushing the given long
+     */
+    public static AbstractInsnNode pushLong(long value) {
+        if (value == 0 || value == 1) {
+            return new InsnNode(LCONST_0 + (int) value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /**
+     * @return true for instructions pushing a single stack slot without any side effect
+     */
+    public static boolean isSinglePush(AbstractInsnNode node) {
+        if (node == null) {
+            return false;
+        }
+        switch (node.getOpcode()) {
+            case ILOAD:
+            case FLOAD:
+            case ALOAD:
+            case ACONST_NULL:
+            case FCONST_0:
+            case FCONST_1:
+            case FCONST_2:
+                return true;
+            case LDC:
+                // class literals, method handles, method types and dynamic constants resolve, and may fail or run code
+                Object cst = ((LdcInsnNode) node).cst;
+                return cst instanceof Integer || cst instanceof Float || cst instanceof String;
+            default:
+                return isIntConstant(node);
+        }
+    }
+
+    /**
+     * @return true for instructions pushing a long or double without any side effect
+     */
+    public static boolean isDoublePush(AbstractInsnNode node) {
+        if (node == null) {
+            return false;
+        }
+        switch (node.getOpcode()) {
+            case LLOAD:
+            case DLOAD:
+            case LCONST_0:
+            case LCONST_1:
+            case DCONST_0:
+            case DCONST_1:
+                return true;
+            case LDC:
+                Object cst = ((LdcInsnNode) node).cst;
+                return cst instanceof Long || cst instanceof Double;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Evaluates a single operand int comparison, from IFEQ to IFLE
+     */
+    public static boolean evaluate(int opcode, int value) {
+        switch (opcode) {
+            case IFEQ:
+                return value == 0;
+            case IFNE:
+                return value != 0;
+            case IFLT:
+                return value < 0;
+            case IFGE:
+                return value >= 0;
+            case IFGT:
+                return value > 0;
+            case IFLE:
+                return value <= 0;
+            default:
+                throw new IllegalArgumentException("not a single operand int comparison: " + opcode);
+        }
+    }
+
+    /**
+     * Evaluates a two operands int comparison, from IF_ICMPEQ to IF_ICMPLE
+     */
+    public static boolean evaluate(int opcode, int left, int right) {
+        return evaluate(opcode - IF_ICMPEQ + IFEQ, left < right ? -1 : (left == right ? 0 : 1));
+    }
+
+    /**
+     * @return the number of bytes the instruction takes in the method code, at most, assuming short branch offsets
+     */
+    public static int codeSize(AbstractInsnNode node) {
+        switch (node.getType()) {
+            case AbstractInsnNode.INSN:
+                return 1;
+            case AbstractInsnNode.INT_INSN:
+                return node.getOpcode() == SIPUSH ? 3 : 2;
+            case AbstractInsnNode.VAR_INSN:
+                int var = ((VarInsnNode) node).var;
+                return var < 4 && node.getOpcode() != RET ? 1 : var < 256 ? 2 : 4;
+            case AbstractInsnNode.IINC_INSN:
+                IincInsnNode iinc = (IincInsnNode) node;
+                return iinc.var < 256 && iinc.incr == (byte) iinc.incr ? 3 : 6;
+            case AbstractInsnNode.METHOD_INSN:
+                return node.getOpcode() == INVOKEINTERFACE ? 5 : 3;
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                return 5;
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                return 4;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                return 16 + 4 * ((TableSwitchInsnNode) node).labels.size();
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                return 12 + 8 * ((LookupSwitchInsnNode) node).labels.size();
+            case AbstractInsnNode.TYPE_INSN:
+            case AbstractInsnNode.FIELD_INSN:
+            case AbstractInsnNode.JUMP_INSN:
+            case AbstractInsnNode.LDC_INSN:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the number of bytes the instructions take in the method code, at most, assuming short branch offsets
+     */
+    public static int codeSize(InsnList instructions) {
+        int size = 0;
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            size += codeSize(node);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.opt.Instructions.codeSize;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import me.qmx.jitescript.hierarchy.TypeHierarchy;
+import me.qmx.jitescript.hierarchy.TypeHierarchyVerifier;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Moves straight-line regions of oversized methods into private static helper methods of the same class, so that
+ * they fit the JVM limit on the size of method code, or the smaller size HotSpot is willing to JIT compile.
+ *
+ * A region starts and ends with an empty operand stack, and holds no branches, returns, throws, monitors or labels
+ * that anything else refers to. The locals it reads are passed to its helper as arguments; at most one of the locals
+ * it writes may be read after it, and the helper returns that one. Constructors and methods using subroutines are
+ * never split, and methods that cannot be analyzed are left as they are.
+ */
+public class MethodSplitter implements Opcodes {
+
+    /**
+     * The JVM limit on the size of a method's code
+     */
+    public static final int MAX_METHOD_SIZE = 65535;
+
+    /**
+     * The size above which HotSpot does not JIT compile a method, unless run with -XX:-DontCompileHugeMethods
+     */
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final int MIN_REGION_SIZE = 32;
+    private static final int MAX_PARAMETER_SLOTS = 255;
+
+    private final String owner;
+    private final TypeHierarchy hierarchy;
+    private final int limit;
+    private int helperCount;
+
+    /**
+     * @param owner     the internal name of the class declaring the methods to split, which will get the helpers
+     * @param hierarchy the hierarchy used to analyze the types of locals
+     * @param limit     the code size, in bytes, above which methods are split
+     */
+    public MethodSplitter(String owner, TypeHierarchy hierarchy, int limit) {
+        this.owner = owner;
+        this.hierarchy = hierarchy;
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Splits the given method if its code is larger than the limit. The method is rewritten in place to call the
+     * helpers, which are returned for the caller to add to the class.
+     *
+     * @param method the method to split
+     * @return the helper methods, empty if nothing was split
+     */
+    public List<MethodNode> split(MethodNode method) {
+        int size = Instructions.codeSize(method.instructions);
+        if (size <= limit || "<init>".equals(method.name) || usesSubroutines(method.instructions)) {
+            return Collections.emptyList();
+        }
+
+        AbstractInsnNode[] nodes = method.instructions.toArray();
+        BitSet[] successors = new BitSet[nodes.length];
+        Frame<BasicValue>[] frames;
+        try {
+            frames = analyze(method, successors);
+        } catch (AnalyzerException e) {
+            return Collections.emptyList();
+        }
+
+        Liveness liveness = new Liveness(method, nodes, frames, successors);
+        List<Region> regions = findRegions(method, nodes, frames, liveness);
+        Collections.sort(regions, new Comparator<Region>() {
+            public int compare(Region left, Region right) {
+                return right.savings() - left.savings();
+            }
+        });
+
+        List<MethodNode> helpers = new ArrayList<MethodNode>();
+        for (Region region : regions) {
+            if (size <= limit) {
+                break;
+            }
+            helpers.add(outline(method, region, nodes));
+            size -= region.savings();
+        }
+        return helpers;
+    }
+
+    private Frame<BasicValue>[] analyze(MethodNode method, final BitSet[] successors) throws AnalyzerException {
+        Analyzer<BasicValue> analyzer = new Analyzer<BasicValue>(new TypeHierarchyVerifier(owner, hierarchy)) {
+            @Override
+            protected void newControlFlowEdge(int insn, int successor) {
+                if (successors[insn] == null) {
+                    successors[insn] = new BitSet();
+                }
+                successors[insn].set(successor);
+            }
+        };
+        // the code blocks do not track their maximums, so the analysis computes them
+        return analyzer.analyzeAndComputeMaxs(owner, method);
+    }
+
+    private List<Region> findRegions(MethodNode method, AbstractInsnNode[] nodes, Frame<BasicValue>[] frames, Liveness liveness) {
+        Set<LabelNode> referenced = referencedLabels(method);
+        List<Region> regions = new ArrayList<Region>();
+        int start = 0;
+        while (start < nodes.length) {
+            Region region = null;
+            if (isBoundary(frames, start) && isMovable(nodes[start], referenced)) {
+                region = longestRegion(start, nodes, frames, liveness, referenced);
+            }
+            if (region == null) {
+                start = nextBoundary(frames, start);
+            } else {
+                regions.add(region);
+                start = region.end;
+            }
+        }
+        return regions;
+    }
+
+    private Region longestRegion(int start, AbstractInsnNode[] nodes, Frame<BasicValue>[] frames, Liveness liveness,
+            Set<LabelNode> referenced) {
+        BitSet reads = new BitSet();
+        BitSet writes = new BitSet();
+        List<Integer> parameters = new ArrayList<Integer>();
+        List<Type> parameterTypes = new ArrayList<Type>();
+        int parameterSlots = 0;
+        int size = 0;
+        Region longest = null;
+        for (int index = start; index < nodes.length; index++) {
+            if (index > start && isBoundary(frames, index) && size >= MIN_REGION_SIZE) {
+                BitSet liveWrites = (BitSet) writes.clone();
+                liveWrites.and(liveness.in(index));
+                if (liveWrites.cardinality() <= 1 && !writes.intersects(liveness.handlers(start))) {
+                    int result = liveWrites.nextSetBit(0);
+                    Type resultType = result < 0 ? Type.VOID_TYPE : typeOf(frames[index].getLocal(result));
+                    if (resultType != null) {
+                        longest = new Region(start, index, size, new ArrayList<Integer>(parameters),
+                                new ArrayList<Type>(parameterTypes), result, resultType);
+                    }
+                }
+            }
+
+            AbstractInsnNode node = nodes[index];
+            if (frames[index] == null || !isMovable(node, referenced)) {
+                break;
+            }
+            size += codeSize(node);
+            if (size + 8 * parameterTypes.size() + 8 > limit) {
+                break;
+            }
+            int var = -1;
+            boolean store = false;
+            if (node instanceof VarInsnNode) {
+                var = ((VarInsnNode) node).var;
+                store = node.getOpcode() >= ISTORE;
+            } else if (node instanceof IincInsnNode) {
+                var = ((IincInsnNode) node).var;
+            }
+            if (var >= 0 && !store && !writes.get(var) && !reads.get(var)) {
+                // a local read before the region writes it becomes a parameter of the helper
+                Type type = typeOf(frames[index].getLocal(var));
+                if (type == null || parameterSlots + type.getSize() > MAX_PARAMETER_SLOTS) {
+                    break;
+                }
+                reads.set(var);
+                parameters.add(var);
+                parameterTypes.add(type);
+                parameterSlots += type.getSize();
+            }
+            if (var >= 0 && (store || node instanceof IincInsnNode)) {
+                writes.set(var);
+            }
+        }
+        return longest;
+    }
+
+    private MethodNode outline(MethodNode method, Region region, AbstractInsnNode[] nodes) {
+        String name = method.name.replace('<', '_').replace('>', '_') + "$split$" + helperCount++;
+        String desc = Type.getMethodDescriptor(region.resultType, region.parameterTypes.toArray(new Type[region.parameterTypes.size()]));
+        MethodNode helper = new MethodNode(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null);
+
+        // the helper keeps the locals of the method, shifted past its parameters
+        int base = 0;
+        for (Type type : region.parameterTypes) {
+            base += type.getSize();
+        }
+        InsnList call = new InsnList();
+        int parameter = 0;
+        for (int i = 0; i < region.parameters.size(); i++) {
+            int var = region.parameters.get(i);
+            Type type = region.parameterTypes.get(i);
+            call.add(new VarInsnNode(type.getOpcode(ILOAD), var));
+            helper.instructions.add(new VarInsnNode(type.getOpcode(ILOAD), parameter));
+            helper.instructions.add(new VarInsnNode(type.getOpcode(ISTORE), base + var));
+            parameter += type.getSize();
+        }
+        call.add(new MethodInsnNode(INVOKESTATIC, owner, name, desc, false));
+        if (region.result >= 0) {
+            call.add(new VarInsnNode(region.resultType.getOpcode(ISTORE), region.result));
+        }
+        method.instructions.insertBefore(nodes[region.start], call);
+
+        Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+        for (int index = region.start; index < region.end; index++) {
+            if (nodes[index] instanceof LabelNode) {
+                labels.put((LabelNode) nodes[index], new LabelNode());
+            }
+        }
+        for (int index = region.start; index < region.end; index++) {
+            AbstractInsnNode node = nodes[index];
+            switch (node.getType()) {
+                case AbstractInsnNode.FRAME:
+                    method.instructions.remove(node);
+                    break;
+                case AbstractInsnNode.LABEL:
+                    // kept in the method as well, in case a line number or local variable outside still refers to it
+                    helper.instructions.add(labels.get(node));
+                    break;
+                case AbstractInsnNode.LINE:
+                    if (labels.containsKey(((LineNumberNode) node).start)) {
+                        helper.instructions.add(node.clone(labels));
+                        method.instructions.remove(node);
+                    }
+                    break;
+                case AbstractInsnNode.VAR_INSN:
+                    helper.instructions.add(new VarInsnNode(node.getOpcode(), base + ((VarInsnNode) node).var));
+                    method.instructions.remove(node);
+                    break;
+                case AbstractInsnNode.IINC_INSN:
+                    IincInsnNode iinc = (IincInsnNode) node;
+                    helper.instructions.add(new IincInsnNode(base + iinc.var, iinc.incr));
+                    method.instructions.remove(node);
+                    break;
+                default:
+                    helper.instructions.add(node.clone(labels));
+                    method.instructions.remove(node);
+            }
+        }
+
+        if (region.result >= 0) {
+            helper.instructions.add(new VarInsnNode(region.resultType.getOpcode(ILOAD), base + region.result));
+        }
+        helper.instructions.add(new InsnNode(region.resultType.getOpcode(IRETURN)));
+        helper.maxLocals = base + method.maxLocals;
+        helper.maxStack = Math.max(method.maxStack, 2);
+
+        return helper;
+    }
+
+    private static int nextBoundary(Frame<BasicValue>[] frames, int index) {
+        do {
+            index++;
+        } while (index < frames.length && !isBoundary(frames, index));
+        return index;
+    }
+
+    private static boolean isBoundary(Frame<BasicValue>[] frames, int index) {
+        return frames[index] != null && frames[index].getStackSize() == 0;
+    }
+
+    private static boolean isMovable(AbstractInsnNode node, Set<LabelNode> referenced) {
+        if (node instanceof LabelNode) {
+            return !referenced.contains(node);
+        }
+        if (node instanceof JumpInsnNode || node instanceof TableSwitchInsnNode || node instanceof LookupSwitchInsnNode) {
+            return false;
+        }
+        switch (node.getOpcode()) {
+            case IRETURN:
+            case LRETURN:
+            case FRETURN:
+            case DRETURN:
+            case ARETURN:
+            case RETURN:
+            case ATHROW:
+            case MONITORENTER:
+            case MONITOREXIT:
+                return false;
+            case INVOKESPECIAL:
+                // super calls need the receiver of the method itself; constructor calls are fine
+                return "<init>".equals(((MethodInsnNode) node).name);
+            default:
+                return true;
+        }
+    }
+
+    private static Type typeOf(BasicValue value) {
+        Type type = value.getType();
+        if (type == null || (type.getSort() == Type.OBJECT && "null".equals(type.getInternalName()))) {
+            return null;
+        }
+        return type;
+    }
+
+    private static Set<LabelNode> referencedLabels(MethodNode method) {
+        Set<LabelNode> labels = new HashSet<LabelNode>();
+        for (AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if (node instanceof JumpInsnNode) {
+                labels.add(((JumpInsnNode) node).label);
+            } else if (node instanceof TableSwitchInsnNode) {
+                labels.add(((TableSwitchInsnNode) node).dflt);
+                labels.addAll(((TableSwitchInsnNode) node).labels);
+            } else if (node instanceof LookupSwitchInsnNode) {
+                labels.add(((LookupSwitchInsnNode) node).dflt);
+                labels.addAll(((LookupSwitchInsnNode) node).labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks) {
+            labels.add(tryCatchBlock.start);
+            labels.add(tryCatchBlock.end);
+            labels.add(tryCatchBlock.handler);
+        }
+        if (method.localVariables != null) {
+            for (LocalVariableNode localVariable : method.localVariables) {
+                labels.add(localVariable.start);
+                labels.add(localVariable.end);
+            }
+        }
+        return labels;
+    }
+
+    private static boolean usesSubroutines(InsnList instructions) {
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            if (node.getOpcode() == JSR || node.getOpcode() == RET) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Region {
+
+        final int start;
+        final int end;
+        final int size;
+        final List<Integer> parameters;
+        final List<Type> parameterTypes;
+        final int result;
+        final Type resultType;
+
+        Region(int start, int end, int size, List<Integer> parameters, List<Type> parameterTypes, int result, Type resultType) {
+            this.start = start;
+            this.end = end;
+            this.size = size;
+            this.parameters = parameters;
+            this.parameterTypes = parameterTypes;
+            this.result = result;
+            this.resultType = resultType;
+        }
+
+        /**
+         * @return how many bytes the method shrinks by once the region is replaced by a call to its helper
+         */
+        int savings() {
+            return size - 4 * parameterTypes.size() - (result >= 0 ? 7 : 3);
+        }
+    }
+
+    /**
+     * Backward liveness of locals, over the control flow edges recorded during the analysis. The locals a handler
+     * reads are live everywhere its try block covers.
+     */
+    private static final class Liveness {
+
+        private final BitSet[] in;
+        private final int[] handlerStarts;
+        private final int[] handlerEnds;
+        private final int[] handlers;
+
+        Liveness(MethodNode method, AbstractInsnNode[] nodes, Frame<BasicValue>[] frames, BitSet[] successors) {
+            InsnList instructions = method.instructions;
+            int count = method.tryCatchBlocks.size();
+            handlerStarts = new int[count];
+            handlerEnds = new int[count];
+            handlers = new int[count];
+            for (int i = 0; i < count; i++) {
+                TryCatchBlockNode tryCatchBlock = method.tryCatchBlocks.get(i);
+                handlerStarts[i] = instructions.indexOf(tryCatchBlock.start);
+                handlerEnds[i] = instructions.indexOf(tryCatchBlock.end);
+                handlers[i] = instructions.indexOf(tryCatchBlock.handler);
+            }
+
+            in = new BitSet[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                in[i] = new BitSet();
+            }
+            boolean changed;
+            do {
+                changed = false;
+                for (int i = nodes.length - 1; i >= 0; i--) {
+                    if (frames[i] == null) {
+                        continue;
+                    }
+                    BitSet live = new BitSet();
+                    if (successors[i] != null) {
+                        for (int next = successors[i].nextSetBit(0); next >= 0; next = successors[i].nextSetBit(next + 1)) {
+                            live.or(in[next]);
+                        }
+                    }
+                    AbstractInsnNode node = nodes[i];
+                    if (node instanceof VarInsnNode) {
+                        if (node.getOpcode() >= ISTORE) {
+                            live.clear(((VarInsnNode) node).var);
+                        } else {
+                            live.set(((VarInsnNode) node).var);
+                        }
+                    } else if (node instanceof IincInsnNode) {
+                        live.set(((IincInsnNode) node).var);
+                    }
+                    live.or(handlers(i));
+                    if (!live.equals(in[i])) {
+                        in[i] = live;
+                        changed = true;
+                    }
+                }
+            } while (changed);
+        }
+
+        /**
+         * @return the locals live before the given instruction
+         */
+        BitSet in(int index) {
+            return in[index];
+        }
+
+        /**
+         * @return the locals live at the start of the handlers covering the given instruction
+         */
+        BitSet handlers(int index) {
+            BitSet live = new BitSet();
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlerStarts[i] <= index && index < handlerEnds[i]) {
+                    live.or(in[handlers[i]]);
+                }
+            }
+            return live;
+        }
+    }
+}
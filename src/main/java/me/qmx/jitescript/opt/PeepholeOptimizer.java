@@ -0,0 +1,161 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.opt.Instructions.evaluate;
+import static me.qmx.jitescript.opt.Instructions.intConstant;
+import static me.qmx.jitescript.opt.Instructions.isDoublePush;
+import static me.qmx.jitescript.opt.Instructions.isInstruction;
+import static me.qmx.jitescript.opt.Instructions.isIntConstant;
+import static me.qmx.jitescript.opt.Instructions.isSinglePush;
+import static me.qmx.jitescript.opt.Instructions.removeEmptyTryCatchBlocks;
+
+import java.util.EnumSet;
+import java.util.Set;
+import me.qmx.jitescript.CodeBlock;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+/**
+ * Rewrites wasteful instruction patterns frontends tend to emit. Patterns only match instructions that directly
+ * follow each other, so no jump can land in the middle of a rewritten sequence.
+ */
+public class PeepholeOptimizer implements CodeOptimizer, Opcodes {
+
+    public enum Rule {
+        /** dup; pop and dup2; pop2 */
+        DUP_POP,
+        /** a load or a constant immediately popped */
+        LOAD_POP,
+        /** swap; swap */
+        SWAP_SWAP,
+        /** goto to the label right after it */
+        GOTO_NEXT,
+        /** a conditional jump on a constant int or null */
+        CONSTANT_BRANCH,
+        /** checkcast to the type just checked */
+        CHECKCAST_CHECKCAST
+    }
+
+    private final Set<Rule> rules;
+
+    public PeepholeOptimizer() {
+        this(EnumSet.allOf(Rule.class));
+    }
+
+    public PeepholeOptimizer(Set<Rule> rules) {
+        this.rules = EnumSet.noneOf(Rule.class);
+        this.rules.addAll(rules);
+    }
+
+    public boolean optimize(CodeBlock block) {
+        InsnList instructions = block.getInstructionList();
+        boolean changed = false;
+        AbstractInsnNode node = instructions.getFirst();
+        while (node != null) {
+            AbstractInsnNode previous = node.getPrevious();
+            if (rewrite(instructions, node, node.getNext())) {
+                changed = true;
+                // rewrites never touch what precedes them, so step back there to match patterns they uncovered
+                node = previous == null ? instructions.getFirst() : previous;
+            } else {
+                node = node.getNext();
+            }
+        }
+        if (changed) {
+            removeEmptyTryCatchBlocks(block.getTryCatchBlockList());
+        }
+        return changed;
+    }
+
+    /**
+     * Rewrites the pattern starting at the given node, if any
+     *
+     * @return true if a pattern matched
+     */
+    private boolean rewrite(InsnList instructions, AbstractInsnNode node, AbstractInsnNode next) {
+        if (!isInstruction(node)) {
+            return false;
+        }
+        int opcode = node.getOpcode();
+        if (next != null) {
+            int nextOpcode = next.getOpcode();
+            if (rules.contains(Rule.DUP_POP) && ((opcode == DUP && nextOpcode == POP) || (opcode == DUP2 && nextOpcode == POP2))) {
+                remove(instructions, node, next);
+                return true;
+            }
+            if (rules.contains(Rule.LOAD_POP) && ((isSinglePush(node) && nextOpcode == POP) || (isDoublePush(node) && nextOpcode == POP2))) {
+                remove(instructions, node, next);
+                return true;
+            }
+            if (rules.contains(Rule.SWAP_SWAP) && opcode == SWAP && nextOpcode == SWAP) {
+                remove(instructions, node, next);
+                return true;
+            }
+            if (rules.contains(Rule.CHECKCAST_CHECKCAST) && opcode == CHECKCAST && nextOpcode == CHECKCAST
+                    && ((TypeInsnNode) node).desc.equals(((TypeInsnNode) next).desc)) {
+                instructions.remove(next);
+                return true;
+            }
+            if (rules.contains(Rule.CONSTANT_BRANCH) && foldBranch(instructions, node, next)) {
+                return true;
+            }
+        }
+        if (rules.contains(Rule.GOTO_NEXT) && opcode == GOTO && jumpsToNext((JumpInsnNode) node)) {
+            instructions.remove(node);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean foldBranch(InsnList instructions, AbstractInsnNode node, AbstractInsnNode next) {
+        int nextOpcode = next.getOpcode();
+        boolean taken;
+        if (isIntConstant(node) && nextOpcode >= IFEQ && nextOpcode <= IFLE) {
+            taken = evaluate(nextOpcode, intConstant(node));
+        } else if (node.getOpcode() == ACONST_NULL && (nextOpcode == IFNULL || nextOpcode == IFNONNULL)) {
+            taken = nextOpcode == IFNULL;
+        } else {
+            return false;
+        }
+        if (taken) {
+            instructions.set(next, new JumpInsnNode(GOTO, ((JumpInsnNode) next).label));
+            instructions.remove(node);
+        } else {
+            remove(instructions, node, next);
+        }
+        return true;
+    }
+
+    private static boolean jumpsToNext(JumpInsnNode jump) {
+        AbstractInsnNode next = jump.getNext();
+        while (next != null && !isInstruction(next)) {
+            if (next == jump.label) {
+                return true;
+            }
+            next = next.getNext();
+        }
+        return false;
+    }
+
+    private static void remove(InsnList instructions, AbstractInsnNode first, AbstractInsnNode second) {
+        instructions.remove(first);
+        instructions.remove(second);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import me.qmx.jitescript.CodeBlock;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * Removes instructions no control flow path reaches, along with the try/catch blocks left without any covered
+ * instruction. Labels, line numbers and frames are kept, since local variable and try/catch entries may still
+ * point at them. Blocks using jsr/ret are left alone.
+ */
+public class UnreachableCodeEliminator implements CodeOptimizer, Opcodes {
+
+    public boolean optimize(CodeBlock block) {
+        InsnList instructions = block.getInstructionList();
+        List<TryCatchBlockNode> tryCatchBlocks = block.getTryCatchBlockList();
+        AbstractInsnNode[] nodes = instructions.toArray();
+        if (nodes.length == 0) {
+            return false;
+        }
+        Map<AbstractInsnNode, Integer> indexes = new IdentityHashMap<AbstractInsnNode, Integer>(nodes.length * 2);
+        for (int i = 0; i < nodes.length; i++) {
+            int opcode = nodes[i].getOpcode();
+            if (opcode == JSR || opcode == RET) {
+                return false;
+            }
+            indexes.put(nodes[i], i);
+        }
+        if (!labelsKnown(nodes, tryCatchBlocks, indexes)) {
+            return false;
+        }
+
+        boolean[] reachable = new boolean[nodes.length];
+        boolean[] handled = new boolean[tryCatchBlocks.size()];
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        pending.push(0);
+        boolean grew = true;
+        while (grew) {
+            while (!pending.isEmpty()) {
+                int index = pending.pop();
+                while (index < nodes.length && !reachable[index]) {
+                    reachable[index] = true;
+                    AbstractInsnNode node = nodes[index];
+                    if (node instanceof JumpInsnNode) {
+                        pending.push(indexes.get(((JumpInsnNode) node).label));
+                        if (node.getOpcode() == GOTO) {
+                            break;
+                        }
+                    } else if (node instanceof TableSwitchInsnNode) {
+                        TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) node;
+                        pushAll(pending, indexes, tableSwitch.dflt, tableSwitch.labels);
+                        break;
+                    } else if (node instanceof LookupSwitchInsnNode) {
+                        LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) node;
+                        pushAll(pending, indexes, lookupSwitch.dflt, lookupSwitch.labels);
+                        break;
+                    } else if (isExit(node.getOpcode())) {
+                        break;
+                    }
+                    index++;
+                }
+            }
+            grew = false;
+            for (int i = 0; i < handled.length; i++) {
+                TryCatchBlockNode tryCatchBlock = tryCatchBlocks.get(i);
+                if (!handled[i] && coversReachable(reachable, nodes, indexes.get(tryCatchBlock.start), indexes.get(tryCatchBlock.end))) {
+                    handled[i] = true;
+                    pending.push(indexes.get(tryCatchBlock.handler));
+                    grew = true;
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < nodes.length; i++) {
+            if (!reachable[i] && nodes[i].getOpcode() >= 0) {
+                instructions.remove(nodes[i]);
+                changed = true;
+            }
+        }
+        Iterator<TryCatchBlockNode> tryCatchBlockIterator = tryCatchBlocks.iterator();
+        for (int i = 0; tryCatchBlockIterator.hasNext(); i++) {
+            tryCatchBlockIterator.next();
+            if (!handled[i]) {
+                tryCatchBlockIterator.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return false if a jump or try/catch block refers to a label outside of the block, which cannot be analyzed
+     */
+    private static boolean labelsKnown(AbstractInsnNode[] nodes, List<TryCatchBlockNode> tryCatchBlocks, Map<AbstractInsnNode, Integer> indexes) {
+        for (AbstractInsnNode node : nodes) {
+            if (node instanceof JumpInsnNode && !indexes.containsKey(((JumpInsnNode) node).label)) {
+                return false;
+            } else if (node instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) node;
+                if (!indexes.containsKey(tableSwitch.dflt) || !indexes.keySet().containsAll(tableSwitch.labels)) {
+                    return false;
+                }
+            } else if (node instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) node;
+                if (!indexes.containsKey(lookupSwitch.dflt) || !indexes.keySet().containsAll(lookupSwitch.labels)) {
+                    return false;
+                }
+            }
+        }
+        for (TryCatchBlockNode tryCatchBlock : tryCatchBlocks) {
+            if (!indexes.containsKey(tryCatchBlock.start) || !indexes.containsKey(tryCatchBlock.end)
+                    || !indexes.containsKey(tryCatchBlock.handler)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean coversReachable(boolean[] reachable, AbstractInsnNode[] nodes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (reachable[i] && nodes[i].getOpcode() >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void pushAll(Deque<Integer> pending, Map<AbstractInsnNode, Integer> indexes, LabelNode dflt, List<LabelNode> labels) {
+        pending.push(indexes.get(dflt));
+        for (LabelNode label : labels) {
+            pending.push(indexes.get(label));
+        }
+    }
+
+    private static boolean isExit(int opcode) {
+        return (opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * A polymorphic inline cache for dynamic calls, as linked by {@link me.qmx.jitescript.CodeBlock#dynamicCall}. The
+ * first argument of the call site is the receiver, and the call runs its public instance method of the site's name
+ * taking the remaining arguments, as found in its {@link MethodTable}.
+ * <p>
+ * Each receiver class seen puts a guard on the exact class in front of the site's target, so a site that only ever
+ * sees a few classes becomes a chain of class checks and direct calls the JIT can inline. Once more classes than the
+ * cache depth have been seen, the site gives up on guards and looks every call up by receiver class, in a table of
+ * its own filled from the method tables.
+ * <p>
+ * A site can also belong to a group of the {@link SwitchPointRegistry#global() global registry}, for receivers whose
+ * methods may change: invalidating the group empties the cache, and the site starts over.
+ */
+public class InlineCache extends MutableCallSite {
+
+    /** The number of receiver classes a site caches when its bootstrap isn't told otherwise */
+    public static final int DEFAULT_DEPTH = 4;
+
+    private static final MethodHandle MISS;
+    private static final MethodHandle RESET;
+    private static final MethodHandle SELECT;
+    private static final MethodHandle CHECK_CLASS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MISS = lookup.findVirtual(InlineCache.class, "miss", methodType(Object.class, Object[].class));
+            RESET = lookup.findVirtual(InlineCache.class, "reset", methodType(Object.class, Object[].class));
+            SELECT = lookup.findVirtual(InlineCache.class, "select", methodType(MethodHandle.class, Object.class));
+            CHECK_CLASS = lookup.findStatic(InlineCache.class, "checkClass",
+                    methodType(boolean.class, Class.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String name;
+    private final int depth;
+    private final String group;
+    // the method of each receiver class, adapted to this site, so that megamorphic calls look it up without allocating
+    private final ClassValue<MethodHandle> targets = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> receiverClass) {
+            return MethodTable.of(receiverClass).find(name, type().parameterCount() - 1).asType(type());
+        }
+    };
+    private int cached;
+    private volatile boolean megamorphic;
+    // the guards and calls cached so far, and the switch point they hold until, if the site belongs to a group
+    private MethodHandle chain;
+    private SwitchPoint switchPoint;
+
+    public InlineCache(String name, MethodType type, int depth) {
+        this(name, type, depth, null);
+    }
+
+    /**
+     * @param group the group of the global registry whose invalidation empties this cache, or null for none
+     */
+    public InlineCache(String name, MethodType type, int depth, String group) {
+        super(type);
+        if (type.parameterCount() == 0 || type.parameterType(0).isPrimitive()) {
+            throw new IllegalArgumentException("a dynamic call takes an object receiver first: " + type);
+        }
+        this.name = name;
+        this.depth = depth;
+        this.group = group;
+        start();
+    }
+
+    /**
+     * Links a dynamic call caching {@link #DEFAULT_DEPTH} receiver classes.
+     */
+    public static InlineCache bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        return new InlineCache(name, type, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param lookup the lookup of the class holding the call site, unused
+     * @param name   the name of the method to call
+     * @param type   the type of the call site, taking the receiver first
+     * @param depth  the number of receiver classes to cache before going megamorphic
+     * @return a call site caching the methods of the receiver classes it sees
+     */
+    public static InlineCache bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, int depth) {
+        return new InlineCache(name, type, depth);
+    }
+
+    /**
+     * @param lookup the lookup of the class holding the call site, unused
+     * @param name   the name of the method to call
+     * @param type   the type of the call site, taking the receiver first
+     * @param depth  the number of receiver classes to cache before going megamorphic
+     * @param group  the group of the global registry whose invalidation empties the cache
+     * @return a call site caching the methods of the receiver classes it sees, until the group is invalidated
+     */
+    public static InlineCache bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, int depth,
+            String group) {
+        return new InlineCache(name, type, depth, group);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return true if this site has seen more receiver classes than it caches, and looks every call up
+     */
+    public boolean isMegamorphic() {
+        return megamorphic;
+    }
+
+    private void start() {
+        cached = 0;
+        megamorphic = false;
+        chain = collect(MISS);
+        if (group != null) {
+            // taken before anything is cached, so that an invalidation racing with the first misses still counts
+            switchPoint = SwitchPointRegistry.global().get(group);
+        }
+        link(chain);
+    }
+
+    private void link(MethodHandle target) {
+        setTarget(switchPoint == null ? target : switchPoint.guardWithTest(target, collect(RESET)));
+    }
+
+    private MethodHandle collect(MethodHandle handler) {
+        return handler.bindTo(this).asCollector(Object[].class, type().parameterCount()).asType(type());
+    }
+
+    private Object reset(Object[] args) throws Throwable {
+        synchronized (this) {
+            if (switchPoint.hasBeenInvalidated()) {
+                start();
+            }
+        }
+        return miss(args);
+    }
+
+    private Object miss(Object[] args) throws Throwable {
+        Object receiver = args[0];
+        if (receiver == null) {
+            throw new NullPointerException("cannot call " + name + " on null");
+        }
+        MethodHandle target = select(receiver);
+        synchronized (this) {
+            if (megamorphic) {
+                // a racing miss got here first
+            } else if (cached < depth) {
+                cached++;
+                chain = MethodHandles.guardWithTest(guard(receiver.getClass()), target, chain);
+                link(chain);
+            } else {
+                megamorphic = true;
+                link(megamorphicTarget());
+            }
+        }
+        return target.invokeWithArguments(args);
+    }
+
+    private MethodHandle select(Object receiver) {
+        return targets.get(receiver.getClass());
+    }
+
+    private MethodHandle guard(Class<?> receiverClass) {
+        MethodHandle check = MethodHandles.insertArguments(CHECK_CLASS, 0, receiverClass)
+                .asType(methodType(boolean.class, type().parameterType(0)));
+        return MethodHandles.dropArguments(check, 1, type().dropParameterTypes(0, 1).parameterList());
+    }
+
+    private MethodHandle megamorphicTarget() {
+        // selects the method of the receiver, then calls it with all the arguments
+        MethodHandle selector = SELECT.bindTo(this).asType(methodType(MethodHandle.class, type().parameterType(0)));
+        selector = MethodHandles.dropArguments(selector, 1, type().dropParameterTypes(0, 1).parameterList());
+        return MethodHandles.foldArguments(MethodHandles.exactInvoker(type()), selector);
+    }
+
+    private static boolean checkClass(Class<?> expected, Object receiver) {
+        return receiver != null && receiver.getClass() == expected;
+    }
+}
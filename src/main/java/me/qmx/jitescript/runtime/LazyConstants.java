@@ -0,0 +1,112 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * The bootstrap method behind {@link me.qmx.jitescript.CodeBlock#lazyConstant}: the first time a call site runs, it
+ * calls the factory method given as its static argument, and binds the site to the value for good. Since the site
+ * never changes, the JIT compiles it as a true constant.
+ */
+public final class LazyConstants {
+
+    private LazyConstants() {
+    }
+
+    /**
+     * @param lookup  the lookup of the class holding the call site
+     * @param name    the name of the call site, unused
+     * @param type    the type of the call site, taking nothing and returning the constant
+     * @param factory the static method computing the constant, taking nothing
+     * @return a call site bound to the computed constant
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle factory)
+            throws Throwable {
+        Object value = factory.invokeWithArguments();
+        return new ConstantCallSite(MethodHandles.constant(type.returnType(), value));
+    }
+
+    /**
+     * Like {@link #bootstrap}, except that the constant is computed again on the first call after the given group of
+     * the {@link SwitchPointRegistry#global() global registry} is invalidated.
+     *
+     * @param lookup  the lookup of the class holding the call site
+     * @param name    the name of the call site, unused
+     * @param type    the type of the call site, taking nothing and returning the constant
+     * @param factory the static method computing the constant, taking nothing
+     * @param group   the group whose invalidation makes the constant stale
+     * @return a call site bound to the computed constant until the group is invalidated
+     */
+    public static CallSite guardedBootstrap(MethodHandles.Lookup lookup, String name, MethodType type,
+            MethodHandle factory, String group) {
+        return new GuardedConstant(type, factory, group);
+    }
+
+    /**
+     * The dynamic constant bootstrap that {@link me.qmx.jitescript.CodeBlock#lazyConstant} turns into for Java 11 and
+     * newer class files.
+     *
+     * @param lookup  the lookup of the class holding the constant
+     * @param name    the name of the constant, unused
+     * @param type    the type of the constant
+     * @param factory the static method computing the constant, taking nothing
+     * @return the computed constant
+     */
+    public static Object constant(MethodHandles.Lookup lookup, String name, Class<?> type, MethodHandle factory)
+            throws Throwable {
+        return factory.invokeWithArguments();
+    }
+
+    private static final class GuardedConstant extends MutableCallSite {
+        private static final MethodHandle RELINK;
+
+        static {
+            try {
+                RELINK = MethodHandles.lookup().findVirtual(GuardedConstant.class, "relink",
+                        MethodType.methodType(Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final MethodHandle factory;
+        private final String group;
+        private final MethodHandle fallback;
+
+        GuardedConstant(MethodType type, MethodHandle factory, String group) {
+            super(type);
+            this.factory = factory;
+            this.group = group;
+            this.fallback = RELINK.bindTo(this).asType(type);
+            setTarget(fallback);
+        }
+
+        private Object relink() throws Throwable {
+            // taken before computing, so that an invalidation while computing makes the value stale right away
+            SwitchPoint switchPoint = SwitchPointRegistry.global().get(group);
+            Object value = factory.invokeWithArguments();
+            setTarget(switchPoint.guardWithTest(MethodHandles.constant(type().returnType(), value), fallback));
+            return value;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The invocation count and latency histogram of one instrumented method, as recorded by the probes
+ * {@link me.qmx.jitescript.Instrumentation} puts into generated code. Counts are striped by thread, each stripe on a
+ * cache line of its own, so that threads calling the same hot method don't fight over one counter; reading them sums
+ * the stripes up. Timing samples one invocation in {@link #SAMPLE_PERIOD} on each stripe, since reading the clock
+ * twice costs far more than counting.
+ */
+public final class MethodProfile {
+
+    /** Timed methods time one invocation in this many */
+    public static final int SAMPLE_PERIOD = 16;
+    /** The number of latency buckets: bucket {@code i} counts latencies from 2^(i-1) up to 2^i nanoseconds */
+    public static final int BUCKETS = 64;
+
+    // 8 longs to a 64 byte cache line
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+    // a histogram stripe is a whole row of buckets, so fewer of them do
+    private static final int HISTOGRAM_STRIPES = Math.min(STRIPES, 8);
+
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final AtomicLongArray invocations = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicLongArray nanos = new AtomicLongArray(STRIPES * PADDING);
+    // allocated by the first timed call, so that counting alone doesn't pay for it
+    private volatile AtomicLongArray latencies;
+
+    MethodProfile(String className, String methodName, String descriptor) {
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+    }
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static int stripe() {
+        int hash = Thread.currentThread().hashCode();
+        return ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * Counts an invocation. Called on entry by instrumented methods.
+     */
+    public void enter() {
+        invocations.getAndIncrement(stripe());
+    }
+
+    /**
+     * Counts an invocation, and decides whether to time it. Called on entry by methods instrumented with timing.
+     *
+     * @return the {@link System#nanoTime()} on entry if this invocation is sampled, 0 otherwise
+     */
+    public long enterTimed() {
+        return (invocations.getAndIncrement(stripe()) & (SAMPLE_PERIOD - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the latency of an invocation, if sampled. Called on exit by methods instrumented with timing.
+     *
+     * @param start what {@link #enterTimed()} returned on entry
+     */
+    public void exit(long start) {
+        if (start == 0) {
+            return;
+        }
+        long elapsed = Math.max(0, System.nanoTime() - start);
+        int stripe = stripe();
+        nanos.getAndAdd(stripe, elapsed);
+        AtomicLongArray histogram = latencies;
+        if (histogram == null) {
+            synchronized (this) {
+                histogram = latencies;
+                if (histogram == null) {
+                    histogram = latencies = new AtomicLongArray(HISTOGRAM_STRIPES * BUCKETS);
+                }
+            }
+        }
+        int row = stripe / PADDING & (HISTOGRAM_STRIPES - 1);
+        histogram.getAndIncrement(row * BUCKETS + BUCKETS - Long.numberOfLeadingZeros(elapsed));
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return the number of invocations so far
+     */
+    public long getInvocations() {
+        return sum(invocations);
+    }
+
+    /**
+     * @return the time spent in sampled invocations so far, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return sum(nanos);
+    }
+
+    /**
+     * @return the sampled invocations by latency: element {@code i} counts those that took from 2^(i-1) up to 2^i
+     * nanoseconds, and element 0 those that took none
+     */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[BUCKETS];
+        AtomicLongArray current = latencies;
+        for (int i = 0; current != null && i < current.length(); i++) {
+            histogram[i % BUCKETS] += current.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Sets every count back to zero. Invocations racing with it may or may not be counted.
+     */
+    public void reset() {
+        for (int i = 0; i < invocations.length(); i += PADDING) {
+            invocations.set(i, 0);
+            nanos.set(i, 0);
+        }
+        latencies = null;
+    }
+
+    private static long sum(AtomicLongArray stripes) {
+        long sum = 0;
+        for (int i = 0; i < stripes.length(); i += PADDING) {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return className + "." + methodName + descriptor;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The instance methods of a class, by name and number of arguments, as method handles. This is what
+ * {@link InlineCache} looks methods up in, both to fill its cache and once it has gone megamorphic.
+ * <p>
+ * Overloads are told apart by their number of arguments alone: the first public method of the class with the right
+ * name and arity wins. A method declared by a class that isn't public is reached through the public class or
+ * interface it overrides, so that the public lookup can link it.
+ */
+public final class MethodTable {
+
+    private static final ClassValue<MethodTable> TABLES = new ClassValue<MethodTable>() {
+        @Override
+        protected MethodTable computeValue(Class<?> type) {
+            return new MethodTable(type);
+        }
+    };
+
+    private final Class<?> type;
+    private final ConcurrentMap<String, MethodHandle> handles = new ConcurrentHashMap<String, MethodHandle>();
+
+    private MethodTable(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the method table of the given class, shared by every call site
+     */
+    public static MethodTable of(Class<?> type) {
+        return TABLES.get(type);
+    }
+
+    /**
+     * @param name  the method name
+     * @param arity the number of arguments, not counting the receiver
+     * @return a handle to the method, taking the receiver first
+     * @throws NoSuchMethodError if the class has no such public instance method
+     */
+    public MethodHandle find(String name, int arity) {
+        String key = name + '/' + arity;
+        MethodHandle handle = handles.get(key);
+        if (handle == null) {
+            handle = resolve(name, arity);
+            MethodHandle raced = handles.putIfAbsent(key, handle);
+            handle = raced == null ? handle : raced;
+        }
+        return handle;
+    }
+
+    private MethodHandle resolve(String name, int arity) {
+        Method found = null;
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == arity
+                    && !Modifier.isStatic(method.getModifiers())) {
+                // bridges stand for a method with more specific types, unless they just make one visible
+                if (found == null || found.isBridge() && !method.isBridge()) {
+                    found = method;
+                }
+            }
+        }
+        if (found == null) {
+            throw new NoSuchMethodError(type.getName() + "." + name + " taking " + arity + " arguments");
+        }
+        Method reachable = findPublic(type, name, found.getParameterTypes());
+        try {
+            return MethodHandles.publicLookup().unreflect(reachable == null ? found : reachable);
+        } catch (IllegalAccessException e) {
+            throw new IllegalAccessError(e.getMessage());
+        }
+    }
+
+    private static Method findPublic(Class<?> type, String name, Class<?>[] parameterTypes) {
+        if (type == null) {
+            return null;
+        }
+        if (Modifier.isPublic(type.getModifiers())) {
+            // a public class has every public method of its supertypes
+            try {
+                return type.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+        Method method = findPublic(type.getSuperclass(), name, parameterTypes);
+        for (Class<?> iface : type.getInterfaces()) {
+            method = method == null ? findPublic(iface, name, parameterTypes) : method;
+        }
+        return method;
+    }
+}
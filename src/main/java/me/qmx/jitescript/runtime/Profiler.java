@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the {@link MethodProfile}s of instrumented methods, by class and method. Instrumented classes
+ * register their methods through {@link #global()} the first time each of them runs.
+ *
+ * @see me.qmx.jitescript.JiteClass#setInstrumentation
+ */
+public final class Profiler {
+
+    private static final Profiler GLOBAL = new Profiler();
+
+    private final ConcurrentMap<String, MethodProfile> profiles = new ConcurrentHashMap<String, MethodProfile>();
+
+    /**
+     * @return the registry instrumented classes record into
+     */
+    public static Profiler global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Called by instrumented methods the first time they run.
+     *
+     * @param className  the internal name of the class
+     * @param methodName the name of the method
+     * @param descriptor the descriptor of the method
+     * @return the profile of the method, created on first use
+     */
+    public static MethodProfile profile(String className, String methodName, String descriptor) {
+        return GLOBAL.getProfile(className, methodName, descriptor);
+    }
+
+    /**
+     * @return the profile of the given method, created empty if it has none yet
+     */
+    public MethodProfile getProfile(String className, String methodName, String descriptor) {
+        String key = className + "." + methodName + descriptor;
+        MethodProfile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new MethodProfile(className, methodName, descriptor);
+            MethodProfile raced = profiles.putIfAbsent(key, profile);
+            profile = raced == null ? profile : raced;
+        }
+        return profile;
+    }
+
+    /**
+     * @return the profiles of every method run so far
+     */
+    public List<MethodProfile> getProfiles() {
+        return new ArrayList<MethodProfile>(profiles.values());
+    }
+
+    /**
+     * @param className the internal name of a class
+     * @return the profiles of the methods of that class run so far
+     */
+    public List<MethodProfile> getProfiles(String className) {
+        List<MethodProfile> matching = new ArrayList<MethodProfile>();
+        for (MethodProfile profile : profiles.values()) {
+            if (profile.getClassName().equals(className)) {
+                matching.add(profile);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @param className the internal name of a class
+     * @return the number of invocations of all the methods of that class
+     */
+    public long getInvocations(String className) {
+        long invocations = 0;
+        for (MethodProfile profile : getProfiles(className)) {
+            invocations += profile.getInvocations();
+        }
+        return invocations;
+    }
+
+    /**
+     * Sets the counts of every profile back to zero.
+     */
+    public void reset() {
+        for (MethodProfile profile : profiles.values()) {
+            profile.reset();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named groups of call sites that are invalidated together, say every site depending on a class hierarchy or a
+ * global value, when it changes. Each group has a current {@link SwitchPoint}; sites guard their targets with it,
+ * and invalidating the group swaps in a fresh one and invalidates the old, sending every guarded site to its
+ * fallback at once.
+ * <p>
+ * Until then, the guard costs nothing in compiled code: the JIT treats the guarded target as the only one, and
+ * deoptimizes the code depending on it when the switch point is invalidated.
+ */
+public final class SwitchPointRegistry {
+
+    private static final SwitchPointRegistry GLOBAL = new SwitchPointRegistry();
+
+    private final ConcurrentMap<String, SwitchPoint> switchPoints = new ConcurrentHashMap<String, SwitchPoint>();
+
+    /**
+     * @return the registry the bootstraps of generated code guard their sites with
+     */
+    public static SwitchPointRegistry global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the current switch point of the given group, valid until the group is next invalidated
+     */
+    public SwitchPoint get(String group) {
+        SwitchPoint switchPoint = switchPoints.get(group);
+        if (switchPoint == null) {
+            switchPoint = new SwitchPoint();
+            SwitchPoint raced = switchPoints.putIfAbsent(group, switchPoint);
+            switchPoint = raced == null ? switchPoint : raced;
+        }
+        return switchPoint;
+    }
+
+    /**
+     * @return a handle running the target until the given group is invalidated, and the fallback from then on
+     */
+    public MethodHandle guard(String group, MethodHandle target, MethodHandle fallback) {
+        return get(group).guardWithTest(target, fallback);
+    }
+
+    /**
+     * Invalidates every site guarded by any of the given groups, in a single safepoint.
+     */
+    public void invalidate(String... groups) {
+        List<SwitchPoint> invalidated = new ArrayList<SwitchPoint>(groups.length);
+        for (String group : groups) {
+            SwitchPoint old = switchPoints.remove(group);
+            if (old != null) {
+                invalidated.add(old);
+            }
+        }
+        if (!invalidated.isEmpty()) {
+            SwitchPoint.invalidateAll(invalidated.toArray(new SwitchPoint[invalidated.size()]));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+
+public class BuilderPoolTest implements Opcodes {
+
+    @Test
+    public void handsOutReleasedBuildersEmpty() {
+        BuilderPool pool = new BuilderPool(4, 4);
+        CodeBlock block = pool.codeBlock().ldc("used").areturn();
+        block.getInstructionList();
+        block.trycatch(new LabelNode(), new LabelNode(), new LabelNode(), null);
+
+        pool.release(block);
+        CodeBlock reused = pool.codeBlock();
+
+        assertSame(block, reused);
+        assertEquals(0, reused.getInstructionList().size());
+        assertTrue(reused.getTryCatchBlockList().isEmpty());
+        assertTrue(!reused.returns());
+    }
+
+    @Test
+    public void releasingTwiceKeepsOneCopy() {
+        BuilderPool pool = new BuilderPool(4, 4);
+        CodeBlock block = pool.codeBlock();
+
+        pool.release(block);
+        pool.release(block);
+
+        assertNotSame(pool.codeBlock(), pool.codeBlock());
+    }
+
+    @Test
+    public void pooledClassesEmitLikeFreshOnes() throws Exception {
+        BuilderPool pool = new BuilderPool(4, 4);
+        for (int i = 0; i < 3; i++) {
+            JiteClass pooled = build(pool, "pool/Built" + i);
+            byte[] bytes = pooled.toBytes();
+            assertArrayEquals(build(new BuilderPool(0, 0), "pool/Built" + i).toBytes(), bytes);
+
+            Class<?> definedClass = new JiteClassLoader().define(pooled, bytes);
+            assertEquals("pool/Built" + i, ((Callable<?>) definedClass.newInstance()).call());
+            pool.release(pooled);
+        }
+    }
+
+    private static JiteClass build(BuilderPool pool, String name) {
+        JiteClass jiteClass = pool.jiteClass(name, p(Object.class), new String[]{p(Callable.class)});
+        jiteClass.defineField("name", ACC_PRIVATE | ACC_STATIC, ci(String.class), name);
+        jiteClass.defineMethod("<init>", ACC_PUBLIC, sig(void.class), pool.codeBlock()
+                .aload(0)
+                .invokespecial(p(Object.class), "<init>", sig(void.class))
+                .voidreturn());
+        jiteClass.defineMethod("call", ACC_PUBLIC, sig(Object.class), pool.codeBlock()
+                .getstatic(name, "name", ci(String.class))
+                .areturn());
+        return jiteClass;
+    }
+}
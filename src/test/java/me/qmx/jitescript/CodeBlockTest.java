@@ -0,0 +1,390 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+import me.qmx.jitescript.opt.Instructions;
+import me.qmx.jitescript.runtime.SwitchPointRegistry;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+public class CodeBlockTest implements Opcodes {
+
+    @Test
+    public void compactBlocksEmitLikeInstructionLists() {
+        CodeBlock compact = everyKindOfInstruction(newCodeBlock());
+        CodeBlock materialized = newCodeBlock();
+        materialized.getInstructionList();
+        everyKindOfInstruction(materialized);
+
+        assertEquals(trace(materialized), trace(compact));
+        assertEquals(Instructions.codeSize(materialized.getInstructionList()), compact.codeSize());
+        assertEquals(materialized.instructionCount(), compact.instructionCount());
+        assertEquals(trace(materialized), trace(compact));
+    }
+
+    @Test
+    public void materializesTheSameLabels() {
+        LabelNode target = new LabelNode();
+        CodeBlock block = newCodeBlock().label(target).iconst_0().ifeq(target).voidreturn();
+
+        InsnList instructions = block.getInstructionList();
+
+        assertEquals(4, instructions.size());
+        assertSame(target, instructions.getFirst());
+        assertSame(target, ((JumpInsnNode) instructions.get(2)).label);
+        block.iconst_1();
+        assertSame(instructions, block.getInstructionList());
+        assertEquals(ICONST_1, instructions.getLast().getOpcode());
+    }
+
+    @Test
+    public void appendMovesInstructions() {
+        CodeBlock first = newCodeBlock().ldc("first").pop();
+        CodeBlock second = newCodeBlock().ldc("second").pop();
+        CodeBlock third = newCodeBlock().ldc("third").pop();
+
+        second.append(third).prepend(first);
+
+        assertEquals(0, first.getInstructionList().size());
+        assertEquals(0, third.getInstructionList().size());
+        assertEquals(trace(newCodeBlock().ldc("first").pop().ldc("second").pop().ldc("third").pop()), trace(second));
+    }
+
+    @Test
+    public void concatenatesThroughStringConcatFactory() throws Exception {
+        assertEquals("id=42, name=jite, size=9000000000, c!", concatenate(JDKVersion.V9));
+    }
+
+    @Test
+    public void concatenatesThroughStringBuilder() throws Exception {
+        assertEquals("id=42, name=jite, size=9000000000, c!", concatenate(JDKVersion.V1_6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRecipesWithoutEveryArgument() {
+        newCodeBlock().concat(JDKVersion.V9, "id=" + CodeBlock.CONCAT_ARGUMENT, int.class, String.class);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void buildsLambdasThroughLambdaMetafactory() throws Exception {
+        JiteClass jiteClass = new JiteClass("lambda/Factory", p(Object.class), new String[0]);
+        Handle length = jiteClass.defineLambda(sig(int.class, String.class), newCodeBlock()
+                .aload(0)
+                .invokevirtual(p(String.class), "length", sig(int.class))
+                .ireturn());
+        Handle prefix = jiteClass.defineLambda(sig(String.class, String.class, String.class), newCodeBlock()
+                .aload(0)
+                .aload(1)
+                .invokevirtual(p(String.class), "concat", sig(String.class, String.class))
+                .areturn());
+        jiteClass.defineMethod("length", ACC_PUBLIC | ACC_STATIC, sig(Function.class), newCodeBlock()
+                .lambda(Function.class, length)
+                .areturn());
+        jiteClass.defineMethod("prefix", ACC_PUBLIC | ACC_STATIC, sig(Function.class, String.class), newCodeBlock()
+                .aload(0)
+                .lambda(Function.class, prefix)
+                .areturn());
+        jiteClass.defineMethod("hash", ACC_PUBLIC | ACC_STATIC, sig(ToIntFunction.class), newCodeBlock()
+                .lambda(ToIntFunction.class, new Handle(H_INVOKEVIRTUAL, p(Object.class), "hashCode", sig(int.class), false))
+                .areturn());
+
+        Class<?> factory = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), JDKVersion.V1_8).define(jiteClass);
+        Function<String, Integer> lengthFunction = (Function<String, Integer>) factory.getMethod("length").invoke(null);
+        Function<String, String> prefixFunction = (Function<String, String>) factory.getMethod("prefix", String.class).invoke(null, "jite");
+        ToIntFunction<Object> hashFunction = (ToIntFunction<Object>) factory.getMethod("hash").invoke(null);
+
+        assertEquals(Integer.valueOf(4), lengthFunction.apply("four"));
+        assertSame(lengthFunction, factory.getMethod("length").invoke(null));
+        assertEquals("jitescript", prefixFunction.apply("script"));
+        assertEquals("x".hashCode(), hashFunction.applyAsInt("x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInterfacesWithSeveralAbstractMethods() {
+        newCodeBlock().lambda(List.class, new Handle(H_INVOKESTATIC, "lambda/Factory", "lambda$0", sig(void.class), false));
+    }
+
+    @Test
+    public void picksSwitchInstructionsByDensity() throws Exception {
+        int[] dense = {3, 1, 2, 5, 4};
+        int[] sparse = {-1000000, 7, 1 << 20, 90000};
+        int[] clustered = {100, 101, 102, 103, 104, 105, 2000, 2001, 2002, 2003, 2005, -50, 1 << 30};
+
+        assertEquals(1, count(dispatcher(dense), TABLESWITCH));
+        assertEquals(1, count(dispatcher(sparse), LOOKUPSWITCH));
+        CodeBlock clusteredSwitch = dispatcher(clustered);
+        assertEquals(2, count(clusteredSwitch, TABLESWITCH));
+        assertEquals(2, count(clusteredSwitch, LOOKUPSWITCH));
+
+        for (int[] keys : new int[][]{dense, sparse, clustered}) {
+            JiteClass jiteClass = new JiteClass("switches/Dispatcher", p(Object.class), new String[0]);
+            jiteClass.defineMethod("dispatch", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class), dispatcher(keys));
+            Method dispatch = new JiteClassLoader().define(jiteClass).getMethod("dispatch", int.class);
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(i, dispatch.invoke(null, keys[i]));
+                assertEquals(-1, dispatch.invoke(null, keys[i] + 1000000007));
+            }
+            assertEquals(-1, dispatch.invoke(null, 2004));
+        }
+    }
+
+    @Test
+    public void switchesOnStringsSharingHashCodes() throws Exception {
+        String[] keys = {"Aa", "BB", "jite", "script"};
+        LabelNode[] targets = new LabelNode[keys.length];
+        LabelNode dflt = new LabelNode();
+        CodeBlock body = newCodeBlock().aload(0);
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = new LabelNode();
+        }
+        body.switchOn(keys, targets, dflt);
+        for (int i = 0; i < targets.length; i++) {
+            body.label(targets[i]).pushInt(i).ireturn();
+        }
+        body.label(dflt).iconst_m1().ireturn();
+        JiteClass jiteClass = new JiteClass("switches/Strings", p(Object.class), new String[0]);
+        jiteClass.defineMethod("dispatch", ACC_PUBLIC | ACC_STATIC, sig(int.class, String.class), body);
+
+        Method dispatch = new JiteClassLoader().define(jiteClass).getMethod("dispatch", String.class);
+
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, dispatch.invoke(null, keys[i]));
+        }
+        assertEquals(-1, dispatch.invoke(null, "C#"));
+        assertEquals(-1, dispatch.invoke(null, "other"));
+    }
+
+    @Test
+    public void computesLazyConstantsOnce() throws Exception {
+        JiteClass jiteClass = new JiteClass("constants/Patterns", p(Object.class), new String[0]);
+        jiteClass.defineField("calls", ACC_PUBLIC | ACC_STATIC, ci(int.class), null);
+        Handle factory = jiteClass.defineConstantFactory(Pattern.class, newCodeBlock()
+                .getstatic("constants/Patterns", "calls", ci(int.class))
+                .iconst_1()
+                .iadd()
+                .putstatic("constants/Patterns", "calls", ci(int.class))
+                .ldc("j+ite")
+                .invokestatic(p(Pattern.class), "compile", sig(Pattern.class, String.class))
+                .areturn());
+        jiteClass.defineMethod("pattern", ACC_PUBLIC | ACC_STATIC, sig(Pattern.class), newCodeBlock()
+                .lazyConstant("pattern", Pattern.class, factory)
+                .areturn());
+
+        Class<?> patterns = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        Method pattern = patterns.getMethod("pattern");
+
+        assertEquals(0, patterns.getField("calls").get(null));
+        Object first = pattern.invoke(null);
+        assertSame(first, pattern.invoke(null));
+        assertTrue(((Pattern) first).matcher("jjjite").matches());
+        assertEquals(1, patterns.getField("calls").get(null));
+    }
+
+    @Test
+    public void lazyConstantsBecomeDynamicConstantsFromJava11() throws Exception {
+        JiteClass jiteClass = new JiteClass("constants/Answer", p(Object.class), new String[0]);
+        Handle factory = jiteClass.defineConstantFactory(int.class, newCodeBlock().pushInt(42).ireturn());
+        jiteClass.defineMethod("answer", ACC_PUBLIC | ACC_STATIC, sig(int.class), newCodeBlock()
+                .lazyConstant("answer", int.class, factory)
+                .ireturn());
+
+        ClassNode node = new ClassNode();
+        new ClassReader(jiteClass.toBytes(JDKVersion.V11)).accept(node, 0);
+        MethodNode answer = null;
+        for (MethodNode method : node.methods) {
+            answer = "answer".equals(method.name) ? method : answer;
+        }
+        Class<?> answers = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), JDKVersion.V11).define(jiteClass);
+
+        assertTrue(((LdcInsnNode) answer.instructions.getFirst()).cst instanceof ConstantDynamic);
+        assertEquals(42, answers.getMethod("answer").invoke(null));
+    }
+
+    @Test
+    public void dispatchesDynamicCallsOnTheReceiverClass() throws Exception {
+        JiteClass jiteClass = new JiteClass("dynamic/Caller", p(Object.class), new String[0]);
+        jiteClass.defineMethod("describe", ACC_PUBLIC | ACC_STATIC, sig(String.class, Object.class), newCodeBlock()
+                .aload(0)
+                .dynamicCall("toString", sig(String.class, Object.class), 1)
+                .areturn());
+
+        Class<?> caller = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        Method describe = caller.getMethod("describe", Object.class);
+
+        assertEquals("jite", describe.invoke(null, "jite"));
+        assertEquals("42", describe.invoke(null, 42));
+        assertEquals("[a]", describe.invoke(null, Arrays.asList("a")));
+    }
+
+    @Test
+    public void recomputesGuardedConstantsAfterInvalidation() throws Exception {
+        JiteClass jiteClass = new JiteClass("constants/Guarded", p(Object.class), new String[0]);
+        jiteClass.defineField("calls", ACC_PUBLIC | ACC_STATIC, ci(int.class), null);
+        Handle factory = jiteClass.defineConstantFactory(int.class, newCodeBlock()
+                .getstatic("constants/Guarded", "calls", ci(int.class))
+                .iconst_1()
+                .iadd()
+                .dup()
+                .putstatic("constants/Guarded", "calls", ci(int.class))
+                .ireturn());
+        jiteClass.defineMethod("generation", ACC_PUBLIC | ACC_STATIC, sig(int.class), newCodeBlock()
+                .guardedConstant("generation", int.class, factory, "code-block-test")
+                .ireturn());
+
+        Class<?> guarded = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        Method generation = guarded.getMethod("generation");
+
+        assertEquals(1, generation.invoke(null));
+        assertEquals(1, generation.invoke(null));
+        SwitchPointRegistry.global().invalidate("code-block-test");
+        assertEquals(2, generation.invoke(null));
+        assertEquals(2, generation.invoke(null));
+    }
+
+    private static CodeBlock dispatcher(int[] keys) {
+        LabelNode[] targets = new LabelNode[keys.length];
+        LabelNode dflt = new LabelNode();
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = new LabelNode();
+        }
+        CodeBlock body = newCodeBlock().iload(0).switchOn(keys, targets, dflt);
+        for (int i = 0; i < targets.length; i++) {
+            body.label(targets[i]).pushInt(i).ireturn();
+        }
+        return body.label(dflt).iconst_m1().ireturn();
+    }
+
+    private static int count(CodeBlock block, int opcode) {
+        int count = 0;
+        for (AbstractInsnNode node = block.getInstructionList().getFirst(); node != null; node = node.getNext()) {
+            if (node.getOpcode() == opcode) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String concatenate(JDKVersion version) throws Exception {
+        char arg = CodeBlock.CONCAT_ARGUMENT;
+        String desc = sig(String.class, int.class, String.class, long.class, char.class);
+        CodeBlock body = newCodeBlock();
+        LocalAllocator.Local id = body.locals().allocate("id", int.class);
+        LocalAllocator.Local name = body.locals().allocate("name", String.class);
+        LocalAllocator.Local size = body.locals().allocate("size", long.class);
+        LocalAllocator.Local c = body.locals().allocate("c", char.class);
+        body.load(id).load(name).load(size).load(c)
+                .concat(version, "id=" + arg + ", name=" + arg + ", size=" + arg + ", " + arg + "!", int.class, String.class,
+                        long.class, char.class)
+                .areturn();
+        JiteClass jiteClass = new JiteClass("concat/Formatter" + version, p(Object.class), new String[0]);
+        jiteClass.defineMethod("format", ACC_PUBLIC | ACC_STATIC, desc, body);
+
+        Class<?> formatter = new JiteClassLoader(CodeBlockTest.class.getClassLoader(), version).define(jiteClass);
+        return (String) formatter.getMethod("format", int.class, String.class, long.class, char.class)
+                .invoke(null, 42, "jite", 9000000000L, 'c');
+    }
+
+    private static String trace(CodeBlock block) {
+        Textifier textifier = new Textifier();
+        block.accept(new TraceMethodVisitor(textifier));
+        StringWriter text = new StringWriter();
+        textifier.print(new PrintWriter(text));
+        return text.toString();
+    }
+
+    private static CodeBlock everyKindOfInstruction(CodeBlock block) {
+        LabelNode start = new LabelNode();
+        LabelNode loop = new LabelNode();
+        LabelNode one = new LabelNode();
+        LabelNode other = new LabelNode();
+        LabelNode end = new LabelNode();
+        Handle bootstrap = new Handle(H_INVOKESTATIC, "test/Bootstrap", "bootstrap",
+                sig(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class), false);
+        return block
+                .label(start)
+                .line(42, start)
+                .trycatch(start, end, end, p(RuntimeException.class))
+                .iconst_3()
+                .bipush(100)
+                .sipush(1000)
+                .ldc(10000000L)
+                .ldc("constant")
+                .pop2()
+                .pop2()
+                .pop()
+                .istore(300)
+                .iinc(300, 200)
+                .iinc(1, 1)
+                .label(loop)
+                .iload(1)
+                .tableswitch(0, 1, other, new LabelNode[]{one, other})
+                .label(one)
+                .iload(1)
+                .lookupswitch(other, new int[]{5, 50}, new LabelNode[]{loop, other})
+                .label(other)
+                .frame_same()
+                .newobj(p(StringBuilder.class))
+                .dup()
+                .invokespecial(p(StringBuilder.class), "<init>", sig(void.class))
+                .getstatic(p(System.class), "out", ci(java.io.PrintStream.class))
+                .invokeinterface(p(List.class), "size", sig(int.class))
+                .invokevirtual(p(Object.class), "hashCode", sig(int.class))
+                .invokedynamic("call", sig(int.class, Object.class), bootstrap, "argument", 1)
+                .checkcast(p(String.class))
+                .pushInt(3)
+                .pushInt(4)
+                .multianewarray("[[I", 2)
+                .visitInsn(ACONST_NULL)
+                .visitIntInsn(NEWARRAY, T_INT)
+                .aload(1)
+                .ifnull(loop)
+                .label(end)
+                .athrow();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+public class JiteClassLoaderTest {
+
+    @Test
+    public void definesChildClassesLazily() throws Exception {
+        final JiteClass child = new JiteClass("test/Outer$Inner", p(Object.class), new String[]{p(Callable.class)}) {{
+            defineDefaultConstructor();
+            defineMethod("call", ACC_PUBLIC, sig(Object.class), newCodeBlock().ldc("inner").areturn());
+        }};
+        JiteClass parent = new JiteClass("test/Outer", p(Object.class), new String[]{p(Callable.class)}) {{
+            defineDefaultConstructor();
+            defineMethod("call", ACC_PUBLIC, sig(Object.class), newCodeBlock()
+                    .newobj(child.getClassName())
+                    .dup()
+                    .invokespecial(child.getClassName(), "<init>", sig(void.class))
+                    .areturn());
+            addChildClass(child);
+        }};
+
+        JiteClassLoader loader = new JiteClassLoader();
+        Class<?> outer = loader.define(parent);
+        Callable<?> callable = (Callable<?>) outer.newInstance();
+        Callable<?> inner = (Callable<?>) callable.call();
+
+        assertEquals("inner", inner.call());
+        assertSame(loader, inner.getClass().getClassLoader());
+        assertSame(outer, loader.loadClass("test.Outer"));
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void unknownClassesAreNotFound() throws Exception {
+        new JiteClassLoader().loadClass("test.Missing");
+    }
+
+    @Test
+    public void definesHiddenClasses() throws Exception {
+        assumeTrue(JiteClassLoader.isHiddenClassSupported());
+
+        JiteClass jiteClass = new JiteClass("me/qmx/jitescript/HiddenGreeter", p(Object.class), new String[]{p(Callable.class)}) {{
+            defineDefaultConstructor();
+            defineMethod("call", ACC_PUBLIC, sig(Object.class), newCodeBlock().ldc("hidden").areturn());
+        }};
+
+        JiteClassLoader loader = new JiteClassLoader(getClass().getClassLoader());
+        loader.setHiddenClassLookup(MethodHandles.lookup());
+        Class<?> first = loader.define(jiteClass);
+        Class<?> second = loader.define(jiteClass);
+
+        assertTrue((Boolean) Class.class.getMethod("isHidden").invoke(first));
+        assertNotSame(first, second);
+        assertEquals("hidden", ((Callable<?>) first.newInstance()).call());
+    }
+}
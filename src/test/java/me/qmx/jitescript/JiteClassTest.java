@@ -28,8 +28,15 @@ import java.io.PrintStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import me.qmx.jitescript.runtime.MethodProfile;
+import me.qmx.jitescript.runtime.Profiler;
 import org.junit.Assert;
 import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.LabelNode;
 
 /**
  * @author qmx
@@ -41,6 +48,15 @@ public class JiteClassTest {
             byte[] classBytes = jiteClass.toBytes();
             return super.defineClass(c(jiteClass.getClassName()), classBytes, 0, classBytes.length);
         }
+
+        public Class<?> defineAll(Map<String, byte[]> classes) {
+            Class<?> first = null;
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                Class<?> defined = super.defineClass(c(entry.getKey()), entry.getValue(), 0, entry.getValue().length);
+                first = first == null ? defined : first;
+            }
+            return first;
+        }
     }
 
     @Test
@@ -193,4 +209,175 @@ public class JiteClassTest {
             assertFalse(childClazz.getConstructor(new Class[0]).isAccessible());
         }
     }
+
+    @Test
+    public void emitsNestsTogether() throws Exception {
+        JiteClass parent = nest("test/Nest");
+
+        Map<String, byte[]> classes = parent.toBytesAll(JDKVersion.V11);
+        Class<?> parentClazz = new DynamicClassLoader().defineAll(classes);
+
+        assertEquals(Arrays.asList("test/Nest", "test/Nest$Child", "test/Nest$Child$Grandchild"),
+                new ArrayList<String>(classes.keySet()));
+        assertEquals("grandchild secret", parentClazz.getMethod("peek").invoke(null));
+    }
+
+    @Test
+    public void nestsNeedJava11() throws Exception {
+        Map<String, byte[]> classes = nest("test/OldNest").toBytesAll(JDKVersion.V1_8);
+        Class<?> parentClazz = new DynamicClassLoader().defineAll(classes);
+
+        assertEquals(3, classes.size());
+        try {
+            parentClazz.getMethod("peek").invoke(null);
+            Assert.fail("expected private access to fail without nest attributes");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalAccessError);
+        }
+    }
+
+    private static JiteClass nest(String name) {
+        JiteClass parent = new JiteClass(name, p(Object.class), new String[0]);
+        JiteClass child = new JiteClass(name + "$Child", p(Object.class), new String[0]);
+        JiteClass grandchild = new JiteClass(name + "$Child$Grandchild", p(Object.class), new String[0]);
+        grandchild.defineMethod("secret", JiteClass.ACC_PRIVATE | JiteClass.ACC_STATIC, sig(String.class), newCodeBlock()
+                .ldc("grandchild secret")
+                .areturn());
+        parent.defineMethod("peek", JiteClass.ACC_PUBLIC | JiteClass.ACC_STATIC, sig(String.class), newCodeBlock()
+                .invokestatic(grandchild.getClassName(), "secret", sig(String.class))
+                .areturn());
+        child.addChildClass(grandchild);
+        parent.addChildClass(child);
+        return parent;
+    }
+
+    @Test
+    public void countsInvocationsOfInstrumentedMethods() throws Exception {
+        JiteClass jiteClass = profiled("test/Counted");
+        jiteClass.setInstrumentation(Instrumentation.COUNT);
+
+        Class<?> clazz = new DynamicClassLoader().define(jiteClass);
+        Object instance = clazz.newInstance();
+        for (int i = 0; i < 3; i++) {
+            clazz.getMethod("twice", int.class).invoke(instance, i);
+        }
+
+        MethodProfile twice = Profiler.global().getProfile("test/Counted", "twice", sig(int.class, int.class));
+        MethodProfile init = Profiler.global().getProfile("test/Counted", "<init>", sig(void.class));
+        assertEquals(3, twice.getInvocations());
+        assertEquals(1, init.getInvocations());
+        assertEquals(0, twice.getTotalNanos());
+        assertEquals(4, Profiler.global().getInvocations("test/Counted"));
+    }
+
+    @Test
+    public void samplesLatenciesUpToEveryExit() throws Exception {
+        JiteClass jiteClass = profiled("test/Timed");
+        jiteClass.setInstrumentation(Instrumentation.TIME);
+        jiteClass.setTrackedFrames(true);
+
+        Class<?> clazz = new DynamicClassLoader().define(jiteClass);
+        Method fail = clazz.getMethod("fail");
+        for (int i = 0; i <= MethodProfile.SAMPLE_PERIOD; i++) {
+            try {
+                fail.invoke(null);
+                Assert.fail("expected the method to throw");
+            } catch (InvocationTargetException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        MethodProfile profile = Profiler.global().getProfile("test/Timed", "fail", sig(void.class));
+        long timed = 0;
+        for (long bucket : profile.getLatencyHistogram()) {
+            timed += bucket;
+        }
+        assertEquals(MethodProfile.SAMPLE_PERIOD + 1, profile.getInvocations());
+        assertEquals(2, timed);
+    }
+
+    @Test
+    public void instrumentsMethodsWithExplicitFrames() throws Exception {
+        JiteClass jiteClass = new JiteClass("test/Framed", p(Object.class), new String[0]);
+        LabelNode zero = new LabelNode();
+        jiteClass.defineMethod("isSet", JiteClass.ACC_PUBLIC | JiteClass.ACC_STATIC, sig(boolean.class, int.class),
+                new CodeBlock()
+                        .iload(0)
+                        .ifeq(zero)
+                        .iconst_1()
+                        .ireturn()
+                        .label(zero)
+                        .frame_same()
+                        .iconst_0()
+                        .ireturn());
+        jiteClass.setInstrumentation(Instrumentation.COUNT);
+
+        Method isSet = new DynamicClassLoader().define(jiteClass).getMethod("isSet", int.class);
+
+        assertEquals(true, isSet.invoke(null, 1));
+        assertEquals(false, isSet.invoke(null, 0));
+        assertEquals(2, Profiler.global().getProfile("test/Framed", "isSet", sig(boolean.class, int.class))
+                .getInvocations());
+    }
+
+    @Test
+    public void leavesMethodsUntouchedWithoutInstrumentation() {
+        JiteClass jiteClass = profiled("test/Untouched");
+        byte[] plain = jiteClass.toBytes(JDKVersion.V1_7);
+
+        jiteClass.setInstrumentation(Instrumentation.TIME);
+        byte[] instrumented = jiteClass.toBytes(JDKVersion.V1_7);
+        jiteClass.setInstrumentation(Instrumentation.OFF);
+
+        assertTrue(instrumented.length > plain.length);
+        assertTrue(Arrays.equals(plain, jiteClass.toBytes(JDKVersion.V1_7)));
+    }
+
+    private static JiteClass profiled(String name) {
+        JiteClass jiteClass = new JiteClass(name, p(Object.class), new String[0]);
+        jiteClass.defineDefaultConstructor();
+        jiteClass.defineMethod("twice", JiteClass.ACC_PUBLIC, sig(int.class, int.class), newCodeBlock()
+                .iload(1)
+                .iconst_2()
+                .imul()
+                .ireturn());
+        jiteClass.defineMethod("fail", JiteClass.ACC_PUBLIC | JiteClass.ACC_STATIC, sig(void.class), newCodeBlock()
+                .newobj(p(IllegalStateException.class))
+                .dup()
+                .invokespecial(p(IllegalStateException.class), "<init>", sig(void.class))
+                .athrow());
+        return jiteClass;
+    }
+
+    @Test
+    public void streamingEmissionMatchesTree() throws Exception {
+        JiteClass jiteClass = new JiteClass("Streamed", p(Object.class), new String[0]) {
+            {
+                defineDefaultConstructor();
+                defineField("foo", ACC_PUBLIC | ACC_STATIC, ci(String.class), "bar");
+                final LabelNode other = new LabelNode();
+                final LabelNode done = new LabelNode();
+                defineMethod("pick", ACC_PUBLIC | ACC_STATIC, sig(String.class, int.class), newCodeBlock()
+                        .iload(0)
+                        .ifeq(other)
+                        .ldc("nonzero")
+                        .go_to(done)
+                        .label(other)
+                        .ldc("zero")
+                        .label(done)
+                        .areturn());
+            }
+        };
+
+        byte[] streamed = jiteClass.toBytes(JDKVersion.V1_6);
+        assertTrue("emission should not consume method bodies", Arrays.equals(streamed, jiteClass.toBytes(JDKVersion.V1_6)));
+
+        Class<?> clazz = new DynamicClassLoader().define(jiteClass);
+        assertEquals("zero", clazz.getMethod("pick", int.class).invoke(null, 0));
+        assertEquals("nonzero", clazz.getMethod("pick", int.class).invoke(null, 1));
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        jiteClass.toClassNode(JDKVersion.V1_6).accept(cw);
+        assertTrue("streamed bytes differ from tree bytes", Arrays.equals(streamed, cw.toByteArray()));
+    }
 }
@@ -0,0 +1,113 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.objectweb.asm.tree.LabelNode;
+
+public class JiteCompilerTest {
+
+    private static JiteClass counter(final String className, final String superClassName, final int value) {
+        final LabelNode positive = new LabelNode();
+        final LabelNode done = new LabelNode();
+        return new JiteClass(className, superClassName, new String[0]) {{
+            defineDefaultConstructor();
+            defineMethod("value", ACC_PUBLIC | ACC_STATIC, sig(Object.class, int.class), newCodeBlock()
+                    .iload(0)
+                    .ifgt(positive)
+                    .newobj(getClassName())
+                    .dup()
+                    .invokespecial(getClassName(), "<init>", sig(void.class))
+                    .go_to(done)
+                    .label(positive)
+                    .newobj(superClassName)
+                    .dup()
+                    .invokespecial(superClassName, "<init>", sig(void.class))
+                    .label(done)
+                    .areturn());
+            defineMethod("number", ACC_PUBLIC | ACC_STATIC, sig(int.class), newCodeBlock().pushInt(value).ireturn());
+        }};
+    }
+
+    @Test
+    public void compilesBatchesInParallel() throws Exception {
+        List<JiteClass> classes = new ArrayList<JiteClass>();
+        JiteClass base = new JiteClass("batch/Base") {{
+            defineDefaultConstructor();
+        }};
+        classes.add(base);
+        for (int i = 0; i < 64; i++) {
+            classes.add(counter("batch/Counter" + i, base.getClassName(), i));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Map<String, byte[]> compiled;
+        try {
+            compiled = new JiteCompiler(JDKVersion.V1_6).compileAll(classes, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(65, compiled.size());
+        JiteClassLoader loader = new JiteClassLoader();
+        for (JiteClass jiteClass : classes) {
+            loader.define(jiteClass, compiled.get(jiteClass.getClassName()));
+        }
+        Class<?> counter = loader.loadClass("batch.Counter42");
+        assertEquals(42, counter.getMethod("number").invoke(null));
+        assertEquals("batch.Base", counter.getMethod("value", int.class).invoke(null, 1).getClass().getName());
+    }
+
+    @Test
+    public void includesChildClasses() throws Exception {
+        JiteClass parent = new JiteClass("batch/Parent") {{
+            defineDefaultConstructor();
+            addChildClass(new JiteClass("batch/Parent$Child") {{
+                defineDefaultConstructor();
+            }});
+        }};
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map<String, byte[]> compiled = new JiteCompiler(JDKVersion.V1_6).compileAll(Arrays.asList(parent), executor);
+            assertEquals(Arrays.asList("batch/Parent", "batch/Parent$Child"), new ArrayList<String>(compiled.keySet()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = TypeNotPresentException.class)
+    public void propagatesEmissionFailures() throws Exception {
+        JiteClass broken = counter("batch/Broken", "batch/Unknown", 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new JiteCompiler(JDKVersion.V1_6).compileAll(Arrays.asList(broken), executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
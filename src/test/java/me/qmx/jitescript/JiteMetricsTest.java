@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import me.qmx.jitescript.cache.BytecodeCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JiteMetricsTest {
+
+    private final JiteMetricsCollector collector = new JiteMetricsCollector();
+
+    @Before
+    public void install() {
+        JiteMetricsRegistry.set(collector);
+    }
+
+    @After
+    public void uninstall() {
+        JiteMetricsRegistry.set(null);
+    }
+
+    @Test
+    public void reportsEmissionPhases() {
+        byte[] bytes = measured("test/Measured").toBytes(JDKVersion.V1_7);
+
+        assertEquals(1, collector.getClassesEmitted());
+        assertEquals(bytes.length, collector.getBytesEmitted());
+        assertEquals(2, collector.getMethodsEmitted());
+        assertEquals(7, collector.getInstructionsEmitted());
+        assertEquals(4, collector.getMaxMethodInstructions());
+        assertTrue(collector.getFrameNanos() > 0);
+        assertTrue(collector.getSerializeNanos() > 0);
+        assertTrue(collector.getAllocatedBytes() >= bytes.length);
+    }
+
+    @Test
+    public void reportsMethodTreesBuiltDirectly() {
+        new MethodDefinition("answer", JiteClass.ACC_PUBLIC | JiteClass.ACC_STATIC, sig(int.class), newCodeBlock()
+                .pushInt(42)
+                .ireturn()).getMethodNode();
+        measured("test/Tree").toClassNode(JDKVersion.V1_7);
+
+        assertEquals(3, collector.getMethodsEmitted());
+        assertEquals(9, collector.getInstructionsEmitted());
+        assertEquals(0, collector.getClassesEmitted());
+    }
+
+    @Test
+    public void reportsDefinitionsAndCacheLookups() {
+        BytecodeCache cache = new BytecodeCache(16);
+        cache.define(measured("test/Cached"), new JiteClassLoader(getClass().getClassLoader(), JDKVersion.V1_7));
+        cache.define(measured("test/Cached"), new JiteClassLoader(getClass().getClassLoader(), JDKVersion.V1_7));
+
+        assertEquals(1, collector.getClassesEmitted());
+        assertEquals(2, collector.getClassesDefined());
+        assertEquals(1, collector.getCacheHits());
+        assertEquals(1, collector.getCacheMisses());
+        assertEquals(0.5, collector.getCacheHitRate(), 0);
+    }
+
+    @Test
+    public void publishesOverJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = collector.register(server);
+        try {
+            measured("test/Published").toBytes();
+
+            assertEquals(1L, server.getAttribute(name, "ClassesEmitted"));
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            assertEquals(0, collector.getClassesEmitted());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void reportsNothingWhenUninstalled() {
+        JiteMetricsRegistry.set(null);
+        new JiteClassLoader(getClass().getClassLoader()).define(measured("test/Unmeasured"));
+
+        assertEquals(0, collector.getClassesEmitted());
+        assertEquals(0, collector.getClassesDefined());
+    }
+
+    private static JiteClass measured(String name) {
+        JiteClass jiteClass = new JiteClass(name, p(Object.class), new String[0]);
+        jiteClass.defineDefaultConstructor();
+        jiteClass.defineMethod("max", JiteClass.ACC_PUBLIC | JiteClass.ACC_STATIC, sig(int.class, int.class, int.class),
+                newCodeBlock()
+                        .iload(0)
+                        .iload(1)
+                        .invokestatic(p(Math.class), "max", sig(int.class, int.class, int.class))
+                        .ireturn());
+        return jiteClass;
+    }
+}
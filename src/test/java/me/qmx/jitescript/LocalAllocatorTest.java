@@ -0,0 +1,132 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import me.qmx.jitescript.LocalAllocator.Local;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+
+public class LocalAllocatorTest implements Opcodes {
+
+    @Test
+    public void longsAndDoublesTakeTwoSlots() {
+        LocalAllocator locals = newCodeBlock().locals();
+
+        assertEquals(0, locals.allocate("a", long.class).getIndex());
+        assertEquals(2, locals.allocate("b", int.class).getIndex());
+        assertEquals(3, locals.temp(double.class).getIndex());
+        assertEquals(5, locals.maxLocals());
+    }
+
+    @Test
+    public void siblingScopesShareSlots() {
+        LocalAllocator locals = newCodeBlock().locals();
+        locals.allocate("self", Object.class);
+
+        locals.enterScope();
+        Local first = locals.allocate("first", long.class);
+        locals.exitScope();
+        locals.enterScope();
+        Local second = locals.allocate("second", String.class);
+        Local third = locals.allocate("third", int.class);
+        locals.exitScope();
+
+        assertEquals(1, first.getIndex());
+        assertEquals(1, second.getIndex());
+        assertEquals(2, third.getIndex());
+        assertEquals(3, locals.maxLocals());
+        assertEquals(1, locals.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rootScopeCannotBeExited() {
+        newCodeBlock().locals().exitScope();
+    }
+
+    @Test
+    public void emitsLocalVariableTableEntries() throws Exception {
+        CodeBlock body = newCodeBlock();
+        LocalAllocator locals = body.locals();
+        Local n = locals.allocate("n", long.class);
+        Local factor = locals.allocate("factor", int.class);
+        locals.enterScope();
+        Local product = locals.allocate("product", long.class);
+        body.load(n).load(factor).i2l().lmul().store(product);
+        Local counter = locals.temp(int.class);
+        body.iconst_0().store(counter);
+        locals.exitScope();
+        locals.enterScope();
+        Local result = locals.allocate("result", long.class);
+        body.load(n).load(factor).i2l().lmul().store(result).load(result).lreturn();
+
+        JiteClass jiteClass = new JiteClass("locals/Multiplier", p(Object.class), new String[0]);
+        jiteClass.defineMethod("multiply", ACC_PUBLIC | ACC_STATIC, sig(long.class, long.class, int.class), body);
+        List<LocalVariableNode> table = body.getLocalVariableList();
+        Class<?> definedClass = new JiteClassLoader().define(jiteClass);
+        Method multiply = definedClass.getMethod("multiply", long.class, int.class);
+
+        assertEquals(42L, multiply.invoke(null, 21L, 2));
+        assertEquals(6, locals.maxLocals());
+        assertEquals(4, table.size());
+        assertEquals("product", table.get(0).name);
+        assertEquals(3, table.get(0).index);
+        assertEquals("result", table.get(1).name);
+        assertEquals(3, table.get(1).index);
+        assertEquals("n", table.get(2).name);
+        assertEquals("factor", table.get(3).name);
+        assertEquals(2, table.get(3).index);
+    }
+
+    @Test
+    public void entriesStartAtTheFirstStore() {
+        CodeBlock body = newCodeBlock();
+        LocalAllocator locals = body.locals();
+        Local n = locals.allocate("n", int.class);
+        locals.enterScope();
+        Local doubled = locals.allocate("doubled", long.class);
+        locals.allocate("unused", String.class);
+        body.load(n).i2l().iconst_2().i2l().lmul().store(doubled);
+        locals.exitScope();
+        body.load(n).ireturn();
+        body.finishLocals();
+        List<LocalVariableNode> table = body.getLocalVariableList();
+        body.getInstructionList();
+
+        assertEquals(2, table.size());
+        assertEquals("doubled", table.get(0).name);
+        assertEquals(LSTORE, previousInstruction(table.get(0).start).getOpcode());
+        assertEquals("n", table.get(1).name);
+        assertNull(previousInstruction(table.get(1).start));
+    }
+
+    private static AbstractInsnNode previousInstruction(AbstractInsnNode node) {
+        AbstractInsnNode previous = node.getPrevious();
+        while (previous != null && previous.getOpcode() < 0) {
+            previous = previous.getPrevious();
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.PrintStream;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+
+public class StackTrackerTest implements Opcodes {
+
+    @Test
+    public void reportsUnderflowAtTheFaultyInstruction() {
+        CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(int.class)).iconst_1();
+        try {
+            block.iadd();
+            fail("expected an underflow");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("iadd (instruction 2)"));
+        }
+    }
+
+    @Test
+    public void reportsOperandTypeMismatches() {
+        CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(void.class, String.class))
+                .getstatic(p(System.class), "out", ci(PrintStream.class))
+                .aload(0);
+        try {
+            block.invokevirtual(p(PrintStream.class), "println", sig(void.class, int.class));
+            fail("expected a type mismatch");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("invokevirtual"));
+        }
+    }
+
+    @Test
+    public void reportsBadReceivers() {
+        CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(int.class, Integer.class)).aload(0);
+        try {
+            block.invokevirtual(p(String.class), "length", sig(int.class));
+            fail("expected a type mismatch");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("invokevirtual"));
+        }
+    }
+
+    @Test
+    public void countsWideValuesInMaxStack() {
+        CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_PUBLIC, sig(long.class, long.class))
+                .lload(1)
+                .dup2()
+                .ldc(3L)
+                .lmul()
+                .ladd();
+
+        assertEquals(2, block.stackSize());
+        block.lreturn();
+        assertEquals(6, block.maxStack());
+        assertEquals(-1, block.stackSize());
+    }
+
+    @Test
+    public void carriesStacksAcrossJumps() {
+        LabelNode other = new LabelNode();
+        LabelNode done = new LabelNode();
+        CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(String.class, boolean.class))
+                .iload(0)
+                .ifeq(other)
+                .ldc("yes")
+                .go_to(done)
+                .label(other)
+                .ldc("no")
+                .label(done);
+
+        assertEquals(1, block.stackSize());
+        block.areturn();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reportsMismatchedStackHeightsAtLabels() {
+        LabelNode done = new LabelNode();
+        newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(void.class, boolean.class))
+                .ldc("pending")
+                .iload(0)
+                .ifeq(done)
+                .pop()
+                .label(done);
+    }
+
+    @Test
+    public void seedsHandlersWithTheirException() {
+        final CodeBlock block = newCodeBlock().trackStack("tracked/Owner", ACC_STATIC, sig(String.class));
+        block.trycatch(p(RuntimeException.class), new Runnable() {
+            public void run() {
+                block.ldc("body").areturn();
+            }
+        }, new Runnable() {
+            public void run() {
+                block.invokevirtual(p(RuntimeException.class), "getMessage", sig(String.class)).areturn();
+            }
+        });
+
+        assertEquals(1, block.maxStack());
+    }
+
+    @Test
+    public void trackedBlocksStillDefine() throws Exception {
+        CodeBlock body = newCodeBlock().trackStack("tracked/Adder", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class, int.class))
+                .iload(0)
+                .iload(1)
+                .iadd()
+                .ireturn();
+        JiteClass jiteClass = new JiteClass("tracked/Adder", p(Object.class), new String[0]);
+        jiteClass.defineMethod("add", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class, int.class), body);
+
+        Class<?> definedClass = new JiteClassLoader().define(jiteClass);
+
+        assertEquals(5, definedClass.getMethod("add", int.class, int.class).invoke(null, 2, 3));
+        assertEquals(2, body.maxStack());
+    }
+
+    @Test
+    public void writesFramesFromTrackedStacks() throws Exception {
+        JiteClass jiteClass = new JiteClass("tracked/Counter", p(Object.class), new String[0]);
+        jiteClass.setTrackedFrames(true);
+        jiteClass.defineDefaultConstructor();
+        jiteClass.defineMethod("sum", ACC_PUBLIC | ACC_STATIC, sig(long.class, int.class), sum());
+        final CodeBlock guarded = newCodeBlock().trackStack("tracked/Counter", ACC_PUBLIC | ACC_STATIC, sig(String.class, Object.class));
+        guarded.trycatch(p(ClassCastException.class), new Runnable() {
+            public void run() {
+                guarded.aload(0).checkcast(p(String.class)).areturn();
+            }
+        }, new Runnable() {
+            public void run() {
+                guarded.pop().ldc("not a string").areturn();
+            }
+        });
+        jiteClass.defineMethod("guarded", ACC_PUBLIC | ACC_STATIC, sig(String.class, Object.class), guarded);
+
+        assertTrue(jiteClass.getMethods().get(1).getMethodBody().hasTrackedFrames());
+        assertTrue(guarded.hasTrackedFrames());
+        Class<?> definedClass = new JiteClassLoader().define(jiteClass);
+
+        assertEquals(45L, definedClass.getMethod("sum", int.class).invoke(null, 10));
+        assertEquals("yes", definedClass.getMethod("guarded", Object.class).invoke(null, "yes"));
+        assertEquals("not a string", definedClass.getMethod("guarded", Object.class).invoke(null, 42));
+    }
+
+    @Test
+    public void fallsBackWhereTheStateIsUnknown() throws Exception {
+        LabelNode check = new LabelNode();
+        LabelNode loop = new LabelNode();
+        // the loop body is built before anything jumps to it, the way javac lays out while loops
+        CodeBlock countdown = newCodeBlock().trackStack("tracked/Countdown", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class))
+                .iconst_0()
+                .istore(1)
+                .go_to(check)
+                .label(loop)
+                .iinc(1, 1)
+                .iinc(0, -1)
+                .label(check)
+                .iload(0)
+                .ifne(loop)
+                .iload(1)
+                .ireturn();
+        JiteClass jiteClass = new JiteClass("tracked/Countdown", p(Object.class), new String[0]);
+        jiteClass.setTrackedFrames(true);
+        jiteClass.defineMethod("first", ACC_PUBLIC | ACC_STATIC, sig(long.class, int.class), sum());
+        jiteClass.defineMethod("countdown", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class), countdown);
+        jiteClass.defineMethod("last", ACC_PUBLIC | ACC_STATIC, sig(int.class), newCodeBlock().iconst_3().ireturn());
+
+        assertTrue(!countdown.hasTrackedFrames());
+        Class<?> definedClass = new JiteClassLoader().define(jiteClass);
+
+        assertEquals(7, definedClass.getMethod("countdown", int.class).invoke(null, 7));
+        assertEquals(3, definedClass.getMethod("last").invoke(null));
+        assertEquals(3L, definedClass.getMethod("first", int.class).invoke(null, 3));
+    }
+
+    private static CodeBlock sum() {
+        LabelNode loop = new LabelNode();
+        LabelNode done = new LabelNode();
+        return newCodeBlock().trackStack("tracked/Counter", ACC_PUBLIC | ACC_STATIC, sig(long.class, int.class))
+                .lconst_0()
+                .lstore(1)
+                .label(loop)
+                .iload(0)
+                .ifeq(done)
+                .iinc(0, -1)
+                .lload(1)
+                .iload(0)
+                .i2l()
+                .ladd()
+                .lstore(1)
+                .go_to(loop)
+                .label(done)
+                .lload(1)
+                .lreturn();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.cache;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.junit.Test;
+
+public class BytecodeCacheTest {
+
+    private static JiteClass shape(final String className, final String greeting) {
+        return new JiteClass(className) {{
+            defineDefaultConstructor();
+            defineField("greeting", ACC_PUBLIC | ACC_STATIC, ci(String.class), greeting);
+            defineMethod("greet", ACC_PUBLIC | ACC_STATIC, sig(String.class), newCodeBlock().ldc(greeting).areturn());
+        }};
+    }
+
+    @Test
+    public void fingerprintIsStructural() {
+        assertEquals(shape("test/Shape", "hi").fingerprint(), shape("test/Shape", "hi").fingerprint());
+        assertFalse(shape("test/Shape", "hi").fingerprint().equals(shape("test/Shape", "ho").fingerprint()));
+        assertFalse(shape("test/Shape", "hi").fingerprint().equals(shape("test/Other", "hi").fingerprint()));
+    }
+
+    @Test
+    public void reusesBytecodeOfIdenticalShapes() {
+        BytecodeCache cache = new BytecodeCache(16);
+        byte[] first = cache.toBytes(shape("test/Shape", "hi"), JDKVersion.V1_6);
+        byte[] second = cache.toBytes(shape("test/Shape", "hi"), JDKVersion.V1_6);
+        cache.toBytes(shape("test/Shape", "hi"), JDKVersion.V1_7);
+
+        assertSame(first, second);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        BytecodeCache cache = new BytecodeCache(2);
+        JiteClass a = shape("test/A", "a");
+        JiteClass b = shape("test/B", "b");
+        cache.toBytes(a, JDKVersion.V1_6);
+        cache.toBytes(b, JDKVersion.V1_6);
+        cache.toBytes(a, JDKVersion.V1_6);
+        cache.toBytes(shape("test/C", "c"), JDKVersion.V1_6);
+
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(b.fingerprint(), JDKVersion.V1_6));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsBySize() {
+        BytecodeCache cache = new BytecodeCache(16, 1);
+        cache.toBytes(shape("test/A", "a"), JDKVersion.V1_6);
+        cache.toBytes(shape("test/B", "b"), JDKVersion.V1_6);
+
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void reusesDefinedClasses() throws Exception {
+        BytecodeCache cache = new BytecodeCache(16);
+        JiteClassLoader loader = new JiteClassLoader();
+        Class<?> first = cache.define(shape("test/Greeter", "hi"), loader);
+        Class<?> second = cache.define(shape("test/Greeter", "hi"), loader);
+        Class<?> elsewhere = cache.define(shape("test/Greeter", "hi"), new JiteClassLoader());
+
+        assertSame(first, second);
+        assertEquals("hi", elsewhere.getMethod("greet").invoke(null));
+        assertEquals(2, cache.getHitCount());
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.cache;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BytecodePackTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static JiteClass greeter(final String className, final String greeting) {
+        return new JiteClass(className) {{
+            defineDefaultConstructor();
+            defineMethod("greet", ACC_PUBLIC | ACC_STATIC, sig(String.class), newCodeBlock().ldc(greeting).areturn());
+        }};
+    }
+
+    @Test
+    public void survivesRestarts() throws Exception {
+        File file = folder.newFile("classes.pack");
+        JiteClass greeter = greeter("test/Greeter", "hi");
+        byte[] bytecode = greeter.toBytes(JDKVersion.V1_6);
+
+        BytecodePack pack = new BytecodePack(file, "v1");
+        assertTrue(pack.isWritable());
+        pack.put(greeter.fingerprint(), JDKVersion.V1_6, bytecode);
+        assertArrayEquals(bytecode, pack.get(greeter.fingerprint(), JDKVersion.V1_6));
+        pack.close();
+
+        BytecodePack reopened = new BytecodePack(file, "v1");
+        assertEquals(1, reopened.size());
+        assertArrayEquals(bytecode, reopened.get(greeter.fingerprint(), JDKVersion.V1_6));
+        assertNull(reopened.get(greeter.fingerprint(), JDKVersion.V1_7));
+        reopened.close();
+    }
+
+    @Test
+    public void servesReadsWhenAlreadyOpenInThisProcess() throws Exception {
+        File file = folder.newFile("classes.pack");
+        JiteClass greeter = greeter("test/Greeter", "hi");
+        byte[] bytecode = greeter.toBytes(JDKVersion.V1_6);
+        BytecodePack writer = new BytecodePack(file, "v1");
+        writer.put(greeter.fingerprint(), JDKVersion.V1_6, bytecode);
+
+        BytecodePack reader = new BytecodePack(file, "v1");
+        reader.put(greeter("test/Other", "ho").fingerprint(), JDKVersion.V1_6, bytecode);
+
+        assertTrue(writer.isWritable());
+        assertFalse(reader.isWritable());
+        assertEquals(1, reader.size());
+        assertArrayEquals(bytecode, reader.get(greeter.fingerprint(), JDKVersion.V1_6));
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void rejectsStalePacks() throws Exception {
+        File file = folder.newFile("classes.pack");
+        JiteClass greeter = greeter("test/Greeter", "hi");
+
+        BytecodePack pack = new BytecodePack(file, "v1");
+        pack.put(greeter.fingerprint(), JDKVersion.V1_6, greeter.toBytes(JDKVersion.V1_6));
+        pack.close();
+
+        BytecodePack stale = new BytecodePack(file, "v2");
+        assertEquals(0, stale.size());
+        stale.close();
+    }
+
+    @Test
+    public void dropsTornRecords() throws Exception {
+        File file = folder.newFile("classes.pack");
+        JiteClass first = greeter("test/First", "one");
+        JiteClass second = greeter("test/Second", "two");
+
+        BytecodePack pack = new BytecodePack(file, "v1", false);
+        pack.put(first.fingerprint(), JDKVersion.V1_6, first.toBytes(JDKVersion.V1_6));
+        pack.put(second.fingerprint(), JDKVersion.V1_6, second.toBytes(JDKVersion.V1_6));
+        pack.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        BytecodePack recovered = new BytecodePack(file, "v1");
+        assertEquals(1, recovered.size());
+        assertNull(recovered.get(second.fingerprint(), JDKVersion.V1_6));
+        recovered.put(second.fingerprint(), JDKVersion.V1_6, second.toBytes(JDKVersion.V1_6));
+        recovered.close();
+
+        BytecodePack reopened = new BytecodePack(file, "v1");
+        assertEquals(2, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void backsTheInMemoryCache() throws Exception {
+        File file = folder.newFile("classes.pack");
+
+        BytecodeCache cache = new BytecodeCache(16);
+        cache.setPack(new BytecodePack(file, "v1"));
+        cache.toBytes(greeter("test/Greeter", "hi"), JDKVersion.V1_6);
+        cache.getPack().close();
+
+        BytecodeCache restarted = new BytecodeCache(16);
+        BytecodePack pack = new BytecodePack(file, "v1");
+        restarted.setPack(pack);
+        Class<?> greeter = restarted.define(greeter("test/Greeter", "hi"), new JiteClassLoader());
+
+        assertEquals("hi", greeter.getMethod("greet").invoke(null));
+        assertEquals(1, pack.getHitCount());
+        assertEquals(0, pack.getMissCount());
+        assertEquals(1, restarted.getHitCount());
+        assertEquals(0, restarted.getMissCount());
+        pack.close();
+    }
+}
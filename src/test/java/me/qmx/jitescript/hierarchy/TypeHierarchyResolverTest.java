@@ -0,0 +1,104 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.hierarchy;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.c;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassTest.DynamicClassLoader;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+
+public class TypeHierarchyResolverTest implements Opcodes {
+
+    @Test
+    public void readsClassFilesWithoutLoading() {
+        TypeHierarchyResolver resolver = new ClassFileTypeHierarchyResolver(getClass().getClassLoader());
+        TypeInfo info = resolver.resolve(p(Integer.class));
+
+        assertEquals(p(Number.class), info.getSuperName());
+        assertTrue(info.getInterfaces().contains(p(Comparable.class)));
+        assertFalse(info.isInterface());
+        assertTrue(resolver.resolve(p(Runnable.class)).isInterface());
+        assertNull(resolver.resolve("does/not/Exist"));
+    }
+
+    @Test
+    public void computesCommonSuperClasses() {
+        TypeHierarchy hierarchy = new TypeHierarchy(new CachingTypeHierarchyResolver(
+                new ClassFileTypeHierarchyResolver(getClass().getClassLoader())));
+
+        assertEquals(p(Number.class), hierarchy.getCommonSuperClass(p(Integer.class), p(Long.class)));
+        assertEquals(p(Object.class), hierarchy.getCommonSuperClass(p(String.class), p(Integer.class)));
+        assertEquals(p(Runnable.class), hierarchy.getCommonSuperClass(p(Runnable.class), p(Thread.class)));
+        assertEquals(p(Object.class), hierarchy.getCommonSuperClass(p(Runnable.class), p(String.class)));
+        assertTrue(hierarchy.isAssignableFrom(p(Serializable.class), p(Integer.class)));
+        assertFalse(hierarchy.isAssignableFrom(p(Integer.class), p(Number.class)));
+    }
+
+    @Test
+    public void resolvesClassesOfTheSameBatch() throws Exception {
+        final JiteClass base = new JiteClass("test/Base") {{
+            defineDefaultConstructor();
+        }};
+        final JiteClass left = new JiteClass("test/Left", base.getClassName(), new String[0]) {{
+            defineDefaultConstructor();
+        }};
+        final JiteClass right = new JiteClass("test/Right", base.getClassName(), new String[0]) {{
+            defineDefaultConstructor();
+        }};
+        final LabelNode useRight = new LabelNode();
+        final LabelNode done = new LabelNode();
+        JiteClass chooser = new JiteClass("test/Chooser") {{
+            defineMethod("choose", ACC_PUBLIC | ACC_STATIC, sig(Object.class, boolean.class), newCodeBlock()
+                    .iload(0)
+                    .ifeq(useRight)
+                    .newobj(left.getClassName())
+                    .dup()
+                    .invokespecial(left.getClassName(), "<init>", sig(void.class))
+                    .go_to(done)
+                    .label(useRight)
+                    .newobj(right.getClassName())
+                    .dup()
+                    .invokespecial(right.getClassName(), "<init>", sig(void.class))
+                    .label(done)
+                    .areturn());
+        }};
+
+        TypeHierarchyResolver resolver = new JiteClassTypeHierarchyResolver(Arrays.asList(base, left, right, chooser),
+                new ClassFileTypeHierarchyResolver(getClass().getClassLoader()));
+        assertEquals(base.getClassName(), new TypeHierarchy(resolver).getCommonSuperClass(left.getClassName(), right.getClassName()));
+
+        chooser.setTypeHierarchyResolver(resolver);
+        DynamicClassLoader loader = new DynamicClassLoader();
+        loader.define(base);
+        loader.define(left);
+        loader.define(right);
+        Class<?> chooserClass = loader.define(chooser);
+        Object chosen = chooserClass.getMethod("choose", boolean.class).invoke(null, true);
+        assertEquals(c(left.getClassName()), chosen.getClass().getName());
+    }
+}
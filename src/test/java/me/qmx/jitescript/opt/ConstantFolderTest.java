@@ -0,0 +1,134 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.opt.PeepholeOptimizerTest.opcodes;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+
+public class ConstantFolderTest implements Opcodes {
+
+    @Test
+    public void foldsIntArithmetic() {
+        CodeBlock block = newCodeBlock()
+                .pushInt(6)
+                .pushInt(7)
+                .imul()
+                .iconst_2()
+                .ishl()
+                .ineg()
+                .ireturn()
+                .optimize(new ConstantFolder());
+
+        assertEquals(Arrays.asList(SIPUSH, IRETURN), opcodes(block));
+        assertEquals(-168, ((IntInsnNode) block.getInstructionList().getFirst()).operand);
+    }
+
+    @Test
+    public void foldsLongArithmeticAndComparisons() {
+        CodeBlock block = newCodeBlock()
+                .pushInt(100000)
+                .i2l()
+                .ldc(100000L)
+                .lmul()
+                .ldc(3L)
+                .lcmp()
+                .ireturn()
+                .optimize(new ConstantFolder());
+
+        assertEquals(Arrays.asList(ICONST_1, IRETURN), opcodes(block));
+
+        CodeBlock widened = newCodeBlock().pushInt(100000).i2l().ldc(100000L).lmul().lreturn().optimize(new ConstantFolder());
+        assertEquals(10000000000L, ((LdcInsnNode) widened.getInstructionList().getFirst()).cst);
+    }
+
+    @Test
+    public void leavesDivisionByZeroAlone() {
+        CodeBlock block = newCodeBlock().iconst_1().iconst_0().idiv().ireturn().optimize(new ConstantFolder());
+
+        assertEquals(Arrays.asList(ICONST_1, ICONST_0, IDIV, IRETURN), opcodes(block));
+    }
+
+    @Test
+    public void resolvesConstantBranchesAndDropsDeadCode() {
+        LabelNode otherwise = new LabelNode();
+        LabelNode start = new LabelNode();
+        LabelNode end = new LabelNode();
+        LabelNode handler = new LabelNode();
+        CodeBlock block = newCodeBlock()
+                .pushInt(3)
+                .pushInt(4)
+                .if_icmpgt(otherwise)
+                .ldc("taken")
+                .areturn()
+                .label(otherwise)
+                .trycatch(start, end, handler, p(RuntimeException.class))
+                .label(start)
+                .ldc("dead")
+                .areturn()
+                .label(end)
+                .label(handler)
+                .pop()
+                .ldc("dead handler")
+                .areturn()
+                .optimize();
+
+        assertEquals(Arrays.asList(LDC, ARETURN), opcodes(block));
+        assertTrue(block.getTryCatchBlockList().isEmpty());
+    }
+
+    @Test
+    public void keepsReachableHandlers() throws Exception {
+        final LabelNode start = new LabelNode();
+        final LabelNode end = new LabelNode();
+        final LabelNode handler = new LabelNode();
+        JiteClass jiteClass = new JiteClass("opt/Guarded") {{
+            defineMethod("guarded", ACC_PUBLIC | ACC_STATIC, sig(String.class, Object.class), newCodeBlock()
+                    .trycatch(start, end, handler, p(NullPointerException.class))
+                    .label(start)
+                    .aload(0)
+                    .invokevirtual(p(Object.class), "toString", sig(String.class))
+                    .pushInt(1)
+                    .pushInt(2)
+                    .iadd()
+                    .pop()
+                    .label(end)
+                    .areturn()
+                    .label(handler)
+                    .pop()
+                    .ldc("null")
+                    .areturn()
+                    .optimize());
+        }};
+
+        Class<?> guarded = new JiteClassLoader().define(jiteClass);
+        assertEquals("null", guarded.getMethod("guarded", Object.class).invoke(null, (Object) null));
+        assertEquals("x", guarded.getMethod("guarded", Object.class).invoke(null, "x"));
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JDKVersion;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class MethodSplitterTest implements Opcodes {
+
+    private static final int STATEMENTS = 12000;
+
+    @Test
+    public void splitsMethodsPastTheJvmLimit() throws Exception {
+        JiteClass jiteClass = hugeClass("opt/Huge");
+
+        Class<?> huge = new JiteClassLoader().define(jiteClass);
+
+        assertEquals(expected(7), huge.getMethod("build", int.class, StringBuilder.class).invoke(null, 7, new StringBuilder()));
+        int helpers = 0;
+        for (Method method : huge.getDeclaredMethods()) {
+            if (method.getName().startsWith("build$split$")) {
+                helpers++;
+            }
+        }
+        assertTrue(helpers > 0);
+    }
+
+    @Test
+    public void keepsMethodsBelowTheHugeMethodLimit() throws Exception {
+        JiteClass jiteClass = hugeClass("opt/Compilable");
+        jiteClass.setMethodSizeLimit(MethodSplitter.HUGE_METHOD_LIMIT);
+
+        ClassNode node = new ClassNode();
+        new ClassReader(jiteClass.toBytes(JDKVersion.V1_7)).accept(node, 0);
+        assertTrue(node.methods.size() > 10);
+        for (Object method : node.methods) {
+            assertTrue(Instructions.codeSize(((MethodNode) method).instructions) <= MethodSplitter.HUGE_METHOD_LIMIT);
+        }
+
+        Class<?> compilable = new JiteClassLoader(MethodSplitterTest.class.getClassLoader(), JDKVersion.V1_7).define(jiteClass);
+        assertEquals(expected(-3), compilable.getMethod("build", int.class, StringBuilder.class).invoke(null, -3, new StringBuilder()));
+    }
+
+    @Test
+    public void leavesSmallMethodsAlone() {
+        JiteClass jiteClass = new JiteClass("opt/Small") {{
+            defineMethod("small", ACC_PUBLIC | ACC_STATIC, sig(int.class, int.class), newCodeBlock().iload(0).iconst_1().iadd().ireturn());
+        }};
+        jiteClass.setMethodSizeLimit(1);
+
+        ClassNode node = new ClassNode();
+        new ClassReader(jiteClass.toBytes()).accept(node, 0);
+        assertEquals(1, node.methods.size());
+    }
+
+    private static JiteClass hugeClass(String name) {
+        final CodeBlock body = newCodeBlock().lconst_0().lstore(2);
+        for (int k = 0; k < STATEMENTS; k++) {
+            body.iload(0).pushInt(k % 1000).iadd().istore(0);
+            if (k % 50 == 0) {
+                body.aload(1).iload(0).invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, int.class)).pop();
+            }
+            if (k % 500 == 0) {
+                LabelNode start = new LabelNode();
+                LabelNode end = new LabelNode();
+                LabelNode handler = new LabelNode();
+                LabelNode after = new LabelNode();
+                body.trycatch(start, end, handler, p(RuntimeException.class))
+                        .label(start)
+                        .aload(1)
+                        .ldc("!")
+                        .invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, String.class))
+                        .pop()
+                        .label(end)
+                        .go_to(after)
+                        .label(handler)
+                        .pop()
+                        .label(after);
+            }
+            if (k % 1000 == 999) {
+                body.lload(2).iload(0).i2l().ladd().lstore(2);
+            }
+        }
+        body.aload(1)
+                .lload(2)
+                .invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, long.class))
+                .iload(0)
+                .invokevirtual(p(StringBuilder.class), "append", sig(StringBuilder.class, int.class))
+                .invokevirtual(p(StringBuilder.class), "toString", sig(String.class))
+                .areturn();
+        return new JiteClass(name) {{
+            defineMethod("build", ACC_PUBLIC | ACC_STATIC, sig(String.class, int.class, StringBuilder.class), body);
+        }};
+    }
+
+    private static String expected(int seed) {
+        StringBuilder out = new StringBuilder();
+        long total = 0;
+        for (int k = 0; k < STATEMENTS; k++) {
+            seed += k % 1000;
+            if (k % 50 == 0) {
+                out.append(seed);
+            }
+            if (k % 500 == 0) {
+                out.append("!");
+            }
+            if (k % 1000 == 999) {
+                total += seed;
+            }
+        }
+        return out.append(total).append(seed).toString();
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.opt;
+
+import static me.qmx.jitescript.CodeBlock.newCodeBlock;
+import static me.qmx.jitescript.util.CodegenUtils.ci;
+import static me.qmx.jitescript.util.CodegenUtils.p;
+import static me.qmx.jitescript.util.CodegenUtils.sig;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.invoke.ConstantBootstraps;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import me.qmx.jitescript.CodeBlock;
+import me.qmx.jitescript.JiteClass;
+import me.qmx.jitescript.JiteClassLoader;
+import org.junit.Test;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+
+public class PeepholeOptimizerTest implements Opcodes {
+
+    static List<Integer> opcodes(CodeBlock block) {
+        List<Integer> opcodes = new ArrayList<Integer>();
+        for (AbstractInsnNode node = block.getInstructionList().getFirst(); node != null; node = node.getNext()) {
+            if (node.getOpcode() >= 0) {
+                opcodes.add(node.getOpcode());
+            }
+        }
+        return opcodes;
+    }
+
+    @Test
+    public void removesUselessStackShuffling() {
+        CodeBlock block = newCodeBlock()
+                .aload(0)
+                .dup()
+                .pop()
+                .aload(1)
+                .pop()
+                .swap()
+                .swap()
+                .lload(2)
+                .pop2()
+                .checkcast(p(String.class))
+                .checkcast(p(String.class))
+                .areturn()
+                .optimize();
+
+        assertEquals(Arrays.asList(ALOAD, CHECKCAST, ARETURN), opcodes(block));
+    }
+
+    @Test
+    public void cascadesRewrites() {
+        CodeBlock block = newCodeBlock()
+                .aload(0)
+                .dup()
+                .dup()
+                .pop()
+                .pop()
+                .areturn()
+                .optimize();
+
+        assertEquals(Arrays.asList(ALOAD, ARETURN), opcodes(block));
+    }
+
+    @Test
+    public void foldsConstantBranches() {
+        LabelNode target = new LabelNode();
+        CodeBlock block = newCodeBlock()
+                .iconst_0()
+                .ifeq(target)
+                .iconst_1()
+                .ifeq(target)
+                .aconst_null()
+                .ifnonnull(target)
+                .label(target)
+                .voidreturn()
+                .optimize();
+
+        assertEquals(Arrays.asList(RETURN), opcodes(block));
+    }
+
+    @Test
+    public void keepsResolvingConstantsPopped() {
+        Handle bootstrap = new Handle(H_INVOKESTATIC, p(ConstantBootstraps.class), "nullConstant",
+                sig(Object.class, MethodHandles.Lookup.class, String.class, Class.class), false);
+        CodeBlock block = newCodeBlock()
+                .ldc("constant")
+                .pop()
+                .ldc(Type.getType(String.class))
+                .pop()
+                .ldc(Type.getMethodType(sig(void.class)))
+                .pop()
+                .ldc(bootstrap)
+                .pop()
+                .ldc(new ConstantDynamic("nothing", ci(Object.class), bootstrap))
+                .pop()
+                .voidreturn()
+                .optimize();
+
+        assertEquals(Arrays.asList(LDC, POP, LDC, POP, LDC, POP, LDC, POP, RETURN), opcodes(block));
+    }
+
+    @Test
+    public void onlyRunsSelectedRules() {
+        CodeBlock block = newCodeBlock()
+                .aload(0)
+                .dup()
+                .pop()
+                .swap()
+                .swap()
+                .areturn()
+                .optimize(new PeepholeOptimizer(EnumSet.of(PeepholeOptimizer.Rule.SWAP_SWAP)));
+
+        assertEquals(Arrays.asList(ALOAD, DUP, POP, ARETURN), opcodes(block));
+    }
+
+    @Test
+    public void dropsTryCatchBlocksLeftEmpty() throws Exception {
+        final LabelNode start = new LabelNode();
+        final LabelNode end = new LabelNode();
+        final LabelNode handler = new LabelNode();
+        final CodeBlock block = newCodeBlock()
+                .trycatch(start, end, handler, p(RuntimeException.class))
+                .label(start)
+                .aload(0)
+                .dup()
+                .pop()
+                .pop()
+                .label(end)
+                .aload(0)
+                .areturn()
+                .label(handler)
+                .pop()
+                .ldc("caught")
+                .areturn()
+                .optimize(new PeepholeOptimizer());
+        JiteClass jiteClass = new JiteClass("opt/EmptyTry") {{
+            defineMethod("identity", ACC_PUBLIC | ACC_STATIC, sig(String.class, String.class), block);
+        }};
+
+        assertEquals(0, block.getTryCatchBlockList().size());
+        Class<?> emptyTry = new JiteClassLoader().define(jiteClass);
+        assertEquals("same", emptyTry.getMethod("identity", String.class).invoke(null, "same"));
+    }
+
+    @Test
+    public void keepsBehaviour() throws Exception {
+        final LabelNode negative = new LabelNode();
+        final LabelNode done = new LabelNode();
+        JiteClass jiteClass = new JiteClass("opt/Sign") {{
+            defineMethod("sign", ACC_PUBLIC | ACC_STATIC, sig(String.class, int.class), newCodeBlock()
+                    .iload(0)
+                    .dup()
+                    .pop()
+                    .iflt(negative)
+                    .iconst_1()
+                    .ifeq(negative)
+                    .ldc("positive")
+                    .go_to(done)
+                    .label(negative)
+                    .ldc("negative")
+                    .go_to(done)
+                    .label(done)
+                    .areturn()
+                    .optimize());
+        }};
+
+        Class<?> sign = new JiteClassLoader().define(jiteClass);
+        assertEquals("positive", sign.getMethod("sign", int.class).invoke(null, 3));
+        assertEquals("negative", sign.getMethod("sign", int.class).invoke(null, -3));
+    }
+}
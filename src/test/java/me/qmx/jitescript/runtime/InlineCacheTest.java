@@ -0,0 +1,90 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import static java.lang.invoke.MethodType.methodType;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class InlineCacheTest {
+
+    @Test
+    public void cachesUpToItsDepth() throws Throwable {
+        InlineCache site = InlineCache.bootstrap(MethodHandles.lookup(), "length", methodType(int.class, Object.class), 2);
+        MethodHandle invoker = site.dynamicInvoker();
+
+        assertEquals(3, (int) invoker.invokeExact((Object) "abc"));
+        assertEquals(2, (int) invoker.invokeExact((Object) new StringBuilder("ab")));
+        assertEquals(3, (int) invoker.invokeExact((Object) "xyz"));
+        assertFalse(site.isMegamorphic());
+
+        assertEquals(1, (int) invoker.invokeExact((Object) new StringBuffer("a")));
+        assertTrue(site.isMegamorphic());
+        assertEquals(4, (int) invoker.invokeExact((Object) "abcd"));
+        assertEquals(0, (int) invoker.invokeExact((Object) new StringBuffer()));
+    }
+
+    @Test
+    public void passesArgumentsAfterTheReceiver() throws Throwable {
+        MethodHandle invoker = InlineCache.bootstrap(MethodHandles.lookup(), "get",
+                methodType(Object.class, Object.class, int.class)).dynamicInvoker();
+
+        assertEquals("b", invoker.invoke(Arrays.asList("a", "b"), 1));
+        assertEquals("c", invoker.invoke(new ArrayList<String>(Arrays.asList("c")), 0));
+    }
+
+    @Test
+    public void reachesMethodsOfPrivateClassesThroughPublicSupertypes() throws Throwable {
+        MethodHandle invoker = InlineCache.bootstrap(MethodHandles.lookup(), "size",
+                methodType(int.class, Object.class)).dynamicInvoker();
+
+        assertEquals(0, (int) invoker.invokeExact((Object) Collections.emptyList()));
+        assertEquals(1, (int) invoker.invokeExact((Object) Collections.singleton("a")));
+    }
+
+    @Test
+    public void startsOverWhenItsGroupIsInvalidated() throws Throwable {
+        InlineCache site = InlineCache.bootstrap(MethodHandles.lookup(), "length", methodType(int.class, Object.class),
+                1, "inline-cache-test");
+        MethodHandle invoker = site.dynamicInvoker();
+
+        assertEquals(3, (int) invoker.invokeExact((Object) "abc"));
+        assertEquals(2, (int) invoker.invokeExact((Object) new StringBuilder("ab")));
+        assertTrue(site.isMegamorphic());
+
+        SwitchPointRegistry.global().invalidate("inline-cache-test");
+        assertEquals(2, (int) invoker.invokeExact((Object) new StringBuilder("ab")));
+        assertFalse(site.isMegamorphic());
+        assertEquals(3, (int) invoker.invokeExact((Object) "abc"));
+        assertTrue(site.isMegamorphic());
+    }
+
+    @Test(expected = NoSuchMethodError.class)
+    public void failsOnMissingMethods() throws Throwable {
+        MethodHandle invoker = InlineCache.bootstrap(MethodHandles.lookup(), "quack",
+                methodType(Object.class, Object.class)).dynamicInvoker();
+
+        invoker.invoke("duck");
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MethodProfileTest {
+
+    @Test
+    public void sumsCountsAcrossThreads() throws Exception {
+        final MethodProfile profile = new Profiler().getProfile("test/Profiled", "run", "()V");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        profile.enter();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, profile.getInvocations());
+        profile.reset();
+        assertEquals(0, profile.getInvocations());
+    }
+
+    @Test
+    public void bucketsLatenciesByPowersOfTwo() {
+        MethodProfile profile = new Profiler().getProfile("test/Profiled", "run", "()V");
+
+        // started a second from now, so the latency clamps to zero
+        profile.exit(System.nanoTime() + 1000000000L);
+        profile.exit(0);
+        profile.exit(System.nanoTime() - (1L << 40));
+
+        long[] histogram = profile.getLatencyHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[41]);
+        assertTrue(profile.getTotalNanos() >= 1L << 40);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  Copyright 2012 Douglas Campos <qmx@qmx.me>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package me.qmx.jitescript.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.SwitchPoint;
+import org.junit.Test;
+
+public class SwitchPointRegistryTest {
+
+    @Test
+    public void invalidatesGroupsInBulk() throws Throwable {
+        SwitchPointRegistry registry = new SwitchPointRegistry();
+        MethodHandle target = MethodHandles.constant(String.class, "cached");
+        MethodHandle fallback = MethodHandles.constant(String.class, "fallback");
+        MethodHandle shapes = registry.guard("shapes", target, fallback);
+        MethodHandle globals = registry.guard("globals", target, fallback);
+        MethodHandle others = registry.guard("others", target, fallback);
+
+        registry.invalidate("shapes", "globals", "unknown");
+
+        assertEquals("fallback", (String) shapes.invokeExact());
+        assertEquals("fallback", (String) globals.invokeExact());
+        assertEquals("cached", (String) others.invokeExact());
+    }
+
+    @Test
+    public void startsInvalidatedGroupsOver() {
+        SwitchPointRegistry registry = new SwitchPointRegistry();
+        SwitchPoint first = registry.get("shapes");
+
+        assertSame(first, registry.get("shapes"));
+        registry.invalidate("shapes");
+        SwitchPoint second = registry.get("shapes");
+
+        assertTrue(first.hasBeenInvalidated());
+        assertFalse(second.hasBeenInvalidated());
+        assertNotSame(first, second);
+    }
+}